@@ -0,0 +1,146 @@
+/*
+ * Copyright 2013 David Tinker
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package io.qdb.server;
+
+import com.google.inject.AbstractModule;
+import com.google.inject.Guice;
+import com.google.inject.Injector;
+import com.google.inject.Key;
+import com.google.inject.name.Names;
+import com.google.inject.util.Modules;
+import io.qdb.buffer.MessageBuffer;
+import io.qdb.server.model.Database;
+import io.qdb.server.model.Queue;
+import io.qdb.server.queue.QueueManager;
+import io.qdb.server.queue.SubscriberRegistry;
+import io.qdb.server.repo.ObjectEventDispatcher;
+import io.qdb.server.repo.ProgressStore;
+import io.qdb.server.repo.Repository;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.util.HashMap;
+import java.util.Random;
+
+/**
+ * Server wired up with Guice against a temporary data directory for benchmarks. The HTTP connector is not
+ * started. Queues get real {@link io.qdb.buffer.PersistentMessageBuffer}s from the {@link QueueManager}.
+ * Close it to shut everything down and delete the data directory.
+ */
+public class BenchServer implements Closeable {
+
+    private final File dataDir;
+    private final Injector injector;
+
+    public BenchServer() throws IOException {
+        dataDir = File.createTempFile("qdb-bench", "");
+        if (!dataDir.delete() || !dataDir.mkdirs()) {
+            throw new IOException("Unable to create [" + dataDir.getAbsolutePath() + "]");
+        }
+        injector = Guice.createInjector(Modules.override(new QdbServerModule()).with(new AbstractModule() {
+            @Override
+            protected void configure() {
+                bind(Key.get(String.class, Names.named("dataDir"))).toInstance(dataDir.getAbsolutePath());
+            }
+        }));
+        injector.getInstance(QueueManager.class);
+    }
+
+    public <T> T get(Class<T> cls) {
+        return injector.getInstance(cls);
+    }
+
+    /**
+     * Create a queue in the default database with a buffer big enough to hold everything the benchmarks append.
+     */
+    public Queue createQueue(String id) throws IOException {
+        Queue q = new Queue();
+        q.setId(id);
+        q.setDatabase("default");
+        q.setMaxSize(1024L * 1024 * 1024);
+        q.setMaxPayloadSize(1024 * 1024);
+        q.setContentType("application/json; charset=utf-8");
+        Repository repo = get(Repository.class);
+        Database db = repo.findDatabase("default").deepCopy();
+        if (db.getQueues() == null) db.setQueues(new HashMap<String, String>());
+        db.getQueues().put(id, id);     // the buffer directory is named after the queue's name in its database
+        repo.updateDatabase(db);
+        repo.updateQueue(q);
+        if (getBuffer(q) == null) throw new IOException("Queue [" + id + "] does not have a buffer");
+        return q;
+    }
+
+    public MessageBuffer getBuffer(Queue q) {
+        return get(QueueManager.class).getBuffer(q);
+    }
+
+    /**
+     * Append count messages with JSON payloads of about payloadSize bytes and routing keys like "orders.eu.42".
+     * Returns the id of the first message.
+     */
+    public long fill(Queue q, int count, int payloadSize) throws IOException {
+        MessageBuffer mb = getBuffer(q);
+        long firstId = mb.getNextId();
+        for (int i = 0; i < count; i++) mb.append(System.currentTimeMillis(), routingKey(i), payload(i, payloadSize));
+        return firstId;
+    }
+
+    public static String routingKey(int i) {
+        return ROUTING_KEY_PREFIXES[i % ROUTING_KEY_PREFIXES.length] + "." + (i % 100);
+    }
+
+    private static final String[] ROUTING_KEY_PREFIXES = new String[]{
+            "orders.eu", "orders.us", "payments.eu", "payments.us", "audit"};
+
+    public static byte[] payload(int i, int payloadSize) {
+        StringBuilder b = new StringBuilder(payloadSize + 64);
+        b.append("{\"seq\":").append(i).append(",\"type\":\"").append(i % 10 == 0 ? "refund" : "sale")
+                .append("\",\"data\":\"");
+        Random rnd = new Random(i);
+        while (b.length() < payloadSize - 2) b.append((char)('a' + rnd.nextInt(26)));
+        b.append("\"}");
+        try {
+            return b.toString().getBytes("UTF8");
+        } catch (IOException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    @Override
+    public void close() throws IOException {
+        // ShutdownManager would start the HTTP connector just to close it so close what we use ourselves
+        try {
+            get(SubscriberRegistry.class).close();
+            get(QueueManager.class).close();
+            get(ProgressStore.class).close();
+            get(Repository.class).close();
+            get(ObjectEventDispatcher.class).close();
+        } finally {
+            delete(dataDir);
+        }
+    }
+
+    private static void delete(File f) {
+        File[] list = f.listFiles();
+        if (list != null) {
+            for (File c : list) delete(c);
+        }
+        //noinspection ResultOfMethodCallIgnored
+        f.delete();
+    }
+}
@@ -0,0 +1,141 @@
+/*
+ * Copyright 2013 David Tinker
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package io.qdb.server.controller;
+
+import io.qdb.server.model.Queue;
+import org.simpleframework.http.Path;
+import org.simpleframework.http.Query;
+import org.simpleframework.http.Request;
+import org.simpleframework.http.Response;
+
+import java.io.ByteArrayInputStream;
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.nio.channels.Channels;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Builds {@link Call}s backed by in-memory requests and responses so controllers can be benchmarked without
+ * the HTTP stack. Only the parts of {@link Request} and {@link Response} the message controller uses do
+ * anything, everything else returns null, 0 or false.
+ */
+public class BenchCall {
+
+    /**
+     * Counts and discards everything written to it.
+     */
+    public static class NullOutputStream extends OutputStream {
+
+        public long count;
+
+        @Override
+        public void write(int b) {
+            ++count;
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) {
+            count += len;
+        }
+    }
+
+    /**
+     * Create a call for q with the query parameters in params and an optional request body. The response body
+     * is written to out.
+     */
+    public static Call create(Renderer renderer, Queue q, String method, Map<String, String> params, byte[] body,
+                              OutputStream out) {
+        Call call = new Call(request(method, params, body), response(out), renderer);
+        call.setQueue(q);
+        return call;
+    }
+
+    private static Request request(final String method, Map<String, String> params, final byte[] body) {
+        final Map<String, String> p = params == null ? new HashMap<String, String>() : params;
+        final Query query = proxy(Query.class, new InvocationHandler() {
+            public Object invoke(Object proxy, Method m, Object[] args) throws Throwable {
+                if (m.getDeclaringClass() == Map.class || m.getDeclaringClass() == Object.class) {
+                    try {
+                        return m.invoke(p, args);
+                    } catch (InvocationTargetException e) {
+                        throw e.getCause();
+                    }
+                }
+                return defaultValue(m.getReturnType());
+            }
+        });
+        final Path path = proxy(Path.class, new InvocationHandler() {
+            public Object invoke(Object proxy, Method m, Object[] args) throws Throwable {
+                if ("getSegments".equals(m.getName())) return new String[0];
+                if ("toString".equals(m.getName())) return "/";
+                return defaultValue(m.getReturnType());
+            }
+        });
+        return proxy(Request.class, new InvocationHandler() {
+            public Object invoke(Object proxy, Method m, Object[] args) throws Throwable {
+                String name = m.getName();
+                if ("getParameter".equals(name)) return p.get((String)args[0]);
+                if ("getQuery".equals(name)) return query;
+                if ("getPath".equals(name)) return path;
+                if ("getMethod".equals(name)) return method;
+                if ("getContentLength".equals(name)) return body == null ? -1 : body.length;
+                if ("getInputStream".equals(name)) return new ByteArrayInputStream(body == null ? new byte[0] : body);
+                if ("getByteChannel".equals(name)) {
+                    return Channels.newChannel(new ByteArrayInputStream(body == null ? new byte[0] : body));
+                }
+                if ("toString".equals(name)) return method + " /";
+                return defaultValue(m.getReturnType());
+            }
+        });
+    }
+
+    private static Response response(final OutputStream out) {
+        final PrintStream ps = new PrintStream(out);
+        return proxy(Response.class, new InvocationHandler() {
+            public Object invoke(Object proxy, Method m, Object[] args) throws Throwable {
+                String name = m.getName();
+                if ("getOutputStream".equals(name)) return out;
+                if ("getPrintStream".equals(name)) return ps;
+                if ("getByteChannel".equals(name)) return Channels.newChannel(out);
+                if ("toString".equals(name)) return "response";
+                return defaultValue(m.getReturnType());
+            }
+        });
+    }
+
+    @SuppressWarnings("unchecked")
+    private static <T> T proxy(Class<T> cls, InvocationHandler h) {
+        return (T)Proxy.newProxyInstance(BenchCall.class.getClassLoader(), new Class[]{cls}, h);
+    }
+
+    private static Object defaultValue(Class<?> type) {
+        if (!type.isPrimitive() || type == Void.TYPE) return null;
+        if (type == Boolean.TYPE) return false;
+        if (type == Integer.TYPE) return 0;
+        if (type == Long.TYPE) return 0L;
+        if (type == Short.TYPE) return (short)0;
+        if (type == Byte.TYPE) return (byte)0;
+        if (type == Character.TYPE) return (char)0;
+        if (type == Float.TYPE) return 0.0f;
+        return 0.0;
+    }
+}
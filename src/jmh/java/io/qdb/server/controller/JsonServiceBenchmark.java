@@ -0,0 +1,60 @@
+/*
+ * Copyright 2013 David Tinker
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package io.qdb.server.controller;
+
+import io.qdb.server.BenchServer;
+import org.openjdk.jmh.annotations.*;
+
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Rendering the per message JSON headers written by the message streaming loop. Each operation creates a
+ * header the way {@link MessageStreamer} does and converts it to JSON.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class JsonServiceBenchmark {
+
+    @Param({"false", "true"})
+    public boolean borg;
+
+    private JsonService jsonService;
+    private byte[] payload;
+    private String[] routingKeys;
+    private long id = 1;
+
+    @Setup
+    public void setup() {
+        jsonService = new JsonService(false);
+        payload = BenchServer.payload(0, 100);
+        routingKeys = new String[100];
+        for (int i = 0; i < routingKeys.length; i++) routingKeys[i] = BenchServer.routingKey(i);
+    }
+
+    @Benchmark
+    public byte[] toJsonMsgHeader() throws IOException {
+        long i = id++;
+        MessageController.MessageHeader h = new MessageController.MessageHeader(null, i,
+                System.currentTimeMillis(), routingKeys[(int)(i % routingKeys.length)], payload);
+        return jsonService.toJsonMsgHeader(h, borg);
+    }
+}
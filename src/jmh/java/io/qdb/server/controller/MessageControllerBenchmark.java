@@ -0,0 +1,115 @@
+/*
+ * Copyright 2013 David Tinker
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package io.qdb.server.controller;
+
+import io.qdb.server.BenchServer;
+import io.qdb.server.model.Queue;
+import org.openjdk.jmh.annotations.*;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Appending batches and streaming messages through {@link MessageController} against a temp dir buffer in each
+ * format. Scores are messages per second. Single appends don't depend on the format and are in
+ * {@link SingleAppendBenchmark}.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class MessageControllerBenchmark {
+
+    public static final int BATCH_SIZE = 100;
+    public static final int LIST_SIZE = 1000;
+
+    @Param({"100", "1000"})
+    public int payloadSize;
+
+    @Param({"json", "binary"})
+    public String format;
+
+    private BenchServer server;
+    private MessageController controller;
+    private Renderer renderer;
+    private Queue queue;
+    private long listFromId;
+    private byte[] batch;
+    private final BenchCall.NullOutputStream out = new BenchCall.NullOutputStream();
+
+    @Setup
+    public void setup() throws IOException {
+        server = new BenchServer();
+        controller = server.get(MessageController.class);
+        renderer = server.get(Renderer.class);
+        queue = server.createQueue("bench");
+        listFromId = server.fill(queue, LIST_SIZE, payloadSize);
+
+        ByteArrayOutputStream bos = new ByteArrayOutputStream();
+        BinaryFrames frames = "binary".equals(format) ? new BinaryFrames() : null;
+        for (int i = 0; i < BATCH_SIZE; i++) {
+            byte[] rk = BenchServer.routingKey(i).getBytes("UTF8");
+            byte[] p = BenchServer.payload(i, payloadSize);
+            if (frames != null) {
+                frames.write(bos, 0, 0, rk, p.length);
+                bos.write(p);
+            } else {
+                bos.write((rk.length + ":").getBytes("UTF8"));
+                bos.write(rk);
+                bos.write(("\n" + p.length + ":").getBytes("UTF8"));
+                bos.write(p);
+                bos.write('\n');
+            }
+        }
+        batch = bos.toByteArray();
+    }
+
+    @TearDown
+    public void tearDown() throws IOException {
+        server.close();
+    }
+
+    private Map<String, String> params(String... nameValues) {
+        Map<String, String> map = new HashMap<String, String>();
+        for (int i = 0; i < nameValues.length; i += 2) map.put(nameValues[i], nameValues[i + 1]);
+        if ("binary".equals(format)) map.put("format", "binary");
+        return map;
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(BATCH_SIZE)
+    public int appendMultiple() throws IOException {
+        Call call = BenchCall.create(renderer, queue, "POST", params("multiple", "true", "summary", "true"), batch,
+                out);
+        controller.create(call);
+        return call.getCode();
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(LIST_SIZE)
+    public long list() throws IOException {
+        Call call = BenchCall.create(renderer, queue, "GET", params("fromId", Long.toString(listFromId)), null,
+                out);
+        controller.list(call, 0, LIST_SIZE);
+        return out.count;
+    }
+}
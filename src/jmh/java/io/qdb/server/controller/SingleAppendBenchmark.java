@@ -0,0 +1,72 @@
+/*
+ * Copyright 2013 David Tinker
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package io.qdb.server.controller;
+
+import io.qdb.server.BenchServer;
+import io.qdb.server.model.Queue;
+import org.openjdk.jmh.annotations.*;
+
+import java.io.IOException;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Appending one message per POST through {@link MessageController} against a temp dir buffer. Scores are
+ * messages per second.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class SingleAppendBenchmark {
+
+    @Param({"100", "1000"})
+    public int payloadSize;
+
+    private BenchServer server;
+    private MessageController controller;
+    private Renderer renderer;
+    private Queue queue;
+    private byte[] payload;
+    private final Map<String, String> params = new HashMap<String, String>();
+    private final BenchCall.NullOutputStream out = new BenchCall.NullOutputStream();
+
+    @Setup
+    public void setup() throws IOException {
+        server = new BenchServer();
+        controller = server.get(MessageController.class);
+        renderer = server.get(Renderer.class);
+        queue = server.createQueue("bench");
+        payload = BenchServer.payload(0, payloadSize);
+        params.put("routingKey", "orders.eu.1");
+    }
+
+    @TearDown
+    public void tearDown() throws IOException {
+        server.close();
+    }
+
+    @Benchmark
+    public int appendSingle() throws IOException {
+        Call call = BenchCall.create(renderer, queue, "POST", params, payload, out);
+        controller.create(call);
+        return call.getCode();
+    }
+}
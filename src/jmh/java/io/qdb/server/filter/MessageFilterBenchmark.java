@@ -0,0 +1,101 @@
+/*
+ * Copyright 2013 David Tinker
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package io.qdb.server.filter;
+
+import io.qdb.buffer.MessageCursor;
+import io.qdb.server.BenchServer;
+import io.qdb.server.model.Queue;
+import org.openjdk.jmh.annotations.*;
+
+import java.io.IOException;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Each {@link MessageFilter} implementation applied to messages read from a temp dir buffer. The filter is called
+ * with the header first and again with the payload if it asks for it, as the output and streaming loops do.
+ * Scores are messages per second.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class MessageFilterBenchmark {
+
+    public static final int MESSAGES = 1000;
+
+    @Param({"none", "routingKey", "grep", "standard", "expr", "json"})
+    public String filter;
+
+    @Param({"100", "1000"})
+    public int payloadSize;
+
+    private MessageFilter mf;
+    private final long[] ids = new long[MESSAGES];
+    private final long[] timestamps = new long[MESSAGES];
+    private final String[] routingKeys = new String[MESSAGES];
+    private final byte[][] payloads = new byte[MESSAGES][];
+
+    @Setup
+    public void setup() throws IOException {
+        BenchServer server = new BenchServer();
+        try {
+            Queue q = server.createQueue("bench");
+            MessageCursor c = server.getBuffer(q).cursor(server.fill(q, MESSAGES, payloadSize));
+            try {
+                for (int i = 0; i < MESSAGES; i++) {
+                    if (!c.next()) throw new IOException("Expected " + MESSAGES + " messages, got " + i);
+                    ids[i] = c.getId();
+                    timestamps[i] = c.getTimestamp();
+                    routingKeys[i] = c.getRoutingKey();
+                    payloads[i] = c.getPayload();
+                }
+            } finally {
+                c.close();
+            }
+
+            Map<String, Object> params = new HashMap<String, Object>();
+            if (!"none".equals(filter)) params.put("filter", filter);
+            if ("routingKey".equals(filter) || "standard".equals(filter)) params.put("routingKey", "orders.#");
+            if ("grep".equals(filter) || "standard".equals(filter)) params.put("grep", "\"type\":\"refund\"");
+            // same messages as standard so the expression evaluator can be compared with it
+            if ("expr".equals(filter)) params.put("where", "routingKey = 'orders.#' and $.type = 'refund'");
+            // BenchServer.fill writes JSON payloads so this selects the same messages as grep
+            if ("json".equals(filter)) params.put("json", "$.type = 'refund'");
+            mf = server.get(MessageFilterFactory.class).createFilter(params, q);
+        } finally {
+            server.close();
+        }
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(MESSAGES)
+    public int accept() {
+        int accepted = 0;
+        for (int i = 0; i < MESSAGES; i++) {
+            MessageFilter.Result r = mf.accept(ids[i], timestamps[i], routingKeys[i], null);
+            if (r == MessageFilter.Result.CHECK_PAYLOAD) {
+                r = mf.accept(ids[i], timestamps[i], routingKeys[i], payloads[i]);
+            }
+            if (r == MessageFilter.Result.ACCEPT) ++accepted;
+        }
+        return accepted;
+    }
+}
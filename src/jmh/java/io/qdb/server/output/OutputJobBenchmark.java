@@ -0,0 +1,108 @@
+/*
+ * Copyright 2013 David Tinker
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package io.qdb.server.output;
+
+import com.google.common.eventbus.Subscribe;
+import io.qdb.server.BenchServer;
+import io.qdb.server.model.Output;
+import io.qdb.server.model.Queue;
+import io.qdb.server.repo.ObjectEventDispatcher;
+import io.qdb.server.repo.Repository;
+import org.openjdk.jmh.annotations.*;
+
+import java.io.IOException;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * {@link OutputJob#processMessages} feeding messages from a temp dir buffer to a {@link NoopOutputHandler}. Each
+ * invocation creates a new output with a limit and waits for the job to disable it when the limit is reached.
+ * Scores are messages per second.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class OutputJobBenchmark {
+
+    public static final int MESSAGES = 10000;
+
+    @Param({"1", "100", "1000"})
+    public int batchSize;
+
+    @Param({"100", "1000"})
+    public int payloadSize;
+
+    private BenchServer server;
+    private Repository repo;
+    private Queue queue;
+    private long firstId;
+    private int outputCount;
+    private volatile String outputId;
+    private volatile CountDownLatch done;
+
+    @Setup
+    public void setup() throws IOException {
+        server = new BenchServer();
+        repo = server.get(Repository.class);
+        queue = server.createQueue("bench");
+        firstId = server.fill(queue, MESSAGES, payloadSize);
+        server.get(OutputManager.class);
+        server.get(ObjectEventDispatcher.class).register(this);
+    }
+
+    @TearDown
+    public void tearDown() throws IOException {
+        server.get(OutputManager.class).close();
+        server.close();
+    }
+
+    @Subscribe
+    public void handleRepoEvent(Repository.ObjectEvent ev) {
+        if (ev.value instanceof Output && ev.value.getId().equals(outputId) && !((Output)ev.value).isEnabled()) {
+            done.countDown();
+        }
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(MESSAGES)
+    public void processMessages() throws Exception {
+        Output o = new Output();
+        o.setId("bench" + (++outputCount));
+        o.setQueue(queue.getId());
+        o.setType(NoopOutputHandler.class.getName());
+        o.setEnabled(true);
+        o.setUpdateIntervalMs(1000);
+        o.setAtId(firstId);
+        o.setFromId(firstId);
+        o.setToId(-1);
+        o.setLimit(MESSAGES);
+        Map<String, Object> params = new HashMap<String, Object>();
+        params.put("batchSize", batchSize);
+        o.setParams(params);
+
+        done = new CountDownLatch(1);
+        outputId = o.getId();
+        repo.updateOutput(o);
+        if (!done.await(60, TimeUnit.SECONDS)) throw new IllegalStateException("Timed out waiting for " + o);
+        repo.deleteOutput(o.getId());
+    }
+}
@@ -16,7 +16,6 @@
 
 package io.qdb.server;
 
-import com.google.common.eventbus.EventBus;
 import com.google.inject.AbstractModule;
 import com.google.inject.Key;
 import com.google.inject.TypeLiteral;
@@ -55,7 +54,6 @@ public class QdbServerModule extends AbstractModule {
     @Override
     protected void configure() {
         bindProperties();
-        bind(EventBus.class).toInstance(new EventBus());
         bind(Connection.class).toProvider(ConnectionProvider.class);
         bind(Repository.class).to(RepositoryImpl.class);
         bind(new TypeLiteral<KeyValueStore<String, ModelObject>>(){}).toProvider(KeyValueStoreProvider.class);
@@ -5,7 +5,11 @@ import io.qdb.server.input.InputStatusMonitor;
 import io.qdb.server.output.OutputManager;
 import io.qdb.server.output.OutputStatusMonitor;
 import io.qdb.server.queue.QueueManager;
+import io.qdb.server.queue.QueueScanner;
 import io.qdb.server.queue.QueueStatusMonitor;
+import io.qdb.server.queue.SubscriberRegistry;
+import io.qdb.server.repo.ObjectEventDispatcher;
+import io.qdb.server.repo.ProgressStore;
 import org.simpleframework.transport.connect.Connection;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
@@ -27,18 +31,29 @@ public class ShutdownManager implements Closeable {
     private final OutputManager outputManager;
     private final InputManager inputManager;
     private final QueueManager queueManager;
+    private final SubscriberRegistry subscriberRegistry;
+    private final QueueScanner queueScanner;
+    private final ProgressStore progressStore;
+    private final ObjectEventDispatcher eventDispatcher;
     private final QueueStatusMonitor queueStatusMonitor;
     private final OutputStatusMonitor outputStatusMonitor;
     private final InputStatusMonitor inputStatusMonitor;
 
     @Inject
     public ShutdownManager(Connection connection, OutputManager outputManager, InputManager inputManager,
-                           QueueManager queueManager, QueueStatusMonitor queueStatusMonitor,
+                           QueueManager queueManager, SubscriberRegistry subscriberRegistry,
+                           QueueScanner queueScanner, ProgressStore progressStore,
+                           ObjectEventDispatcher eventDispatcher,
+                           QueueStatusMonitor queueStatusMonitor,
                            OutputStatusMonitor outputStatusMonitor, InputStatusMonitor inputStatusMonitor) {
         this.connection = connection;
         this.outputManager = outputManager;
         this.inputManager = inputManager;
         this.queueManager = queueManager;
+        this.subscriberRegistry = subscriberRegistry;
+        this.queueScanner = queueScanner;
+        this.progressStore = progressStore;
+        this.eventDispatcher = eventDispatcher;
         this.queueStatusMonitor = queueStatusMonitor;
         this.outputStatusMonitor = outputStatusMonitor;
         this.inputStatusMonitor = inputStatusMonitor;
@@ -64,6 +79,26 @@ public class ShutdownManager implements Closeable {
         } catch (Exception e) {
             log.error("Error closing input manager: " + e, e);
         }
+        try {
+            eventDispatcher.close();
+        } catch (Exception e) {
+            log.error("Error closing event dispatcher: " + e, e);
+        }
+        try {
+            progressStore.close();
+        } catch (Exception e) {
+            log.error("Error closing progress store: " + e, e);
+        }
+        try {
+            subscriberRegistry.close();
+        } catch (Exception e) {
+            log.error("Error closing subscriber registry: " + e, e);
+        }
+        try {
+            queueScanner.close();
+        } catch (Exception e) {
+            log.error("Error closing queue scanner: " + e, e);
+        }
         try {
             queueManager.close();
         } catch (Exception e) {
@@ -0,0 +1,141 @@
+/*
+ * Copyright 2013 David Tinker
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package io.qdb.server.controller;
+
+import io.qdb.buffer.MessageBuffer;
+import io.qdb.server.databind.DurationParser;
+import io.qdb.server.queue.QueueAggregator;
+import io.qdb.server.queue.QueueManager;
+
+import javax.inject.Inject;
+import javax.inject.Singleton;
+import java.io.IOException;
+import java.util.Date;
+import java.util.Map;
+
+/**
+ * Counts messages and payload bytes over a range of a queue, optionally grouped by routing key or time interval.
+ * Accepts the same range (from, fromId, to, toId) and filter (routingKey, grep, where etc.) parameters as
+ * messages.
+ */
+@Singleton
+public class AggregateController extends CrudController {
+
+    private final QueueManager queueManager;
+    private final QueueAggregator queueAggregator;
+
+    public static class AggregateDTO {
+        public long fromId;
+        public long toId;
+        public long count;
+        public long bytes;
+        public Date minTimestamp;
+        public Date maxTimestamp;
+        public int pieces;
+        public long millis;
+        public GroupDTO[] groups;
+    }
+
+    public static class GroupDTO {
+        public Object key;
+        public long count;
+        public long bytes;
+        public Date minTimestamp;
+        public Date maxTimestamp;
+        public long firstId;
+        public long lastId;
+
+        GroupDTO(QueueAggregator.Group g, boolean timeKey) {
+            key = timeKey ? new Date((Long)g.key) : g.key;
+            count = g.count;
+            bytes = g.bytes;
+            minTimestamp = new Date(g.minTimestamp);
+            maxTimestamp = new Date(g.maxTimestamp);
+            firstId = g.firstId;
+            lastId = g.lastId;
+        }
+    }
+
+    @Inject
+    public AggregateController(JsonService jsonService, QueueManager queueManager,
+                QueueAggregator queueAggregator) {
+        super(jsonService);
+        this.queueManager = queueManager;
+        this.queueAggregator = queueAggregator;
+    }
+
+    @Override
+    protected void list(Call call, int offset, int limit) throws IOException {
+        MessageBuffer mb = queueManager.getBuffer(call.getQueue());
+        if (mb == null || !mb.isOpen()) {
+            // probably we are busy starting up and haven't synced this queue yet or are shutting down
+            call.setCode(503, "Queue is not available, please try again later");
+            return;
+        }
+
+        QueueAggregator.Query query = new QueueAggregator.Query();
+        QueueAggregator.Result r;
+        long start = System.currentTimeMillis();
+        try {
+            query.from = call.getTimestamp("from");
+            query.fromId = query.from >= 0 ? -1 : call.getLong("fromId", -1);
+            query.to = call.getTimestamp("to");
+            query.toId = call.getLong("toId", -1);
+            query.groupBy = call.getString("groupBy");
+            if (query.groupBy != null && query.groupBy.length() == 0) query.groupBy = null;
+            if ("time".equals(query.groupBy)) {
+                String interval = call.getString("interval");
+                if (interval == null) throw new IllegalArgumentException("interval is required to group by time");
+                query.intervalMs = DurationParser.parse(interval) * 1000L;
+                if (query.intervalMs <= 0) throw new IllegalArgumentException("interval must be at least 1 second");
+            } else if ("routingKey".equals(query.groupBy)) {
+                query.words = call.getInt("words", 0);
+            } else if (query.groupBy != null) {
+                throw new IllegalArgumentException("Invalid groupBy [" + query.groupBy + "], expected routingKey " +
+                        "or time");
+            }
+            Map params = call.getRequest().getQuery();
+            query.filterParams = params.isEmpty() ? null : params;
+            query.parallel = call.getBoolean("parallel");
+            r = queueAggregator.aggregate(call.getQueue(), mb, query);
+        } catch (IllegalArgumentException e) {
+            call.setCode(422, e.getMessage());
+            return;
+        }
+
+        AggregateDTO dto = new AggregateDTO();
+        dto.fromId = r.fromId;
+        dto.toId = r.toId;
+        dto.pieces = r.pieces;
+        dto.groups = new GroupDTO[r.groups.size()];
+        long min = Long.MAX_VALUE, max = Long.MIN_VALUE;
+        for (int i = 0; i < dto.groups.length; i++) {
+            QueueAggregator.Group g = r.groups.get(i);
+            dto.groups[i] = new GroupDTO(g, query.intervalMs > 0);
+            dto.count += g.count;
+            dto.bytes += g.bytes;
+            min = Math.min(min, g.minTimestamp);
+            max = Math.max(max, g.maxTimestamp);
+        }
+        if (dto.count > 0) {
+            dto.minTimestamp = new Date(min);
+            dto.maxTimestamp = new Date(max);
+        }
+        dto.millis = System.currentTimeMillis() - start;
+        call.setJson(dto);
+    }
+}
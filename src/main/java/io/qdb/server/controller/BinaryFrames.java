@@ -0,0 +1,121 @@
+/*
+ * Copyright 2013 David Tinker
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package io.qdb.server.controller;
+
+import org.simpleframework.http.ContentType;
+import org.simpleframework.http.Request;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+
+/**
+ * Binary framing for streaming messages to and from clients. Each frame is a fixed 24 byte little endian
+ * header (long id, long timestamp, int routing key length, int payload length) followed by the UTF8 routing key
+ * and the payload. Frames with id 0 sent by the server are keep alives and have no routing key or payload.
+ * When appending messages the id is ignored and a timestamp of 0 means use the server's time.
+ */
+class BinaryFrames {
+
+    public static final String CONTENT_TYPE = "application/x-qdb-frames";
+    public static final int HEADER_SIZE = 8 + 8 + 4 + 4;
+
+    private final byte[] header = new byte[HEADER_SIZE];
+    private final ByteBuffer buf = ByteBuffer.wrap(header).order(ByteOrder.LITTLE_ENDIAN);
+
+    private long id;
+    private long timestamp;
+    private int routingKeySize;
+    private int payloadSize;
+
+    /**
+     * Does the request want messages streamed as binary frames (format=binary or Accept header) ?
+     */
+    public static boolean isRequested(Call call) throws IOException {
+        String format = call.getString("format");
+        if (format != null) return "binary".equals(format);
+        String accept = call.getRequest().getValue("Accept");
+        return accept != null && accept.contains(CONTENT_TYPE);
+    }
+
+    /**
+     * Is the request body binary frames (format=binary or Content-Type) ?
+     */
+    public static boolean isPosted(Call call) throws IOException {
+        String format = call.getString("format");
+        if (format != null) return "binary".equals(format);
+        ContentType ct = call.getRequest().getContentType();
+        return ct != null && CONTENT_TYPE.equals(ct.getPrimary() + "/" + ct.getSecondary());
+    }
+
+    public void write(OutputStream out, long id, long timestamp, byte[] routingKey, int payloadSize)
+            throws IOException {
+        buf.clear();
+        buf.putLong(id).putLong(timestamp).putInt(routingKey == null ? 0 : routingKey.length).putInt(payloadSize);
+        out.write(header);
+        if (routingKey != null) out.write(routingKey);
+    }
+
+    public void writeKeepAlive(OutputStream out) throws IOException {
+        write(out, 0, 0, null, 0);
+    }
+
+    /**
+     * Read the next frame header from in returning false on EOF. Throws IllegalArgumentException if the stream
+     * ends part way through the header or if the lengths are negative.
+     */
+    public boolean readHeader(InputStream in) throws IOException {
+        int todo = HEADER_SIZE;
+        while (todo > 0) {
+            int sz = in.read(header, HEADER_SIZE - todo, todo);
+            if (sz < 0) {
+                if (todo == HEADER_SIZE) return false;
+                throw new IllegalArgumentException("Expected " + HEADER_SIZE + " bytes, only read " +
+                        (HEADER_SIZE - todo) + " while reading frame header");
+            }
+            todo -= sz;
+        }
+        buf.clear();
+        id = buf.getLong();
+        timestamp = buf.getLong();
+        routingKeySize = buf.getInt();
+        payloadSize = buf.getInt();
+        if (routingKeySize < 0 || payloadSize < 0) {
+            throw new IllegalArgumentException("Invalid routing key length " + routingKeySize + " or payload length " +
+                    payloadSize + " in frame header");
+        }
+        return true;
+    }
+
+    public long getId() {
+        return id;
+    }
+
+    public long getTimestamp() {
+        return timestamp;
+    }
+
+    public int getRoutingKeySize() {
+        return routingKeySize;
+    }
+
+    public int getPayloadSize() {
+        return payloadSize;
+    }
+}
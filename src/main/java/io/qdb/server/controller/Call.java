@@ -41,6 +41,7 @@ public class Call {
 
     private int currentSegment;
     private int code = 200;
+    private boolean async;
 
     private Auth auth;
     private Database database;
@@ -199,4 +200,15 @@ public class Call {
     public void setQueue(Queue queue) {
         this.queue = queue;
     }
+
+    /**
+     * Has the response been handed off to another thread to complete and close?
+     */
+    public boolean isAsync() {
+        return async;
+    }
+
+    public void setAsync(boolean async) {
+        this.async = async;
+    }
 }
@@ -27,6 +27,7 @@ import io.qdb.server.input.InputStatusMonitor;
 import io.qdb.server.model.Input;
 import io.qdb.server.model.Queue;
 import io.qdb.server.monitor.Status;
+import io.qdb.server.repo.ProgressStore;
 import io.qdb.server.repo.Repository;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
@@ -43,6 +44,7 @@ public class InputController extends CrudController {
     private final Repository repo;
     private final InputHandlerFactory handlerFactory;
     private final InputStatusMonitor inputStatusMonitor;
+    private final ProgressStore progressStore;
 
     private static final Logger log = LoggerFactory.getLogger(InputController.class);
 
@@ -122,11 +124,12 @@ public class InputController extends CrudController {
 
     @Inject
     public InputController(JsonService jsonService, Repository repo, InputHandlerFactory handlerFactory,
-                           InputStatusMonitor inputStatusMonitor) {
+                           InputStatusMonitor inputStatusMonitor, ProgressStore progressStore) {
         super(jsonService);
         this.repo = repo;
         this.handlerFactory = handlerFactory;
         this.inputStatusMonitor = inputStatusMonitor;
+        this.progressStore = progressStore;
     }
 
     @SuppressWarnings("unchecked")
@@ -175,6 +178,7 @@ public class InputController extends CrudController {
 
     private InputDTO createInputDTO(Call call, String id, Input in) throws IOException {
         boolean borg = call.getBoolean("borg");
+        in = progressStore.merge(in);
         InputDTO dto = new InputDTO(id, in, borg);
         if (dto.lastMessageTimestamp != null) {
             long ms = System.currentTimeMillis() - dto.lastMessageTimestamp.getTime();
@@ -230,7 +234,7 @@ public class InputController extends CrudController {
                     call.setCode(409, createInputDTO(call, id, in));
                     return;
                 }
-                in = in.deepCopy();
+                in = progressStore.merge(in).copy();   // start from the latest progress so it isn't lost
             }
 
             boolean changed = create;
@@ -295,6 +299,7 @@ public class InputController extends CrudController {
                     in.setParams(dto.params);
                     changed = true;
                 } else {
+                    params = new HashMap<String, Object>(params);   // the original's params are shared with our copy
                     for (Map.Entry<String, Object> e : dto.params.entrySet()) {
                         String key = e.getKey();
                         Object v = e.getValue();
@@ -304,6 +309,7 @@ public class InputController extends CrudController {
                             changed = true;
                         }
                     }
+                    in.setParams(params);
                 }
             }
 
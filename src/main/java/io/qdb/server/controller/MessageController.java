@@ -18,12 +18,13 @@ package io.qdb.server.controller;
 
 import io.qdb.buffer.MessageBuffer;
 import io.qdb.buffer.MessageCursor;
-import io.qdb.server.databind.DateTimeParser;
 import io.qdb.server.filter.MessageFilter;
 import io.qdb.server.filter.MessageFilterFactory;
 import io.qdb.server.model.Queue;
+import io.qdb.server.queue.MessageBatch;
 import io.qdb.server.queue.QueueManager;
-import org.simpleframework.http.ContentType;
+import io.qdb.server.queue.QueueScanner;
+import io.qdb.server.queue.SubscriberRegistry;
 import org.simpleframework.http.Request;
 import org.simpleframework.http.Response;
 import org.slf4j.Logger;
@@ -42,8 +43,13 @@ public class MessageController extends CrudController {
 
     private static final Logger log = LoggerFactory.getLogger(MessageController.class);
 
+    private static final int MAX_ROUTING_KEY_SIZE = 1024;
+    private static final int MAX_BATCH_BYTES = 4 * 1024 * 1024;
+
     private final QueueManager queueManager;
     private final MessageFilterFactory messageFilterFactory;
+    private final SubscriberRegistry subscriberRegistry;
+    private final QueueScanner queueScanner;
 
     public static class CreateDTO {
 
@@ -80,10 +86,13 @@ public class MessageController extends CrudController {
 
     @Inject
     public MessageController(JsonService jsonService, QueueManager queueManager,
-                             MessageFilterFactory messageFilterFactory) {
+                             MessageFilterFactory messageFilterFactory, SubscriberRegistry subscriberRegistry,
+                             QueueScanner queueScanner) {
         super(jsonService);
         this.queueManager = queueManager;
         this.messageFilterFactory = messageFilterFactory;
+        this.subscriberRegistry = subscriberRegistry;
+        this.queueScanner = queueScanner;
     }
 
     @Override
@@ -96,7 +105,11 @@ public class MessageController extends CrudController {
         }
 
         if (call.getBoolean("multiple")) {
-            createMultiple(call, mb);
+            try {
+                createMultiple(call, mb);
+            } finally {
+                subscriberRegistry.appended(call.getQueue());
+            }
         } else {
             createSingle(call, mb);
         }
@@ -114,11 +127,11 @@ public class MessageController extends CrudController {
             if (contentLength < 0) {
                 byte[] payload = readAll(request.getInputStream());
                 contentLength = payload.length;
-                id = mb.append(timestamp, routingKey, payload);
+                id = queueManager.append(call.getQueue(), mb, timestamp, routingKey, payload);
             } else {
                 ReadableByteChannel in = request.getByteChannel();
                 try {
-                    id = mb.append(timestamp, routingKey, in, contentLength);
+                    id = queueManager.append(call.getQueue(), mb, timestamp, routingKey, in, contentLength);
                 } finally {
                     close(in);
                 }
@@ -130,6 +143,7 @@ public class MessageController extends CrudController {
         if (err != null) {
             call.setCode(422, err.getMessage());
         } else {
+            subscriberRegistry.appended(call.getQueue());
             call.setCode(201, new CreateDTO(id, new Date(timestamp), contentLength, routingKey));
         }
     }
@@ -150,38 +164,100 @@ public class MessageController extends CrudController {
     }
 
     private void createMultiple(Call call, MessageBuffer mb) throws IOException {
+        Queue q = call.getQueue();
         int maxPayloadSize = mb.getMaxPayloadSize();
-        InputStream in = call.getRequest().getInputStream();
-        List<CreateDTO> created = new ArrayList<CreateDTO>();
+        boolean summary = call.getBoolean("summary");
+        BinaryFrames frames = BinaryFrames.isPosted(call) ? new BinaryFrames() : null;
+        InputStream in = new BufferedInputStream(call.getRequest().getInputStream(), 65536);
+        MessageBatch batch = new MessageBatch();
+        BatchSummaryDTO totals = new BatchSummaryDTO();
+        List<CreateDTO> created = summary ? null : new ArrayList<CreateDTO>();
+        byte[] rk = new byte[MAX_ROUTING_KEY_SIZE];
         try {
             for (;;) {
                 String routingKey;
-                byte[] data = nextNetstring(in, 1024, "routing key");
-                if (data == null) break;
-                routingKey = new String(data, "UTF8");
-
-                data = nextNetstring(in, maxPayloadSize, "payload");
-                if (data == null) {
-                    throw new IllegalArgumentException("Expected payload for message with routing key [" +
-                            routingKey + "]");
+                int len;
+                long timestamp = 0;
+                if (frames != null) {
+                    if (!frames.readHeader(in)) break;
+                    len = checkLength(frames.getRoutingKeySize(), MAX_ROUTING_KEY_SIZE, "routing key");
+                    readFully(in, rk, len, "routing key");
+                    routingKey = new String(rk, 0, len, "UTF8");
+                    len = checkLength(frames.getPayloadSize(), maxPayloadSize, "payload");
+                    timestamp = frames.getTimestamp();
+                } else {
+                    len = nextNetstringLength(in, MAX_ROUTING_KEY_SIZE, "routing key");
+                    if (len < 0) break;
+                    readFully(in, rk, len, "routing key");
+                    routingKey = new String(rk, 0, len, "UTF8");
+
+                    len = nextNetstringLength(in, maxPayloadSize, "payload");
+                    if (len < 0) {
+                        throw new IllegalArgumentException("Expected payload for message with routing key [" +
+                                routingKey + "]");
+                    }
                 }
-
-                long timestamp = System.currentTimeMillis();
-                created.add(new CreateDTO(mb.append(timestamp, routingKey, data), new Date(timestamp), data.length,
-                        routingKey));
+                batch.add(timestamp, routingKey, in, len);
+                if (batch.getPayloadBytes() >= MAX_BATCH_BYTES) appendBatch(q, mb, batch, totals, created);
             }
         } catch (IllegalArgumentException e) {
-            call.setCode(422, new MultipleErrorDTO(422, e.getMessage(), created.isEmpty() ? null : created));
+            // messages before the bad one are still appended as they would have been one at a time
+            appendBatch(q, mb, batch, totals, created);
+            MultipleErrorDTO dto = new MultipleErrorDTO(422, e.getMessage(),
+                    created == null || created.isEmpty() ? null : created);
+            if (summary && totals.count > 0) dto.summary = totals;
+            call.setCode(422, dto);
             return;
         } finally {
             close(in);
         }
+        appendBatch(q, mb, batch, totals, created);
 
-        call.setCode(created.size() > 0 ? 201 : 200, created);
+        int code = totals.count > 0 ? 201 : 200;
+        if (summary) call.setCode(code, totals);
+        else call.setCode(code, created);
+    }
+
+    /**
+     * Append batch to mb, the buffer for q, in one group commit, record what happened in totals and created
+     * (if not null) and clear the batch.
+     */
+    private void appendBatch(Queue q, MessageBuffer mb, MessageBatch batch, BatchSummaryDTO totals,
+                             List<CreateDTO> created) throws IOException {
+        int n = batch.size();
+        if (n == 0) return;
+        long timestamp = System.currentTimeMillis();
+        queueManager.append(q, mb, batch, timestamp);
+        if (totals.count == 0) {
+            totals.firstId = batch.getId(0);
+            totals.timestamp = new Date(timestamp);
+        }
+        totals.lastId = batch.getId(n - 1);
+        totals.count += n;
+        totals.bytes += batch.getPayloadBytes();
+        if (created != null) {
+            for (int i = 0; i < n; i++) {
+                created.add(new CreateDTO(batch.getId(i), new Date(batch.getTimestamp(i)), batch.getPayloadSize(i),
+                        batch.getRoutingKey(i)));
+            }
+        }
+        batch.clear();
+    }
+
+    /**
+     * Returned by multiple append with summary=true instead of an entry for each message.
+     */
+    public static class BatchSummaryDTO {
+        public long firstId;
+        public long lastId;
+        public int count;
+        public long bytes;
+        public Date timestamp;
     }
 
     public static class MultipleErrorDTO extends Renderer.StatusMsg {
         public List<CreateDTO> created;
+        public BatchSummaryDTO summary;
         public MultipleErrorDTO(int responseCode, String message, List<CreateDTO> created) {
             super(responseCode, message);
             this.created = created;
@@ -189,14 +265,14 @@ public class MessageController extends CrudController {
     }
 
     /**
-     * Read newline terminated nestring from in, returning null on EOF.
+     * Read the length and ':' of a newline terminated nestring from in, returning -1 on EOF.
      * See http://en.wikipedia.org/wiki/Netstrings. Throws IllegalArgumentException on invalid input.
      */
-    private byte[] nextNetstring(InputStream in, int maxSize, String item) throws IOException, IllegalArgumentException {
+    private int nextNetstringLength(InputStream in, int maxSize, String item) throws IOException, IllegalArgumentException {
         int b;
         for (;;) {
             b = in.read();
-            if (b == -1) return null;
+            if (b == -1) return -1;
             if (b != '\n' && b != '\r') break;
         }
 
@@ -209,14 +285,19 @@ public class MessageController extends CrudController {
                 throw new IllegalArgumentException("Invalid length found while reading " + item);
             }
         }
+        return checkLength(len, maxSize, item);
+    }
+
+    private int checkLength(int len, int maxSize, String item) {
         if (len > maxSize) {
             throw new IllegalArgumentException("Length " + len + " exceeds max " + maxSize +
                     " while reading " + item);
         }
+        return len;
+    }
 
-        byte[] data = new byte[len];
-        int todo = len;
-        for (; todo > 0; ) {
+    private void readFully(InputStream in, byte[] data, int len, String item) throws IOException {
+        for (int todo = len; todo > 0; ) {
             int sz = in.read(data, len - todo, todo);
             if (sz < 0) {
                 throw new IllegalArgumentException("Expected " + len + " bytes, only read " + (len - todo) +
@@ -224,7 +305,6 @@ public class MessageController extends CrudController {
             }
             todo -= sz;
         }
-        return data;
     }
 
     private int toDigit(int b) {
@@ -262,96 +342,57 @@ public class MessageController extends CrudController {
             return;
         }
 
-        ContentType ct = call.getRequest().getContentType();
-
-        int timeoutMs = call.getInt("timeoutMs", 0);
-        byte[] keepAlive = call.getUTF8Bytes("keepAlive", "\n");
-        int keepAliveMs = call.getInt("keepAliveMs", 29000);
-        byte[] separator = call.getUTF8Bytes("separator", "\n");
-        boolean noHeaders = call.getBoolean("noHeaders");
-        boolean noPayload = call.getBoolean("noPayload");
-        boolean noLengthPrefix = call.getBoolean("noLengthPrefix");
-        boolean borg = call.getBoolean("borg");
-
-        boolean single = call.getBoolean("single");
-        if (single) {
-            limit = 1;
-            keepAliveMs = Integer.MAX_VALUE;
+        PayloadProjection projection;
+        try {
+            projection = PayloadProjection.create(call);
+        } catch (IllegalArgumentException e) {
+            call.setCode(422, e.getMessage());
+            return;
+        }
+
+        if (call.getBoolean("export")) {
+            export(call, mb);
+            return;
         }
 
         Date from = call.getDate("from");
         long fromId = from != null ? -1 : call.getLong("fromId", mb.getNextId());
-
-        long to = call.getTimestamp("to");
-        long toId = to > 0 ? -1 : call.getLong("toId", -1);
-
-        Response response = call.getResponse();
-        response.set("Content-Type", single ? q.getContentType() : "application/octet-stream");
-        OutputStream out = response.getOutputStream();
-
         MessageCursor c = from != null ? mb.cursorByTimestamp(from.getTime()) : mb.cursor(fromId);
 
-        int nextKeepAliveMs = keepAliveMs;
-        for (int sent = 0; limit == 0 || sent < limit; ) {
-            try {
-                if (timeoutMs <= 0) {
-                    while (!c.next(single ? 0 : nextKeepAliveMs)) {
-                        out.write(keepAlive);
-                        out.flush();
-                        nextKeepAliveMs = keepAliveMs;
-                    }
-                } else {
-                    int ms = timeoutMs;
-                    while (true) {
-                        int waitMs = Math.min(ms, nextKeepAliveMs);
-                        if (c.next(waitMs)) break;
-                        if ((ms -= waitMs) <= 0) break;
-                        out.write(keepAlive);
-                        out.flush();
-                        nextKeepAliveMs = keepAliveMs;
-                    }
-                    if (ms <= 0) break;
-                }
-            } catch (InterruptedException e) {
-                break;
-            }
-
-            if (to > 0 && c.getTimestamp() >= to || toId > 0 && c.getId() >= toId) break;
-
-            long id = c.getId();
-            long timestamp = c.getTimestamp();
-            String routingKey = c.getRoutingKey();
-            byte[] payload = null;
-            MessageFilter.Result result = mf.accept(id, timestamp, routingKey, null);
-            if (result == MessageFilter.Result.CHECK_PAYLOAD) {
-                result = mf.accept(id, timestamp, routingKey, payload = c.getPayload());
-            }
+        MessageStreamer streamer = new MessageStreamer(call, mb, c, fromId, mf, queueManager.getRoutingKeyIndex(q),
+                jsonService, queueManager.getPayloadTransfer(q), projection, limit);
+        if (call.getBoolean("async")) streamer.start(subscriberRegistry);
+        else streamer.run();
+    }
 
-            if (result == MessageFilter.Result.ACCEPT) {
-                if (single) {
-                    response.setContentLength(noPayload ? 0 : c.getPayloadSize());
-                    response.set("QDB-Id", Long.toString(c.getId()));
-                    response.set("QDB-Timestamp", borg
-                            ? Long.toString(timestamp)
-                            : DateTimeParser.INSTANCE.formatTimestamp(new Date(timestamp)));
-                    response.set("QDB-RoutingKey", routingKey);
-                    if (!noPayload) out.write(payload == null ? c.getPayload() : payload);
-                } else {
-                    if (!noHeaders) {
-                        MessageHeader h = new MessageHeader(c, id, timestamp, routingKey, payload);
-                        byte[] data = jsonService.toJsonMsgHeader(h, borg);
-                        if (!noLengthPrefix) out.write((data.length + ":").getBytes("UTF8"));
-                        out.write(data);
-                        out.write(10);
-                    }
-                    if (!noPayload) {
-                        out.write(payload == null ? c.getPayload() : payload);
-                        out.write(separator);
-                    }
-                    nextKeepAliveMs = 100;
-                }
-                ++sent;
-            }
+    /**
+     * Stream everything from the oldest message (or from/fromId) up to the newest message at the time of the
+     * request (or to/toId) reading the buffer in parallel. The stream is in the same format as a normal
+     * streaming GET but there are no keep alives and it ends at the end of the range.
+     */
+    private void export(Call call, MessageBuffer mb) throws IOException {
+        if (call.getBoolean("single") || call.getBoolean("async") || call.getString("limit") != null) {
+            call.setCode(422, "export cannot be used with single, async or limit");
+            return;
         }
+        long from = call.getTimestamp("from");
+        long fromId = from >= 0 ? QueueScanner.findFirstId(mb, from) : call.getLong("fromId", -1);
+        if (fromId < 0 && from < 0) fromId = QueueScanner.findFirstId(mb, -1);
+        long toId = mb.getNextId();
+        long id = call.getLong("toId", -1);
+        if (id >= 0 && id < toId) toId = id;
+        boolean binary = BinaryFrames.isRequested(call);
+
+        MessageExporter exporter;
+        try {
+            exporter = new MessageExporter(call, mb, queueScanner, messageFilterFactory, jsonService, fromId, toId,
+                    call.getTimestamp("to"), binary);
+        } catch (IllegalArgumentException e) {
+            call.setCode(422, e.getMessage());
+            return;
+        }
+        Response response = call.getResponse();
+        response.set("Content-Type", binary ? BinaryFrames.CONTENT_TYPE : "application/octet-stream");
+        exporter.run(response.getOutputStream());
     }
 }
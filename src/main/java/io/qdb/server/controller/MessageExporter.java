@@ -0,0 +1,222 @@
+/*
+ * Copyright 2013 David Tinker
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package io.qdb.server.controller;
+
+import io.qdb.buffer.MessageBuffer;
+import io.qdb.buffer.MessageCursor;
+import io.qdb.server.filter.MessageFilter;
+import io.qdb.server.filter.MessageFilterFactory;
+import io.qdb.server.queue.QueueScanner;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Bulk export of a range of a queue for GET .../messages?export=true. The range is split at the buffer's file
+ * boundaries and the pieces are read, filtered and encoded in parallel by the {@link QueueScanner}. Each piece
+ * is encoded into blocks of whole messages which are written to the response in id order or, if the client
+ * does not care (unordered=true), in whatever order they are ready. Only a few pieces are read at once so memory
+ * use is bounded no matter how big the range is. If the client stops reading for longer than the scanner's export
+ * stall timeout the export is aborted so the scanner threads are not tied up waiting for it.
+ */
+class MessageExporter {
+
+    private static final int BLOCK_SIZE = 256 * 1024;
+    private static final int BLOCKS_PER_PIECE = 4;  // encoded blocks that may be waiting for each piece being read
+    private static final Object END = new Object();
+    private static final int POLL_MS = 250;
+
+    private final QueueScanner scanner;
+    private final MessageBuffer mb;
+    private final long to;
+    private final boolean unordered;
+    private final int window;
+    private final int stallTimeoutMs;
+    private final List<Piece> pieces = new ArrayList<Piece>();
+    private final BlockingQueue<Object> shared;
+    private volatile long lastWrite;
+    private volatile Throwable error;
+
+    /**
+     * Export the messages from fromId up to toId (exclusive) and before timestamp to (if more than 0). Each
+     * piece gets its own filter and writer created from the call parameters as these are not thread safe.
+     * @throws IllegalArgumentException if the filter or projection parameters are invalid
+     */
+    MessageExporter(Call call, MessageBuffer mb, QueueScanner scanner, MessageFilterFactory messageFilterFactory,
+                JsonService jsonService, long fromId, long toId, long to, boolean binary)
+            throws IOException, IllegalArgumentException {
+        this.scanner = scanner;
+        this.mb = mb;
+        this.to = to;
+        unordered = call.getBoolean("unordered");
+        window = Math.max(scanner.getThreads(), 1);
+        stallTimeoutMs = scanner.getExportStallTimeoutMs();
+        shared = unordered ? new ArrayBlockingQueue<Object>(window * BLOCKS_PER_PIECE) : null;
+        if (fromId < 0 || fromId >= toId) return;
+
+        Map params = call.getRequest().getQuery();
+        List<Long> starts = QueueScanner.split(mb, fromId, toId, to);
+        for (int i = 0; i < starts.size(); i++) {
+            pieces.add(new Piece(starts.get(i), i + 1 < starts.size() ? starts.get(i + 1) : toId,
+                    messageFilterFactory.createFilter(params, call.getQueue()),
+                    new MessageWriter(call, jsonService, PayloadProjection.create(call), binary),
+                    shared != null ? shared : new ArrayBlockingQueue<Object>(BLOCKS_PER_PIECE)));
+        }
+    }
+
+    /**
+     * Write all of the messages to out using the calling thread.
+     */
+    public void run(OutputStream out) throws IOException {
+        int n = pieces.size();
+        int next = 0;   // the next piece to start reading
+        lastWrite = System.currentTimeMillis();
+        try {
+            for (; next < window && next < n; next++) start(pieces.get(next));
+            if (unordered) {
+                for (int done = 0; done < n; ) {
+                    Object o = take(shared);
+                    if (o == END) {
+                        ++done;
+                        if (next < n) start(pieces.get(next++));
+                    } else {
+                        write(out, o);
+                    }
+                }
+            } else {
+                for (Piece p : pieces) {
+                    for (Object o; (o = take(p.blocks)) != END; ) write(out, o);
+                    if (next < n) start(pieces.get(next++));
+                }
+            }
+            out.flush();
+        } catch (InterruptedException e) {
+            throw new IOException("Interrupted");
+        } finally {
+            // stop reading if the client has gone away or something went wrong
+            for (Piece p : pieces) if (p.future != null) p.future.cancel(true);
+        }
+    }
+
+    private void start(Piece p) {
+        p.future = scanner.submit(p);
+    }
+
+    /**
+     * Get the next block or END from q or the exception that stopped any of the pieces.
+     */
+    private Object take(BlockingQueue<Object> q) throws InterruptedException {
+        for (;;) {
+            Throwable t = error;
+            if (t != null) return t;
+            Object o = q.poll(POLL_MS, TimeUnit.MILLISECONDS);
+            if (o != null) return o;
+        }
+    }
+
+    private void write(OutputStream out, Object o) throws IOException {
+        if (o instanceof byte[]) {
+            out.write((byte[])o);
+            lastWrite = System.currentTimeMillis();
+        } else {
+            Throwable t = (Throwable)o;
+            if (t instanceof IOException) throw (IOException)t;
+            if (t instanceof RuntimeException) throw (RuntimeException)t;
+            throw new IOException(t.toString(), t);
+        }
+    }
+
+    /**
+     * Reads the messages from fromId up to toId (exclusive) and puts blocks of encoded messages on a queue
+     * followed by END. If something goes wrong the exception is left in error instead.
+     */
+    private class Piece implements Callable<Void> {
+
+        final long fromId;
+        final long toId;
+        final MessageFilter mf;
+        final MessageWriter writer;
+        final BlockingQueue<Object> blocks;
+        Future<Void> future;
+
+        Piece(long fromId, long toId, MessageFilter mf, MessageWriter writer, BlockingQueue<Object> blocks) {
+            this.fromId = fromId;
+            this.toId = toId;
+            this.mf = mf;
+            this.writer = writer;
+            this.blocks = blocks;
+        }
+
+        @Override
+        public Void call() throws Exception {
+            try {
+                ByteArrayOutputStream block = new ByteArrayOutputStream(BLOCK_SIZE + BLOCK_SIZE / 4);
+                MessageCursor c = mb.cursor(fromId);
+                try {
+                    while (c.next()) {
+                        long id = c.getId();
+                        long timestamp = c.getTimestamp();
+                        if (id >= toId || to > 0 && timestamp >= to) break;
+                        String routingKey = c.getRoutingKey();
+                        byte[] payload = null;
+                        MessageFilter.Result r = mf.accept(id, timestamp, routingKey, null);
+                        if (r == MessageFilter.Result.CHECK_PAYLOAD) {
+                            r = mf.accept(id, timestamp, routingKey, payload = c.getPayload());
+                        }
+                        if (r != MessageFilter.Result.ACCEPT) continue;
+                        payload = writer.project(c, payload);
+                        writer.write(block, c, id, timestamp, routingKey, payload, null, null);
+                        if (block.size() >= BLOCK_SIZE) {
+                            put(block.toByteArray());
+                            block.reset();
+                        }
+                    }
+                } finally {
+                    c.close();
+                }
+                if (block.size() > 0) put(block.toByteArray());
+                put(END);
+            } catch (InterruptedException e) {
+                // cancelled so nobody is waiting for our blocks
+            } catch (Throwable e) {
+                if (error == null) error = e;
+            }
+            return null;
+        }
+
+        /**
+         * Wait for room on our queue for o. Gives up if the client has not read anything for too long.
+         */
+        private void put(Object o) throws InterruptedException, IOException {
+            while (!blocks.offer(o, POLL_MS, TimeUnit.MILLISECONDS)) {
+                if (System.currentTimeMillis() - lastWrite > stallTimeoutMs) {
+                    throw new IOException("Export aborted, client has not read anything for " + stallTimeoutMs +
+                            " ms");
+                }
+            }
+        }
+    }
+}
@@ -0,0 +1,290 @@
+/*
+ * Copyright 2013 David Tinker
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package io.qdb.server.controller;
+
+import io.qdb.buffer.MessageBuffer;
+import io.qdb.buffer.MessageCursor;
+import io.qdb.server.databind.DateTimeParser;
+import io.qdb.server.filter.MessageFilter;
+import io.qdb.server.model.Queue;
+import io.qdb.server.queue.PayloadTransfer;
+import io.qdb.server.queue.RoutingKeyIndex;
+import io.qdb.server.queue.SubscriberRegistry;
+import org.simpleframework.http.Response;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.channels.Channels;
+import java.nio.channels.WritableByteChannel;
+import java.util.Date;
+
+/**
+ * Streams messages from a cursor to a response for {@link MessageController}. This can either block the calling
+ * thread waiting for messages or park itself on a {@link SubscriberRegistry} between messages.
+ */
+class MessageStreamer implements SubscriberRegistry.Subscriber {
+
+    private static final Logger log = LoggerFactory.getLogger(MessageStreamer.class);
+
+    private final Call call;
+    private final Queue q;
+    private final MessageBuffer mb;
+    private MessageCursor c;
+    private final MessageFilter mf;
+    private final RoutingKeyIndex index;
+    private final String indexKey;
+    private final PayloadTransfer pt;
+    private final MessageWriter writer;
+    private final Response response;
+    private final OutputStream out;
+    private final WritableByteChannel payloadOut;
+
+    private final int timeoutMs;
+    private final byte[] keepAlive;
+    private final int keepAliveMs;
+    private final boolean single;
+    private final int limit;
+    private final long to;
+    private final long toId;
+
+    private int sent;
+    private int nextKeepAliveMs;
+    private long nextId;    // id of the next message our cursor will return or -1 if not known
+
+    private SubscriberRegistry registry;
+    private long timeoutAt;
+    private long keepAliveAt;
+
+    /**
+     * If index is not null and can be used for mf then it is used to skip messages mf cannot accept. The cursor
+     * must be positioned at nextId or nextId must be -1. If projection is not null then it is applied to each
+     * payload before it is sent.
+     */
+    MessageStreamer(Call call, MessageBuffer mb, MessageCursor c, long nextId, MessageFilter mf,
+                RoutingKeyIndex index, JsonService jsonService, PayloadTransfer pt, PayloadProjection projection,
+                int limit) throws IOException {
+        this.call = call;
+        this.q = call.getQueue();
+        this.mb = mb;
+        this.c = c;
+        this.nextId = nextId;
+        this.mf = mf;
+        this.indexKey = index == null ? null : index.getKey(mf);
+        this.index = indexKey == null ? null : index;
+        this.pt = pt;
+
+        int keepAliveMs = call.getInt("keepAliveMs", 29000);
+        timeoutMs = call.getInt("timeoutMs", 0);
+        keepAlive = call.getUTF8Bytes("keepAlive", "\n");
+
+        single = call.getBoolean("single");
+        if (single) {
+            limit = 1;
+            keepAliveMs = Integer.MAX_VALUE;
+        }
+        this.limit = limit;
+        this.keepAliveMs = nextKeepAliveMs = keepAliveMs;
+        writer = new MessageWriter(call, jsonService, projection, !single && BinaryFrames.isRequested(call));
+
+        to = call.getTimestamp("to");
+        toId = to > 0 ? -1 : call.getLong("toId", -1);
+
+        response = call.getResponse();
+        String contentType = projection == null ? q.getContentType() : projection.getContentType(q.getContentType());
+        response.set("Content-Type", single ? contentType
+                : writer.isBinary() ? BinaryFrames.CONTENT_TYPE : "application/octet-stream");
+        out = response.getOutputStream();
+        // wraps out so anything already buffered there is written before payloads transferred through it
+        payloadOut = Channels.newChannel(out);
+    }
+
+    /**
+     * Stream messages using the calling thread to wait for them.
+     */
+    public void run() throws IOException {
+        try {
+            for (; !isLimitReached(); ) {
+                try {
+                    if (timeoutMs <= 0) {
+                        while (!next(single ? 0 : nextKeepAliveMs)) sendKeepAlive();
+                    } else {
+                        int ms = timeoutMs;
+                        while (true) {
+                            int waitMs = Math.min(ms, nextKeepAliveMs);
+                            if (next(waitMs)) break;
+                            if ((ms -= waitMs) <= 0) break;
+                            sendKeepAlive();
+                        }
+                        if (ms <= 0) break;
+                    }
+                } catch (InterruptedException e) {
+                    break;
+                }
+                if (!processMessage()) break;
+            }
+        } finally {
+            c.close();
+        }
+    }
+
+    /**
+     * Send whatever messages are available and then park on registry until more are appended or it is time
+     * to send a keep alive or give up. The response is completed and closed from a registry thread when done.
+     */
+    public void start(SubscriberRegistry registry) {
+        this.registry = registry;
+        long now = System.currentTimeMillis();
+        timeoutAt = now + timeoutMs;
+        keepAliveAt = now + keepAliveMs;
+        call.setAsync(true);
+        resume();
+    }
+
+    @Override
+    public void resume() {
+        try {
+            long version = registry.getVersion(q);
+            while (!isLimitReached() && next()) {
+                long now = System.currentTimeMillis();
+                timeoutAt = now + timeoutMs;
+                int before = sent;
+                if (!processMessage()) {
+                    finish();
+                    return;
+                }
+                // send a keep alive soon after the last message to flush the response
+                if (!single && sent > before) keepAliveAt = now + 100;
+            }
+            if (isLimitReached()) {
+                finish();
+                return;
+            }
+
+            long now = System.currentTimeMillis();
+            if (timeoutMs > 0 && now >= timeoutAt) {
+                finish();
+                return;
+            }
+            if (now >= keepAliveAt) {
+                sendKeepAlive();
+                keepAliveAt = now + keepAliveMs;
+            }
+            long waitMs = single ? Long.MAX_VALUE : keepAliveAt - now;
+            if (timeoutMs > 0) waitMs = Math.min(waitMs, timeoutAt - now);
+            registry.park(q, version, this, waitMs == Long.MAX_VALUE ? 0 : Math.max(waitMs, 1));
+        } catch (IOException e) {
+            if (log.isDebugEnabled()) log.debug(this + ": " + e);
+            finish();
+        } catch (Exception e) {
+            log.error(this + ": " + e, e);
+            finish();
+        }
+    }
+
+    private void finish() {
+        try {
+            c.close();
+        } catch (IOException x) {
+            if (log.isDebugEnabled()) log.debug("Error closing cursor: " + x, x);
+        }
+        try {
+            response.close();
+        } catch (IOException x) {
+            if (log.isDebugEnabled()) log.debug("Error closing response: " + x, x);
+        }
+    }
+
+    private boolean next(int timeoutMs) throws IOException, InterruptedException {
+        skip();
+        if (!c.next(timeoutMs)) return false;
+        nextId = c.getNextId();
+        return true;
+    }
+
+    private boolean next() throws IOException {
+        skip();
+        if (!c.next()) return false;
+        nextId = c.getNextId();
+        return true;
+    }
+
+    /**
+     * Use our routing key index (if any) to move our cursor past messages that our filter cannot accept.
+     */
+    private void skip() throws IOException {
+        if (index == null || nextId < 0) return;
+        long id = index.skipTo(indexKey, nextId);
+        if (id < 0) return;
+        MessageCursor old = c;
+        c = mb.cursor(id);
+        nextId = id;
+        old.close();
+    }
+
+    private boolean isLimitReached() {
+        return limit != 0 && sent >= limit;
+    }
+
+    private void sendKeepAlive() throws IOException {
+        writer.writeKeepAlive(out, keepAlive);
+        out.flush();
+        nextKeepAliveMs = keepAliveMs;
+    }
+
+    /**
+     * Send the message at our cursor if it is accepted by our filter. Returns false if the message is past the
+     * end of the range requested.
+     */
+    private boolean processMessage() throws IOException {
+        if (to > 0 && c.getTimestamp() >= to || toId > 0 && c.getId() >= toId) return false;
+
+        long id = c.getId();
+        long timestamp = c.getTimestamp();
+        String routingKey = c.getRoutingKey();
+        byte[] payload = null;
+        MessageFilter.Result result = mf.accept(id, timestamp, routingKey, null);
+        if (result == MessageFilter.Result.CHECK_PAYLOAD) {
+            result = mf.accept(id, timestamp, routingKey, payload = c.getPayload());
+        }
+
+        if (result == MessageFilter.Result.ACCEPT) {
+            payload = writer.project(c, payload);
+            if (single) {
+                boolean noPayload = writer.isNoPayload();
+                response.setContentLength(noPayload ? 0 : payload == null ? c.getPayloadSize() : payload.length);
+                response.set("QDB-Id", Long.toString(c.getId()));
+                response.set("QDB-Timestamp", writer.isBorg()
+                        ? Long.toString(timestamp)
+                        : DateTimeParser.INSTANCE.formatTimestamp(new Date(timestamp)));
+                response.set("QDB-RoutingKey", routingKey);
+                if (!noPayload) writer.writePayload(out, c, payload, pt, payloadOut);
+            } else {
+                writer.write(out, c, id, timestamp, routingKey, payload, pt, payloadOut);
+                nextKeepAliveMs = 100;
+            }
+            ++sent;
+        }
+        return true;
+    }
+
+    @Override
+    public String toString() {
+        return call.toString();
+    }
+}
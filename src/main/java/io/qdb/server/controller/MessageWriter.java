@@ -0,0 +1,122 @@
+/*
+ * Copyright 2013 David Tinker
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package io.qdb.server.controller;
+
+import io.qdb.buffer.MessageCursor;
+import io.qdb.server.queue.PayloadTransfer;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.channels.WritableByteChannel;
+
+/**
+ * Encodes messages for the streaming forms of GET .../messages: a JSON header line and payload followed by a
+ * separator for each message or binary frames. The options come from the request (noHeaders, noPayload,
+ * noLengthPrefix, separator, format etc.). Not thread safe, use one instance per thread.
+ */
+class MessageWriter {
+
+    private final JsonService jsonService;
+    private final PayloadProjection projection;
+    private final byte[] separator;
+    private final boolean noHeaders;
+    private final boolean noPayload;
+    private final boolean noLengthPrefix;
+    private final boolean borg;
+    private final BinaryFrames frames;
+
+    /**
+     * If projection is not null then it is applied to each payload before it is written.
+     */
+    MessageWriter(Call call, JsonService jsonService, PayloadProjection projection, boolean binary)
+            throws IOException {
+        this.jsonService = jsonService;
+        this.projection = projection;
+        separator = call.getUTF8Bytes("separator", "\n");
+        noHeaders = call.getBoolean("noHeaders");
+        noPayload = call.getBoolean("noPayload");
+        noLengthPrefix = call.getBoolean("noLengthPrefix");
+        borg = call.getBoolean("borg");
+        frames = binary ? new BinaryFrames() : null;
+    }
+
+    public boolean isBinary() {
+        return frames != null;
+    }
+
+    public boolean isNoPayload() {
+        return noPayload;
+    }
+
+    public boolean isBorg() {
+        return borg;
+    }
+
+    /**
+     * Apply our projection (if any) to the payload of the message at c. Returns payload unchanged if there is
+     * nothing to do, otherwise the projected payload.
+     */
+    public byte[] project(MessageCursor c, byte[] payload) throws IOException {
+        if (projection == null || noPayload) return payload;
+        return projection.project(payload == null ? c.getPayload() : payload);
+    }
+
+    /**
+     * Write the message at c to out. Payload is the already read (or projected) payload or null if it has not
+     * been read. In that case it is transferred directly from the buffer's files to payloadOut if pt is not null
+     * and it is able to, otherwise it is read from c.
+     */
+    public void write(OutputStream out, MessageCursor c, long id, long timestamp, String routingKey, byte[] payload,
+                PayloadTransfer pt, WritableByteChannel payloadOut) throws IOException {
+        if (frames != null) {
+            int size = noPayload ? 0 : payload == null ? c.getPayloadSize() : payload.length;
+            frames.write(out, id, timestamp, routingKey == null ? null : routingKey.getBytes("UTF8"), size);
+            if (!noPayload) writePayload(out, c, payload, pt, payloadOut);
+        } else {
+            if (!noHeaders) {
+                MessageController.MessageHeader h = new MessageController.MessageHeader(c, id, timestamp,
+                        routingKey, payload);
+                byte[] data = jsonService.toJsonMsgHeader(h, borg);
+                if (!noLengthPrefix) out.write((data.length + ":").getBytes("UTF8"));
+                out.write(data);
+                out.write(10);
+            }
+            if (!noPayload) {
+                writePayload(out, c, payload, pt, payloadOut);
+                out.write(separator);
+            }
+        }
+    }
+
+    /**
+     * Write just the payload, transferring it directly from the buffer's files if possible as for
+     * {@link #write}.
+     */
+    public void writePayload(OutputStream out, MessageCursor c, byte[] payload, PayloadTransfer pt,
+                WritableByteChannel payloadOut) throws IOException {
+        if (payload == null) {
+            if (pt != null && pt.transfer(c.getId(), c.getRoutingKey(), c.getPayloadSize(), payloadOut)) return;
+            payload = c.getPayload();
+        }
+        out.write(payload);
+    }
+
+    public void writeKeepAlive(OutputStream out, byte[] keepAlive) throws IOException {
+        if (frames != null) frames.writeKeepAlive(out);
+        else out.write(keepAlive);
+    }
+}
@@ -22,6 +22,7 @@ import io.qdb.buffer.MessageBuffer;
 import io.qdb.server.databind.DataBinder;
 import io.qdb.server.databind.DurationParser;
 import io.qdb.server.databind.HasAnySetter;
+import io.qdb.server.filter.FilterExpression;
 import io.qdb.server.filter.GrepMessageFilter;
 import io.qdb.server.filter.MessageFilterFactory;
 import io.qdb.server.filter.RoutingKeyMessageFilter;
@@ -31,6 +32,7 @@ import io.qdb.server.monitor.Status;
 import io.qdb.server.output.OutputHandler;
 import io.qdb.server.output.OutputStatusMonitor;
 import io.qdb.server.queue.QueueManager;
+import io.qdb.server.repo.ProgressStore;
 import io.qdb.server.repo.Repository;
 import io.qdb.server.output.OutputHandlerFactory;
 import org.slf4j.Logger;
@@ -50,6 +52,7 @@ public class OutputController extends CrudController {
     private final QueueManager queueManager;
     private final OutputStatusMonitor outputStatusMonitor;
     private final MessageFilterFactory messageFilterFactory;
+    private final ProgressStore progressStore;
 
     private static final Logger log = LoggerFactory.getLogger(OutputController.class);
 
@@ -77,6 +80,8 @@ public class OutputController extends CrudController {
         public String filter;
         public String routingKey;
         public String grep;
+        public String where;
+        public String json;
         public transient Map<String, Object> params;
 
         @SuppressWarnings("UnusedDeclaration")
@@ -102,6 +107,8 @@ public class OutputController extends CrudController {
             this.filter = o.getFilter();
             this.routingKey = o.getRoutingKey();
             this.grep = o.getGrep();
+            this.where = o.getWhere();
+            this.json = o.getJson();
             this.params = o.getParams();
         }
 
@@ -140,13 +147,14 @@ public class OutputController extends CrudController {
     @Inject
     public OutputController(JsonService jsonService, Repository repo, OutputHandlerFactory handlerFactory,
                             QueueManager queueManager, OutputStatusMonitor outputStatusMonitor,
-                            MessageFilterFactory messageFilterFactory) {
+                            MessageFilterFactory messageFilterFactory, ProgressStore progressStore) {
         super(jsonService);
         this.repo = repo;
         this.handlerFactory = handlerFactory;
         this.queueManager = queueManager;
         this.outputStatusMonitor = outputStatusMonitor;
         this.messageFilterFactory = messageFilterFactory;
+        this.progressStore = progressStore;
     }
 
     @SuppressWarnings("unchecked")
@@ -194,6 +202,7 @@ public class OutputController extends CrudController {
     }
 
     private OutputDTO createOutputDTO(Call call, String id, Output o, Queue q) throws IOException {
+        o = progressStore.merge(o);
         OutputDTO dto = new OutputDTO(id, o);
         MessageBuffer mb = queueManager.getBuffer(q);
         if (mb != null) {
@@ -275,7 +284,7 @@ public class OutputController extends CrudController {
                     call.setCode(409, createOutputDTO(call, id, o, q));
                     return;
                 }
-                o = o.deepCopy();
+                o = progressStore.merge(o).copy();   // start from the latest progress so it isn't lost
             }
 
             boolean changed = create;
@@ -399,6 +408,32 @@ public class OutputController extends CrudController {
                 changed = true;
             }
 
+            if (dto.where != null && !dto.where.equals(o.getWhere())) {
+                if (dto.where.length() > 0) {
+                    try {
+                        FilterExpression.parse(dto.where, null);
+                    } catch (IllegalArgumentException e) {
+                        call.setCode(422, e.getMessage());
+                        return;
+                    }
+                }
+                o.setWhere(dto.where);
+                changed = true;
+            }
+
+            if (dto.json != null && !dto.json.equals(o.getJson())) {
+                if (dto.json.length() > 0) {
+                    try {
+                        FilterExpression.parseJson(dto.json);
+                    } catch (IllegalArgumentException e) {
+                        call.setCode(422, e.getMessage());
+                        return;
+                    }
+                }
+                o.setJson(dto.json);
+                changed = true;
+            }
+
             if (dto.params != null) {
                 OutputHandler h = handlerFactory.createHandler(o.getType());
                 new DataBinder(jsonService).updateMap(true).bind(dto.params, h).check();
@@ -407,6 +442,7 @@ public class OutputController extends CrudController {
                     o.setParams(dto.params);
                     changed = true;
                 } else {
+                    params = new HashMap<String, Object>(params);   // the original's params are shared with our copy
                     for (Map.Entry<String, Object> e : dto.params.entrySet()) {
                         String key = e.getKey();
                         Object v = e.getValue();
@@ -416,6 +452,7 @@ public class OutputController extends CrudController {
                             changed = true;
                         }
                     }
+                    o.setParams(params);
                 }
             }
 
@@ -0,0 +1,168 @@
+/*
+ * Copyright 2013 David Tinker
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package io.qdb.server.controller;
+
+import com.fasterxml.jackson.core.JsonFactory;
+import com.fasterxml.jackson.core.JsonGenerator;
+import com.fasterxml.jackson.core.JsonParser;
+import com.fasterxml.jackson.core.JsonProcessingException;
+import com.fasterxml.jackson.core.JsonToken;
+import io.qdb.server.filter.JsonPath;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Cuts down the payloads streamed by {@link MessageStreamer} before they are written to the response. Either
+ * selected fields of JSON payloads are sent as a JSON object keyed by field (fields=type,amount,customer.id) or
+ * a byte range of each payload is sent (bytes=0-99 or bytes=100- for everything from offset 100).
+ */
+abstract class PayloadProjection {
+
+    /**
+     * Create a projection from the fields or bytes parameter of call or return null if neither is present.
+     * @throws IllegalArgumentException if the parameters are invalid
+     */
+    public static PayloadProjection create(Call call) throws IOException, IllegalArgumentException {
+        String fields = call.getString("fields");
+        String bytes = call.getString("bytes");
+        boolean hasFields = fields != null && fields.length() > 0;
+        boolean hasBytes = bytes != null && bytes.length() > 0;
+        if (hasFields && hasBytes) throw new IllegalArgumentException("Only one of fields and bytes may be used");
+        if (hasFields) return new Fields(fields);
+        if (hasBytes) return new ByteRange(bytes);
+        return null;
+    }
+
+    /**
+     * Project payload. The array returned may be payload itself.
+     */
+    public abstract byte[] project(byte[] payload) throws IOException;
+
+    /**
+     * Get the content type of projected payloads of the given type.
+     */
+    public abstract String getContentType(String contentType);
+
+    static class Fields extends PayloadProjection {
+
+        private static final JsonFactory FACTORY = new JsonFactory();
+        private static final byte[] EMPTY = new byte[]{'{', '}'};
+
+        private final String[] names;
+        private final JsonPath[] paths;
+        private final ByteArrayOutputStream bos = new ByteArrayOutputStream();
+
+        Fields(String fields) throws IllegalArgumentException {
+            List<String> names = new ArrayList<String>();
+            List<JsonPath> paths = new ArrayList<JsonPath>();
+            for (int pos = 0, n = fields.length(); pos < n; ) {
+                while (pos < n && Character.isWhitespace(fields.charAt(pos))) ++pos;
+                List<Object> path = new ArrayList<Object>();
+                int end;
+                try {
+                    end = JsonPath.read(fields, pos, path);
+                } catch (IllegalArgumentException e) {
+                    throw new IllegalArgumentException(e.getMessage() + " in fields [" + fields + "]");
+                }
+                String name = fields.substring(pos, end);
+                names.add(name.startsWith("$.") ? name.substring(2) : name);
+                paths.add(new JsonPath(path.toArray()));
+                for (pos = end; pos < n && Character.isWhitespace(fields.charAt(pos)); ) ++pos;
+                if (pos < n && fields.charAt(pos++) != ',') {
+                    throw new IllegalArgumentException("Expected ',' at position " + (pos - 1) + " in fields [" +
+                            fields + "]");
+                }
+            }
+            this.names = names.toArray(new String[names.size()]);
+            this.paths = paths.toArray(new JsonPath[paths.size()]);
+        }
+
+        /**
+         * Each field is found by streaming the payload until its value is reached so only as much of the payload
+         * as is needed is parsed. The values are copied to the output without building any objects. Fields not
+         * in the payload are left out. Payloads that are not JSON are projected to an empty object.
+         */
+        @Override
+        public byte[] project(byte[] payload) throws IOException {
+            bos.reset();
+            JsonGenerator g = FACTORY.createGenerator(bos);
+            try {
+                g.writeStartObject();
+                for (int i = 0; i < paths.length; i++) {
+                    JsonParser p = JsonPath.createParser(payload);
+                    try {
+                        JsonToken t = paths[i].find(p);
+                        if (t != null) {
+                            g.writeFieldName(names[i]);
+                            g.copyCurrentStructure(p);
+                        }
+                    } finally {
+                        p.close();
+                    }
+                }
+                g.writeEndObject();
+                g.close();
+            } catch (JsonProcessingException e) {
+                return EMPTY;
+            }
+            return bos.toByteArray();
+        }
+
+        @Override
+        public String getContentType(String contentType) {
+            return "application/json; charset=utf-8";
+        }
+    }
+
+    static class ByteRange extends PayloadProjection {
+
+        private final int from;
+        private final int to;   // exclusive
+
+        ByteRange(String bytes) throws IllegalArgumentException {
+            int i = bytes.indexOf('-');
+            try {
+                if (i <= 0) throw new NumberFormatException();
+                long f = Long.parseLong(bytes.substring(0, i).trim());
+                String s = bytes.substring(i + 1).trim();
+                long t = s.length() == 0 ? Integer.MAX_VALUE : Long.parseLong(s);  // inclusive
+                if (f < 0 || t < f) throw new NumberFormatException();
+                // payloads are arrays so offsets past Integer.MAX_VALUE are the same as Integer.MAX_VALUE
+                from = (int)Math.min(f, Integer.MAX_VALUE);
+                to = t >= Integer.MAX_VALUE ? Integer.MAX_VALUE : (int)t + 1;
+            } catch (NumberFormatException e) {
+                throw new IllegalArgumentException("Invalid bytes [" + bytes + "], expected from-to or from- e.g. " +
+                        "0-99 for the first 100 bytes");
+            }
+        }
+
+        @Override
+        public byte[] project(byte[] payload) throws IOException {
+            if (from == 0 && to >= payload.length) return payload;
+            return Arrays.copyOfRange(payload, Math.min(from, payload.length), Math.min(to, payload.length));
+        }
+
+        @Override
+        public String getContentType(String contentType) {
+            return "application/octet-stream";  // part of a document is not necessarily valid content of its type
+        }
+    }
+}
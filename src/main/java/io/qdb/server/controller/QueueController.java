@@ -41,6 +41,8 @@ public class QueueController extends CrudController {
     private final TimelineController timelineController;
     private final OutputController outputController;
     private final InputController inputController;
+    private final QueueStorageController queueStorageController;
+    private final AggregateController aggregateController;
     private final QueueManager queueManager;
     private final QueueStatusMonitor queueStatusMonitor;
 
@@ -56,6 +58,7 @@ public class QueueController extends CrudController {
         public String contentType;
         public Object warnAfter;
         public Object errorAfter;
+        public Integer indexRoutingKeys;
 
         public String status;
         public Long size;
@@ -76,6 +79,7 @@ public class QueueController extends CrudController {
             this.maxSize = queue.getMaxSize();
             this.maxPayloadSize = queue.getMaxPayloadSize();
             this.contentType = queue.getContentType();
+            this.indexRoutingKeys = null0(queue.getIndexRoutingKeys());
             if (borg) {
                 this.warnAfter = null0(queue.getWarnAfter());
                 this.errorAfter = null0(queue.getErrorAfter());
@@ -102,13 +106,16 @@ public class QueueController extends CrudController {
     @Inject
     public QueueController(JsonService jsonService, Repository repo, MessageController messageController,
                            TimelineController timelineController, OutputController outputController,
-                           InputController inputController, QueueManager queueManager, QueueStatusMonitor queueStatusMonitor) {
+                           InputController inputController, QueueStorageController queueStorageController,
+                           AggregateController aggregateController, QueueManager queueManager, QueueStatusMonitor queueStatusMonitor) {
         super(jsonService);
         this.repo = repo;
         this.messageController = messageController;
         this.timelineController = timelineController;
         this.outputController = outputController;
         this.inputController = inputController;
+        this.queueStorageController = queueStorageController;
+        this.aggregateController = aggregateController;
         this.queueManager = queueManager;
         this.queueStatusMonitor = queueStatusMonitor;
     }
@@ -296,6 +303,15 @@ public class QueueController extends CrudController {
                 }
             }
 
+            if (dto.indexRoutingKeys != null && dto.indexRoutingKeys != q.getIndexRoutingKeys()) {
+                if (dto.indexRoutingKeys < 0) {
+                    call.setCode(422, "indexRoutingKeys must be 0 (no index) or the number of routing key words to index");
+                    return;
+                }
+                q.setIndexRoutingKeys(dto.indexRoutingKeys);
+                changed = true;
+            }
+
             if (create) {
                 for (int attempt = 0; ; ) {
                     q.setId(generateId());
@@ -337,6 +353,8 @@ public class QueueController extends CrudController {
             if ("out".equals(resource)) return outputController;
             if ("in".equals(resource)) return inputController;
             if ("timeline".equals(resource)) return timelineController;
+            if ("storage".equals(resource)) return queueStorageController;
+            if ("aggregate".equals(resource)) return aggregateController;
         }
         return StatusCodeController.SC_404;
     }
@@ -0,0 +1,120 @@
+/*
+ * Copyright 2013 David Tinker
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package io.qdb.server.controller;
+
+import io.qdb.server.model.Queue;
+import io.qdb.server.queue.QueueManager;
+import io.qdb.server.queue.QueueStorageManager;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import javax.inject.Inject;
+import javax.inject.Singleton;
+import java.io.File;
+import java.io.IOException;
+import java.util.Map;
+
+/**
+ * Shows where a queue's data is stored and lets admins move it to a different data directory.
+ */
+@Singleton
+public class QueueStorageController extends CrudController {
+
+    private static final Logger log = LoggerFactory.getLogger(QueueStorageController.class);
+
+    private final QueueManager queueManager;
+    private final QueueStorageManager queueStorageManager;
+
+    public static class StorageDTO {
+        public String dir;
+        public String dataDir;
+        public Long writeBytesPerSec;
+        public DataDirDTO[] dataDirs;
+    }
+
+    public static class DataDirDTO {
+        public String dir;
+        public long usableSpace;
+        public long writeBytesPerSec;
+    }
+
+    public static class MoveDTO {
+        public String dataDir;
+    }
+
+    @Inject
+    public QueueStorageController(JsonService jsonService, QueueManager queueManager,
+                QueueStorageManager queueStorageManager) {
+        super(jsonService);
+        this.queueManager = queueManager;
+        this.queueStorageManager = queueStorageManager;
+    }
+
+    @Override
+    protected void list(Call call, int offset, int limit) throws IOException {
+        call.setJson(createStorageDTO(call.getQueue()));
+    }
+
+    @Override
+    protected void create(Call call) throws IOException {
+        if (!call.getUser().isAdmin()) {
+            call.setCode(403);
+            return;
+        }
+        MoveDTO dto = getBodyObject(call, MoveDTO.class);
+        if (dto.dataDir == null) {
+            call.setCode(422, "dataDir is required");
+            return;
+        }
+        Queue q = call.getQueue();
+        try {
+            queueManager.moveQueue(q, new File(dto.dataDir));
+        } catch (IllegalArgumentException e) {
+            call.setCode(422, e.getMessage());
+            return;
+        } catch (IllegalStateException e) {
+            call.setCode(409, e.getMessage());
+            return;
+        } catch (IOException e) {
+            log.error("Error moving " + q + " to [" + dto.dataDir + "]: " + e, e);
+            call.setCode(500, e.getMessage());
+            return;
+        }
+        call.setCode(200, createStorageDTO(q));
+    }
+
+    private StorageDTO createStorageDTO(Queue q) {
+        StorageDTO dto = new StorageDTO();
+        File dir = queueManager.getDir(q);
+        if (dir != null) {
+            dto.dir = dir.getAbsolutePath();
+            dto.dataDir = queueStorageManager.getDataDir(dir).getAbsolutePath();
+            dto.writeBytesPerSec = queueManager.getWriteRate(q);
+        }
+        Map<File, Long> load = queueStorageManager.getWriteLoadByDataDir(queueManager.getWriteLoad());
+        File[] dirs = queueStorageManager.getQueueDataDirs();
+        dto.dataDirs = new DataDirDTO[dirs.length];
+        for (int i = 0; i < dirs.length; i++) {
+            DataDirDTO d = dto.dataDirs[i] = new DataDirDTO();
+            d.dir = dirs[i].getAbsolutePath();
+            d.usableSpace = dirs[i].getUsableSpace();
+            Long l = load.get(dirs[i]);
+            d.writeBytesPerSec = l == null ? 0 : l;
+        }
+        return dto;
+    }
+}
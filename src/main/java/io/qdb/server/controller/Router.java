@@ -57,8 +57,9 @@ public class Router implements Container {
 
     @Override
     public void handle(Request req, Response resp) {
+        Call call = null;
         try {
-            Call call = new Call(req, resp, renderer);
+            call = new Call(req, resp, renderer);
             Auth auth = authService.authenticate(req, resp);
             if (auth == null) {
                 authService.sendChallenge(resp);
@@ -92,6 +93,7 @@ public class Router implements Container {
             }
             quietRenderCode(req, resp, 500, null);
         }
+        if (call != null && call.isAsync()) return; // response will be closed when the call is done
         try {
             resp.close();
         } catch (IOException x) {
@@ -17,16 +17,19 @@
 package io.qdb.server.controller;
 
 import humanize.Humanize;
+import io.qdb.server.repo.ObjectEventDispatcher;
 
 import javax.inject.Inject;
 import javax.inject.Singleton;
 import java.io.IOException;
 import java.lang.management.ManagementFactory;
 import java.lang.management.MemoryUsage;
+import java.util.List;
 
 @Singleton
 public class ServerController extends CrudController {
 
+    private final ObjectEventDispatcher eventDispatcher;
     private final long started = System.currentTimeMillis();
 
     public static class StatusDTO {
@@ -36,11 +39,13 @@ public class ServerController extends CrudController {
         public long heapMaxMemory;
         public long otherFreeMemory;
         public long otherMaxMemory;
+        public List<ObjectEventDispatcher.Stats> events;
     }
 
     @Inject
-    public ServerController(JsonService jsonService) {
+    public ServerController(JsonService jsonService, ObjectEventDispatcher eventDispatcher) {
         super(jsonService);
+        this.eventDispatcher = eventDispatcher;
     }
 
     @Override
@@ -62,6 +67,8 @@ public class ServerController extends CrudController {
         dto.otherMaxMemory = usage.getMax();
         dto.otherFreeMemory = dto.otherMaxMemory - usage.getUsed();
 
+        dto.events = eventDispatcher.getStats();
+
         call.setJson(dto);
     }
 }
@@ -18,12 +18,15 @@ package io.qdb.server.controller;
 
 import io.qdb.buffer.MessageBuffer;
 import io.qdb.buffer.Timeline;
+import io.qdb.server.databind.DurationParser;
+import io.qdb.server.queue.AppendHistogram;
 import io.qdb.server.queue.QueueManager;
 
 import javax.inject.Inject;
 import javax.inject.Singleton;
 import java.io.IOException;
 import java.util.Date;
+import java.util.List;
 
 @Singleton
 public class TimelineController extends CrudController {
@@ -47,6 +50,19 @@ public class TimelineController extends CrudController {
         }
     }
 
+    static class HistogramEntryDTO {
+
+        public Date timestamp;
+        public int count;
+        public long bytes;
+
+        HistogramEntryDTO(AppendHistogram.Bucket b) {
+            timestamp = new Date(b.timestamp);
+            count = b.count;
+            bytes = b.bytes;
+        }
+    }
+
     @Inject
     public TimelineController(JsonService jsonService, QueueManager queueManager) {
         super(jsonService);
@@ -61,7 +77,44 @@ public class TimelineController extends CrudController {
             call.setCode(503, "Queue is not available, please try again later");
             return;
         }
-        setTimeline(call, mb.getTimeline());
+        String resolution = call.getString("resolution");
+        if (resolution != null) setHistogram(call, resolution);
+        else setTimeline(call, mb.getTimeline());
+    }
+
+    /**
+     * Respond with the append counts for our queue at resolution (e.g. 1 for per second, 1:00 for per minute)
+     * for the range given by the from and to parameters (default everything available).
+     */
+    private void setHistogram(Call call, String resolution) throws IOException {
+        AppendHistogram h = queueManager.getAppendHistogram(call.getQueue());
+        if (h == null) {
+            call.setCode(503, "Queue is not available, please try again later");
+            return;
+        }
+        long resolutionMs;
+        long from, to;
+        try {
+            resolutionMs = DurationParser.parse(resolution) * 1000L;
+            from = call.getTimestamp("from");
+            to = call.getTimestamp("to");
+        } catch (IllegalArgumentException e) {
+            call.setCode(422, e.getMessage());
+            return;
+        }
+        List<AppendHistogram.Bucket> buckets = h.getBuckets(resolutionMs, from, to < 0 ? Long.MAX_VALUE : to);
+        if (buckets == null) {
+            StringBuilder b = new StringBuilder();
+            for (long ms : h.getResolutions()) {
+                if (b.length() > 0) b.append(", ");
+                b.append(ms / 1000).append(" secs");
+            }
+            call.setCode(422, "Resolution [" + resolution + "] is not available, try one of: " + b);
+            return;
+        }
+        HistogramEntryDTO[] ans = new HistogramEntryDTO[buckets.size()];
+        for (int i = 0; i < ans.length; i++) ans[i] = new HistogramEntryDTO(buckets.get(i));
+        call.setJson(ans);
     }
 
     private void setTimeline(Call call, Timeline timeline) throws IOException {
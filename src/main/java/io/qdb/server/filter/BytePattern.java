@@ -0,0 +1,498 @@
+package io.qdb.server.filter;
+
+import java.nio.charset.Charset;
+import java.util.*;
+
+/**
+ * A regex compiled to search encoded payload bytes directly instead of decoding them to a String first. Patterns
+ * made only of literal characters are searched for with Boyer-Moore-Horspool. Other patterns are compiled to a
+ * DFA over bytes, with any literal prefix used to skip to the first place a match could start.
+ * <p>
+ * Only patterns that give the same answer as {@link java.util.regex.Matcher#find()} on the decoded payload are
+ * compiled: literals, escapes, character classes, groups, alternation and greedy or lazy quantifiers. Anchors,
+ * flags, back references and so on are not supported. With UTF-8 the character classes and '.' must not be able
+ * to match non-ASCII characters as those are more than one byte. UTF-8, ISO-8859-1 and US-ASCII are supported.
+ */
+public class BytePattern {
+
+    private static final int MAX_NFA_STATES = 1000;
+    private static final int MAX_DFA_STATES = 1000;
+    private static final int MAX_REPEAT = 32;      // nested repeats multiply so MAX_NFA_STATES limits the total
+
+    private final byte[] prefix;
+    private final int[] shift;
+    private final int[] dfa;            // dfa state * 256 + byte -> next dfa state
+    private final boolean[] accepting;
+
+    private BytePattern(byte[] prefix, int[] dfa, boolean[] accepting) {
+        this.prefix = prefix;
+        this.dfa = dfa;
+        this.accepting = accepting;
+        if (prefix.length > 0) {
+            shift = new int[256];
+            Arrays.fill(shift, prefix.length);
+            for (int i = 0; i < prefix.length - 1; i++) shift[prefix[i] & 0xff] = prefix.length - 1 - i;
+        } else {
+            shift = null;
+        }
+    }
+
+    /**
+     * Compile regex for payloads in charset or return null if it cannot be matched on bytes. The regex must
+     * already have been checked with {@link java.util.regex.Pattern#compile(String)}.
+     */
+    public static BytePattern compile(String regex, Charset charset) {
+        Mode mode;
+        String cs = charset.name();
+        if ("UTF-8".equals(cs)) mode = Mode.UTF8;
+        else if ("ISO-8859-1".equals(cs)) mode = Mode.LATIN1;
+        else if ("US-ASCII".equals(cs)) mode = Mode.ASCII;
+        else return null;
+
+        Node root;
+        try {
+            root = new Parser(regex, mode).parse();
+        } catch (Unsupported e) {
+            return null;
+        }
+
+        // leading single byte nodes are the literal prefix, if that is everything then we don't need a DFA
+        List<Node> seq = root instanceof Seq ? ((Seq)root).nodes : Collections.singletonList(root);
+        int n = 0;
+        while (n < seq.size() && seq.get(n) instanceof Bytes && ((Bytes)seq.get(n)).single() >= 0) ++n;
+        byte[] prefix = new byte[n];
+        for (int i = 0; i < n; i++) prefix[i] = (byte)((Bytes)seq.get(i)).single();
+        if (n == seq.size()) return new BytePattern(prefix, null, null);
+
+        Dfa d;
+        try {
+            d = new Dfa(root);
+        } catch (Unsupported e) {
+            return null;    // too many NFA states
+        }
+        if (!d.build()) return null;
+        return new BytePattern(prefix, d.table, d.accepting);
+    }
+
+    /**
+     * Does the pattern occur anywhere in payload?
+     */
+    public boolean find(byte[] payload) {
+        int start = 0;
+        if (shift != null) {
+            start = indexOfPrefix(payload);
+            if (start < 0) return false;
+        }
+        if (dfa == null) return true;
+        int s = 0;
+        if (accepting[s]) return true;
+        for (int i = start, n = payload.length; i < n; i++) {
+            s = dfa[(s << 8) | (payload[i] & 0xff)];
+            if (accepting[s]) return true;
+        }
+        return false;
+    }
+
+    private int indexOfPrefix(byte[] payload) {
+        int m = prefix.length;
+        int last = m - 1;
+        for (int i = 0, limit = payload.length - m; i <= limit; i += shift[payload[i + last] & 0xff]) {
+            int j = last;
+            while (payload[i + j] == prefix[j]) {
+                if (--j < 0) return i;
+            }
+        }
+        return -1;
+    }
+
+    private enum Mode { UTF8, LATIN1, ASCII }
+
+    private static class Unsupported extends Exception {
+    }
+
+    private static abstract class Node {
+    }
+
+    /** Matches one byte from a set. */
+    private static class Bytes extends Node {
+        final BitSet set;
+
+        Bytes(BitSet set) {
+            this.set = set;
+        }
+
+        int single() {
+            return set.cardinality() == 1 ? set.nextSetBit(0) : -1;
+        }
+    }
+
+    private static class Seq extends Node {
+        final List<Node> nodes;
+
+        Seq(List<Node> nodes) {
+            this.nodes = nodes;
+        }
+    }
+
+    private static class Alt extends Node {
+        final List<Node> nodes;
+
+        Alt(List<Node> nodes) {
+            this.nodes = nodes;
+        }
+    }
+
+    private static class Repeat extends Node {
+        final Node node;
+        final int min, max;   // max is -1 for no limit
+
+        Repeat(Node node, int min, int max) {
+            this.node = node;
+            this.min = min;
+            this.max = max;
+        }
+    }
+
+    /**
+     * Recursive descent parser for the subset of java.util.regex syntax we can match on bytes.
+     */
+    private static class Parser {
+
+        private final String s;
+        private final Mode mode;
+        private int pos;
+
+        Parser(String s, Mode mode) {
+            this.s = s;
+            this.mode = mode;
+        }
+
+        Node parse() throws Unsupported {
+            Node n = parseAlt();
+            if (pos < s.length()) throw new Unsupported();
+            return n;
+        }
+
+        private Node parseAlt() throws Unsupported {
+            List<Node> alts = new ArrayList<Node>();
+            alts.add(parseSeq());
+            while (pos < s.length() && s.charAt(pos) == '|') {
+                ++pos;
+                alts.add(parseSeq());
+            }
+            return alts.size() == 1 ? alts.get(0) : new Alt(alts);
+        }
+
+        private Node parseSeq() throws Unsupported {
+            List<Node> nodes = new ArrayList<Node>();
+            while (pos < s.length()) {
+                char c = s.charAt(pos);
+                if (c == '|' || c == ')') break;
+                Node atom = parseAtom();
+                Node q = parseQuantifier(atom);
+                if (q instanceof Seq && q == atom) nodes.addAll(((Seq)q).nodes);   // flatten multi byte literals
+                else nodes.add(q);
+            }
+            return nodes.size() == 1 ? nodes.get(0) : new Seq(nodes);
+        }
+
+        private Node parseQuantifier(Node atom) throws Unsupported {
+            if (pos >= s.length()) return atom;
+            int min, max;
+            switch (s.charAt(pos)) {
+                case '*':   min = 0; max = -1; ++pos; break;
+                case '+':   min = 1; max = -1; ++pos; break;
+                case '?':   min = 0; max = 1; ++pos; break;
+                case '{':
+                    int close = s.indexOf('}', pos);
+                    if (close < 0) throw new Unsupported();
+                    String[] toks = s.substring(pos + 1, close).split(",", -1);
+                    try {
+                        min = Integer.parseInt(toks[0]);
+                        if (toks.length == 1) max = min;
+                        else if (toks.length == 2) max = toks[1].length() == 0 ? -1 : Integer.parseInt(toks[1]);
+                        else throw new Unsupported();
+                    } catch (NumberFormatException e) {
+                        throw new Unsupported();
+                    }
+                    if (min > MAX_REPEAT || max > MAX_REPEAT) throw new Unsupported();
+                    pos = close + 1;
+                    break;
+                default:
+                    return atom;
+            }
+            if (pos < s.length()) {
+                char c = s.charAt(pos);
+                if (c == '?') ++pos;                        // lazy makes no difference to find
+                else if (c == '+') throw new Unsupported(); // possessive can prevent a match
+            }
+            return new Repeat(atom, min, max);
+        }
+
+        private Node parseAtom() throws Unsupported {
+            char c = s.charAt(pos++);
+            switch (c) {
+                case '(':
+                    if (pos < s.length() && s.charAt(pos) == '?') {
+                        if (pos + 1 < s.length() && s.charAt(pos + 1) == ':') pos += 2;
+                        else throw new Unsupported();
+                    }
+                    Node n = parseAlt();
+                    if (pos >= s.length() || s.charAt(pos) != ')') throw new Unsupported();
+                    ++pos;
+                    return n;
+                case '[':
+                    return parseClass();
+                case '.':
+                    if (mode == Mode.UTF8) throw new Unsupported();
+                    BitSet set = new BitSet(256);
+                    set.set(0, 256);
+                    set.clear('\n');
+                    set.clear('\r');
+                    if (mode == Mode.LATIN1) set.clear(0x85);   // NEL is a line terminator
+                    return new Bytes(set);
+                case '\\':
+                    BitSet esc = parseEscapeSet();
+                    return esc != null ? new Bytes(esc) : literal(parseEscapeChar());
+                case '^': case '$': case '*': case '+': case '?': case '{':
+                    throw new Unsupported();
+                default:
+                    return literal(c);
+            }
+        }
+
+        /**
+         * Parse a \d, \w, \s or negated version after the backslash or return null if it is not one of those.
+         */
+        private BitSet parseEscapeSet() throws Unsupported {
+            if (pos >= s.length()) throw new Unsupported();
+            char c = s.charAt(pos);
+            BitSet set = new BitSet(256);
+            switch (Character.toLowerCase(c)) {
+                case 'd':
+                    set.set('0', '9' + 1);
+                    break;
+                case 'w':
+                    set.set('a', 'z' + 1);
+                    set.set('A', 'Z' + 1);
+                    set.set('0', '9' + 1);
+                    set.set('_');
+                    break;
+                case 's':
+                    set.set(' ');
+                    set.set('\t');
+                    set.set('\n');
+                    set.set(0x0B);
+                    set.set('\f');
+                    set.set('\r');
+                    break;
+                default:
+                    return null;
+            }
+            ++pos;
+            if (Character.isUpperCase(c)) negate(set);
+            return set;
+        }
+
+        private char parseEscapeChar() throws Unsupported {
+            char c = s.charAt(pos++);
+            switch (c) {
+                case 't':   return '\t';
+                case 'n':   return '\n';
+                case 'r':   return '\r';
+                case 'f':   return '\f';
+                case 'a':   return '\u0007';
+                case 'e':   return '\u001B';
+                case 'x':
+                    if (pos + 2 > s.length()) throw new Unsupported();
+                    try {
+                        char x = (char)Integer.parseInt(s.substring(pos, pos + 2), 16);
+                        pos += 2;
+                        return x;
+                    } catch (NumberFormatException e) {
+                        throw new Unsupported();
+                    }
+            }
+            if (Character.isLetterOrDigit(c)) throw new Unsupported();  // \b, \Q, \p, back references etc.
+            return c;
+        }
+
+        private Node parseClass() throws Unsupported {
+            boolean negated = pos < s.length() && s.charAt(pos) == '^';
+            if (negated) ++pos;
+            BitSet set = new BitSet(256);
+            boolean first = true;
+            while (true) {
+                if (pos >= s.length()) throw new Unsupported();
+                char c = s.charAt(pos++);
+                if (c == ']' && !first) break;
+                if (c == '[' || c == ']' || c == '&' && pos < s.length() && s.charAt(pos) == '&') {
+                    throw new Unsupported();    // nested classes, intersections etc.
+                }
+                first = false;
+                if (c == '\\') {
+                    BitSet esc = parseEscapeSet();
+                    if (esc != null) {
+                        set.or(esc);
+                        continue;
+                    }
+                    c = parseEscapeChar();
+                }
+                char to = c;
+                if (pos + 1 < s.length() && s.charAt(pos) == '-' && s.charAt(pos + 1) != ']') {
+                    pos++;
+                    to = s.charAt(pos++);
+                    if (to == '\\') to = parseEscapeChar();
+                    else if (to == '[') throw new Unsupported();
+                    if (to < c) throw new Unsupported();
+                }
+                if (to >= classLimit()) throw new Unsupported();
+                set.set(c, to + 1);
+            }
+            if (mode == Mode.UTF8 && (negated || set.nextSetBit(0x80) >= 0)) throw new Unsupported();
+            if (negated) negate(set);
+            return new Bytes(set);
+        }
+
+        private int classLimit() {
+            return mode == Mode.LATIN1 ? 0x100 : 0x80;
+        }
+
+        private void negate(BitSet set) throws Unsupported {
+            if (mode == Mode.UTF8) throw new Unsupported();
+            set.flip(0, 256);
+        }
+
+        private Node literal(char c) throws Unsupported {
+            if (c < 0x80 || mode == Mode.LATIN1 && c < 0x100) return bytes(c);
+            if (mode != Mode.UTF8 || Character.isHighSurrogate(c) || Character.isLowSurrogate(c)) {
+                throw new Unsupported();
+            }
+            byte[] enc = String.valueOf(c).getBytes(Charset.forName("UTF-8"));
+            List<Node> nodes = new ArrayList<Node>(enc.length);
+            for (byte b : enc) nodes.add(bytes(b & 0xff));
+            return new Seq(nodes);
+        }
+
+        private static Bytes bytes(int b) {
+            BitSet set = new BitSet(256);
+            set.set(b);
+            return new Bytes(set);
+        }
+    }
+
+    /**
+     * A Thompson NFA for the pattern turned into a DFA by subset construction. The DFA searches for the pattern
+     * anywhere in its input by adding the NFA start state back in after every byte.
+     */
+    private static class Dfa {
+
+        private final List<BitSet> sets = new ArrayList<BitSet>();   // NFA state -> bytes it consumes or null
+        private final List<int[]> epsilons = new ArrayList<int[]>();
+        private final int start;
+        private final int match;
+
+        int[] table;
+        boolean[] accepting;
+
+        Dfa(Node root) throws Unsupported {
+            match = newState(null);
+            start = build(root, match);
+        }
+
+        private int newState(BitSet set, int... eps) throws Unsupported {
+            if (sets.size() >= MAX_NFA_STATES) throw new Unsupported();
+            sets.add(set);
+            epsilons.add(eps);
+            return sets.size() - 1;
+        }
+
+        /**
+         * Add states for node continuing to next and return the first one.
+         */
+        private int build(Node node, int next) throws Unsupported {
+            if (node instanceof Bytes) return newState(((Bytes)node).set, next);
+            if (node instanceof Seq) {
+                List<Node> nodes = ((Seq)node).nodes;
+                for (int i = nodes.size() - 1; i >= 0; i--) next = build(nodes.get(i), next);
+                return next;
+            }
+            if (node instanceof Alt) {
+                List<Node> nodes = ((Alt)node).nodes;
+                int[] eps = new int[nodes.size()];
+                for (int i = 0; i < eps.length; i++) eps[i] = build(nodes.get(i), next);
+                return newState(null, eps);
+            }
+            Repeat r = (Repeat)node;
+            if (r.max < 0) {
+                int loop = newState(null, next);
+                int body = build(r.node, loop);
+                epsilons.set(loop, new int[]{body, next});
+                next = loop;
+            } else {
+                for (int i = r.min; i < r.max; i++) next = newState(null, build(r.node, next), next);
+            }
+            for (int i = 0; i < r.min; i++) next = build(r.node, next);
+            return next;
+        }
+
+        /**
+         * Add s and all the states reachable from it without consuming a byte to states. Uses an explicit stack
+         * as chains of epsilon transitions can be long.
+         */
+        private void closure(BitSet states, int s) {
+            int[] stack = new int[16];
+            int sp = 0;
+            stack[sp++] = s;
+            while (sp > 0) {
+                s = stack[--sp];
+                if (states.get(s)) continue;
+                states.set(s);
+                if (sets.get(s) != null) continue;  // consumes a byte
+                int[] eps = epsilons.get(s);
+                if (sp + eps.length > stack.length) stack = Arrays.copyOf(stack, stack.length * 2 + eps.length);
+                for (int e : eps) stack[sp++] = e;
+            }
+        }
+
+        boolean build() {
+            BitSet startSet = new BitSet();
+            closure(startSet, start);
+
+            Map<BitSet, Integer> index = new HashMap<BitSet, Integer>();
+            List<BitSet> dstates = new ArrayList<BitSet>();
+            index.put(startSet, 0);
+            dstates.add(startSet);
+            int[] t = new int[256 * 16];
+            for (int d = 0; d < dstates.size(); d++) {
+                BitSet current = dstates.get(d);
+                // only visit the bytes each state consumes, bytes no state consumes go back to the start
+                BitSet[] targets = new BitSet[256];
+                for (int s = current.nextSetBit(0); s >= 0; s = current.nextSetBit(s + 1)) {
+                    BitSet set = sets.get(s);
+                    if (set == null) continue;
+                    for (int b = set.nextSetBit(0); b >= 0; b = set.nextSetBit(b + 1)) {
+                        if (targets[b] == null) targets[b] = (BitSet)startSet.clone();
+                        closure(targets[b], epsilons.get(s)[0]);
+                    }
+                }
+                for (int b = 0; b < 256; b++) {
+                    BitSet ns = targets[b] == null ? startSet : targets[b];
+                    Integer i = index.get(ns);
+                    if (i == null) {
+                        if (dstates.size() >= MAX_DFA_STATES) return false;
+                        index.put(ns, i = dstates.size());
+                        dstates.add(ns);
+                    }
+                    int k = (d << 8) | b;
+                    if (k >= t.length) t = Arrays.copyOf(t, t.length * 2);
+                    t[k] = i;
+                }
+            }
+            table = Arrays.copyOf(t, dstates.size() * 256);
+            accepting = new boolean[dstates.size()];
+            for (int d = 0; d < accepting.length; d++) accepting[d] = dstates.get(d).get(match);
+            return true;
+        }
+    }
+}
@@ -0,0 +1,30 @@
+package io.qdb.server.filter;
+
+import io.qdb.server.model.Queue;
+
+/**
+ * Accepts messages matching a {@link FilterExpression}. This is the filter used when a where parameter is supplied
+ * without a filter parameter.
+ */
+public class ExpressionMessageFilter implements MessageFilter, TopicFilter {
+
+    public String where;
+
+    private FilterExpression expression;
+
+    @Override
+    public void init(Queue q) throws IllegalArgumentException {
+        expression = FilterExpression.parse(where, q);
+    }
+
+    @Override
+    public Result accept(long id, long timestamp, String routingKey, byte[] payload) {
+        if (payload == null) return expression.header(id, timestamp, routingKey);
+        return expression.matches(id, timestamp, routingKey, payload) ? Result.ACCEPT : Result.REJECT;
+    }
+
+    @Override
+    public String getTopicPattern() {
+        return expression.getTopicPattern();
+    }
+}
@@ -0,0 +1,737 @@
+package io.qdb.server.filter;
+
+import com.fasterxml.jackson.core.JsonParser;
+import com.fasterxml.jackson.core.JsonToken;
+import com.fasterxml.jackson.databind.JsonNode;
+import io.qdb.server.databind.DateTimeParser;
+import io.qdb.server.model.Queue;
+
+import java.io.IOException;
+import java.text.ParseException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.regex.Pattern;
+import java.util.regex.PatternSyntaxException;
+
+/**
+ * A compiled filter expression. Predicates on the routing key, id, timestamp, payload size, payload text (regex)
+ * and JSON payload fields are combined with and, or, not and brackets e.g.
+ * <pre>routingKey = 'orders.#' and timestamp >= '2013-06-01' and ($.type = 'refund' or size > 10000)</pre>
+ * The operands of each and/or are re-ordered so predicates that only need the message header are checked first.
+ * The payload is only requested if the header predicates cannot decide the result on their own.
+ */
+public abstract class FilterExpression {
+
+    private static final int COST_HEADER = 0;
+    private static final int COST_ROUTING_KEY = 1;
+    private static final int COST_SIZE = 2;
+    private static final int COST_GREP = 3;
+    private static final int COST_JSON = 4;
+
+    /**
+     * Evaluate using only the message header. Returns {@link MessageFilter.Result#CHECK_PAYLOAD} if the result
+     * depends on the payload.
+     */
+    public abstract MessageFilter.Result header(long id, long timestamp, String routingKey);
+
+    private int jsonPredicates;
+
+    /**
+     * Evaluate using the header and payload. If the expression has more than one JSON predicate the payload is
+     * parsed once into a tree shared by all of them, otherwise the single JSON predicate streams the payload.
+     */
+    public boolean matches(long id, long timestamp, String routingKey, byte[] payload) {
+        return matches(id, timestamp, routingKey, payload, jsonPredicates > 1 ? new JsonTree(payload) : null);
+    }
+
+    /**
+     * Evaluate using the header and payload. JSON predicates use json if it is not null.
+     */
+    protected abstract boolean matches(long id, long timestamp, String routingKey, byte[] payload, JsonTree json);
+
+    /**
+     * How expensive is this expression to evaluate? Expressions that need the payload cost more than header only
+     * expressions.
+     */
+    protected abstract int cost();
+
+    /**
+     * Get a topic pattern all messages accepted by this expression match or null if there isn't one.
+     */
+    public String getTopicPattern() {
+        return null;
+    }
+
+    private static final Comparator<FilterExpression> BY_COST = new Comparator<FilterExpression>() {
+        @Override
+        public int compare(FilterExpression a, FilterExpression b) {
+            return a.cost() - b.cost();
+        }
+    };
+
+    /**
+     * Parse and compile s. Payload text predicates use the charset from the contentType of q (if not null).
+     * @throws IllegalArgumentException if s is invalid
+     */
+    public static FilterExpression parse(String s, Queue q) throws IllegalArgumentException {
+        return parse(s, q, false);
+    }
+
+    /**
+     * Parse and compile s which may only contain JSON path predicates.
+     * @throws IllegalArgumentException if s is invalid
+     */
+    public static FilterExpression parseJson(String s) throws IllegalArgumentException {
+        return parse(s, null, true);
+    }
+
+    private static FilterExpression parse(String s, Queue q, boolean jsonOnly) {
+        if (s == null || s.trim().length() == 0) throw new IllegalArgumentException("Filter expression is required");
+        Parser p = new Parser(s, q, jsonOnly);
+        FilterExpression e = p.parseOr();
+        if (p.type != Parser.EOF) throw p.error("Unexpected " + p.describe());
+        e.jsonPredicates = p.jsonPredicates;
+        return e;
+    }
+
+    /**
+     * The payload parsed into a tree on first use.
+     */
+    protected static final class JsonTree {
+        private final byte[] payload;
+        private JsonNode root;
+        private boolean parsed;
+
+        JsonTree(byte[] payload) {
+            this.payload = payload;
+        }
+
+        /**
+         * Get the root of the tree or null if the payload is not JSON.
+         */
+        JsonNode root() {
+            if (!parsed) {
+                parsed = true;
+                try {
+                    root = JsonPath.readTree(payload);
+                } catch (IOException ignore) {
+                }
+            }
+            return root;
+        }
+    }
+
+    private static class And extends FilterExpression {
+
+        private final FilterExpression[] operands;
+        private final int cost;
+
+        And(List<FilterExpression> list) {
+            operands = list.toArray(new FilterExpression[list.size()]);
+            Arrays.sort(operands, BY_COST);
+            cost = operands[operands.length - 1].cost();
+        }
+
+        @Override
+        public MessageFilter.Result header(long id, long timestamp, String routingKey) {
+            MessageFilter.Result ans = MessageFilter.Result.ACCEPT;
+            for (FilterExpression e : operands) {
+                MessageFilter.Result r = e.header(id, timestamp, routingKey);
+                if (r == MessageFilter.Result.REJECT) return r;
+                if (r == MessageFilter.Result.CHECK_PAYLOAD) ans = r;
+            }
+            return ans;
+        }
+
+        @Override
+        protected boolean matches(long id, long timestamp, String routingKey, byte[] payload, JsonTree json) {
+            for (FilterExpression e : operands) if (!e.matches(id, timestamp, routingKey, payload, json)) return false;
+            return true;
+        }
+
+        @Override
+        protected int cost() {
+            return cost;
+        }
+
+        @Override
+        public String getTopicPattern() {
+            for (FilterExpression e : operands) {
+                String s = e.getTopicPattern();
+                if (s != null) return s;
+            }
+            return null;
+        }
+    }
+
+    private static class Or extends FilterExpression {
+
+        private final FilterExpression[] operands;
+        private final int cost;
+
+        Or(List<FilterExpression> list) {
+            operands = list.toArray(new FilterExpression[list.size()]);
+            Arrays.sort(operands, BY_COST);
+            cost = operands[operands.length - 1].cost();
+        }
+
+        @Override
+        public MessageFilter.Result header(long id, long timestamp, String routingKey) {
+            MessageFilter.Result ans = MessageFilter.Result.REJECT;
+            for (FilterExpression e : operands) {
+                MessageFilter.Result r = e.header(id, timestamp, routingKey);
+                if (r == MessageFilter.Result.ACCEPT) return r;
+                if (r == MessageFilter.Result.CHECK_PAYLOAD) ans = r;
+            }
+            return ans;
+        }
+
+        @Override
+        protected boolean matches(long id, long timestamp, String routingKey, byte[] payload, JsonTree json) {
+            for (FilterExpression e : operands) if (e.matches(id, timestamp, routingKey, payload, json)) return true;
+            return false;
+        }
+
+        @Override
+        protected int cost() {
+            return cost;
+        }
+    }
+
+    private static class Not extends FilterExpression {
+
+        private final FilterExpression operand;
+
+        Not(FilterExpression operand) {
+            this.operand = operand;
+        }
+
+        @Override
+        public MessageFilter.Result header(long id, long timestamp, String routingKey) {
+            switch (operand.header(id, timestamp, routingKey)) {
+                case ACCEPT:    return MessageFilter.Result.REJECT;
+                case REJECT:    return MessageFilter.Result.ACCEPT;
+            }
+            return MessageFilter.Result.CHECK_PAYLOAD;
+        }
+
+        @Override
+        protected boolean matches(long id, long timestamp, String routingKey, byte[] payload, JsonTree json) {
+            return !operand.matches(id, timestamp, routingKey, payload, json);
+        }
+
+        @Override
+        protected int cost() {
+            return operand.cost();
+        }
+    }
+
+    /**
+     * Base class for predicates that only need the message header.
+     */
+    private static abstract class HeaderPredicate extends FilterExpression {
+
+        abstract boolean test(long id, long timestamp, String routingKey);
+
+        @Override
+        public MessageFilter.Result header(long id, long timestamp, String routingKey) {
+            return test(id, timestamp, routingKey) ? MessageFilter.Result.ACCEPT : MessageFilter.Result.REJECT;
+        }
+
+        @Override
+        protected boolean matches(long id, long timestamp, String routingKey, byte[] payload, JsonTree json) {
+            return test(id, timestamp, routingKey);
+        }
+    }
+
+    /**
+     * Base class for predicates that need the payload.
+     */
+    private static abstract class PayloadPredicate extends FilterExpression {
+
+        @Override
+        public MessageFilter.Result header(long id, long timestamp, String routingKey) {
+            return MessageFilter.Result.CHECK_PAYLOAD;
+        }
+    }
+
+    private static boolean compare(int c, String op) {
+        if ("=".equals(op)) return c == 0;
+        if ("!=".equals(op)) return c != 0;
+        if ("<".equals(op)) return c < 0;
+        if ("<=".equals(op)) return c <= 0;
+        if (">".equals(op)) return c > 0;
+        return c >= 0;
+    }
+
+    private static int compare(long a, long b) {
+        return a < b ? -1 : a > b ? 1 : 0;
+    }
+
+    private static class IdPredicate extends HeaderPredicate {
+        private final String op;
+        private final long value;
+
+        IdPredicate(String op, long value) {
+            this.op = op;
+            this.value = value;
+        }
+
+        @Override
+        boolean test(long id, long timestamp, String routingKey) {
+            return compare(compare(id, value), op);
+        }
+
+        @Override
+        protected int cost() {
+            return COST_HEADER;
+        }
+    }
+
+    private static class TimestampPredicate extends HeaderPredicate {
+        private final String op;
+        private final long value;
+
+        TimestampPredicate(String op, long value) {
+            this.op = op;
+            this.value = value;
+        }
+
+        @Override
+        boolean test(long id, long timestamp, String routingKey) {
+            return compare(compare(timestamp, value), op);
+        }
+
+        @Override
+        protected int cost() {
+            return COST_HEADER;
+        }
+    }
+
+    private static class RoutingKeyPredicate extends HeaderPredicate {
+        private final RoutingKeyMessageFilter filter = new RoutingKeyMessageFilter();
+
+        RoutingKeyPredicate(String routingKey, Queue q) {
+            filter.routingKey = routingKey;
+            filter.init(q);
+        }
+
+        @Override
+        boolean test(long id, long timestamp, String routingKey) {
+            return filter.accept(id, timestamp, routingKey, null) == MessageFilter.Result.ACCEPT;
+        }
+
+        @Override
+        protected int cost() {
+            return COST_ROUTING_KEY;
+        }
+
+        @Override
+        public String getTopicPattern() {
+            return filter.getTopicPattern();
+        }
+    }
+
+    private static class RoutingKeyRegexPredicate extends HeaderPredicate {
+        private final Pattern pattern;
+
+        RoutingKeyRegexPredicate(Pattern pattern) {
+            this.pattern = pattern;
+        }
+
+        @Override
+        boolean test(long id, long timestamp, String routingKey) {
+            return pattern.matcher(routingKey == null ? "" : routingKey).find();
+        }
+
+        @Override
+        protected int cost() {
+            return COST_ROUTING_KEY;
+        }
+    }
+
+    private static class SizePredicate extends PayloadPredicate {
+        private final String op;
+        private final long value;
+
+        SizePredicate(String op, long value) {
+            this.op = op;
+            this.value = value;
+        }
+
+        @Override
+        protected boolean matches(long id, long timestamp, String routingKey, byte[] payload, JsonTree json) {
+            return compare(compare(payload.length, value), op);
+        }
+
+        @Override
+        protected int cost() {
+            return COST_SIZE;
+        }
+    }
+
+    private static class GrepPredicate extends PayloadPredicate {
+        private final GrepMessageFilter filter = new GrepMessageFilter();
+
+        GrepPredicate(String regex, Queue q) {
+            filter.grep = regex;
+            filter.init(q);
+        }
+
+        @Override
+        protected boolean matches(long id, long timestamp, String routingKey, byte[] payload, JsonTree json) {
+            return filter.accept(id, timestamp, routingKey, payload) == MessageFilter.Result.ACCEPT;
+        }
+
+        @Override
+        protected int cost() {
+            return COST_GREP;
+        }
+    }
+
+    private static class JsonPredicate extends PayloadPredicate {
+        private final JsonPath path;
+        private final String op;        // null to test if the field exists
+        private final Object value;     // String, Double, Boolean or null
+        private final Pattern pattern;
+
+        JsonPredicate(JsonPath path, String op, Object value, Pattern pattern) {
+            this.path = path;
+            this.op = op;
+            this.value = value;
+            this.pattern = pattern;
+        }
+
+        @Override
+        protected boolean matches(long id, long timestamp, String routingKey, byte[] payload, JsonTree json) {
+            if (json != null) {
+                JsonNode root = json.root();
+                return root != null && matches(path.find(root));   // not JSON so no JSON predicates can match
+            }
+            JsonParser p = null;
+            try {
+                p = JsonPath.createParser(payload);
+                return matches(p, path.find(p));
+            } catch (IOException e) {
+                return false;   // not JSON so no JSON predicates can match
+            } finally {
+                if (p != null) {
+                    try {
+                        p.close();
+                    } catch (IOException ignore) {
+                    }
+                }
+            }
+        }
+
+        private boolean matches(JsonParser p, JsonToken t) throws IOException {
+            if (op == null) return t != null;
+            if (pattern != null) return t != null && t.isScalarValue() && pattern.matcher(p.getText()).find();
+            if (t == null) return "!=".equals(op);
+            int c;
+            if (value == null) {
+                c = t == JsonToken.VALUE_NULL ? 0 : 1;
+            } else if (value instanceof Double) {
+                if (!t.isNumeric()) return "!=".equals(op);
+                c = Double.compare(p.getDoubleValue(), (Double)value);
+            } else if (value instanceof Boolean) {
+                if (t != JsonToken.VALUE_TRUE && t != JsonToken.VALUE_FALSE) return "!=".equals(op);
+                c = (t == JsonToken.VALUE_TRUE) == (Boolean)value ? 0 : 1;
+            } else {
+                if (t != JsonToken.VALUE_STRING) return "!=".equals(op);
+                c = p.getText().compareTo((String)value);
+            }
+            return compare(c, op);
+        }
+
+        private boolean matches(JsonNode n) {
+            if (op == null) return n != null;
+            if (pattern != null) return n != null && n.isValueNode() && pattern.matcher(n.asText()).find();
+            if (n == null) return "!=".equals(op);
+            int c;
+            if (value == null) {
+                c = n.isNull() ? 0 : 1;
+            } else if (value instanceof Double) {
+                if (!n.isNumber()) return "!=".equals(op);
+                c = Double.compare(n.asDouble(), (Double)value);
+            } else if (value instanceof Boolean) {
+                if (!n.isBoolean()) return "!=".equals(op);
+                c = n.booleanValue() == (Boolean)value ? 0 : 1;
+            } else {
+                if (!n.isTextual()) return "!=".equals(op);
+                c = n.textValue().compareTo((String)value);
+            }
+            return compare(c, op);
+        }
+
+        @Override
+        protected int cost() {
+            return COST_JSON;
+        }
+    }
+
+    /**
+     * Recursive descent parser for filter expressions.
+     */
+    private static class Parser {
+
+        static final Set<String> FIELDS = new HashSet<String>(
+                Arrays.asList("routingKey", "id", "timestamp", "size", "payload"));
+
+        static final int EOF = 0, LPAREN = 1, RPAREN = 2, AND = 3, OR = 4, NOT = 5, OP = 6, IDENT = 7, STRING = 8,
+                NUMBER = 9, PATH = 10, BOOLEAN = 11, NULL = 12;
+
+        private final String s;
+        private final Queue q;
+        private final boolean jsonOnly;
+        private int pos;
+
+        int type;
+        String text;
+        int tokenStart;
+        List<Object> path;
+        int jsonPredicates;
+
+        Parser(String s, Queue q, boolean jsonOnly) {
+            this.s = s;
+            this.q = q;
+            this.jsonOnly = jsonOnly;
+            next();
+        }
+
+        IllegalArgumentException error(String msg) {
+            return new IllegalArgumentException(msg + " at position " + tokenStart + " in filter expression [" + s + "]");
+        }
+
+        String describe() {
+            return type == EOF ? "end of expression" : "[" + s.substring(tokenStart, pos) + "]";
+        }
+
+        FilterExpression parseOr() {
+            List<FilterExpression> list = new ArrayList<FilterExpression>();
+            list.add(parseAnd());
+            while (type == OR) {
+                next();
+                list.add(parseAnd());
+            }
+            return list.size() == 1 ? list.get(0) : new Or(list);
+        }
+
+        FilterExpression parseAnd() {
+            List<FilterExpression> list = new ArrayList<FilterExpression>();
+            list.add(parseNot());
+            while (type == AND) {
+                next();
+                list.add(parseNot());
+            }
+            return list.size() == 1 ? list.get(0) : new And(list);
+        }
+
+        FilterExpression parseNot() {
+            if (type == NOT) {
+                next();
+                return new Not(parseNot());
+            }
+            if (type == LPAREN) {
+                next();
+                FilterExpression e = parseOr();
+                if (type != RPAREN) throw error("Expected ')' instead of " + describe());
+                next();
+                return e;
+            }
+            if (type == PATH) return parseJson();
+            if (jsonOnly) throw error("Expected JSON path instead of " + describe());
+            if (type != IDENT) throw error("Expected predicate instead of " + describe());
+            String field = text;
+            if (!FIELDS.contains(field)) {
+                throw error("Unknown field [" + field + "], expected routingKey, id, timestamp, size, payload or " +
+                        "a JSON path");
+            }
+            next();
+            if (type != OP) throw error("Expected operator after " + field + " instead of " + describe());
+            String op = text;
+            next();
+            if ("routingKey".equals(field)) {
+                String v = expectString(field);
+                if ("~".equals(op)) return new RoutingKeyRegexPredicate(compileRegex(v));
+                if (!"=".equals(op) && !"!=".equals(op)) throw error("Invalid operator " + op + " for " + field);
+                FilterExpression e;
+                try {
+                    e = new RoutingKeyPredicate(v, q);
+                } catch (IllegalArgumentException x) {
+                    throw error(x.getMessage());
+                }
+                return "!=".equals(op) ? new Not(e) : e;
+            } else if ("payload".equals(field)) {
+                if (!"~".equals(op)) throw error("Invalid operator " + op + " for " + field + ", expected ~");
+                try {
+                    return new GrepPredicate(expectString(field), q);
+                } catch (IllegalArgumentException x) {
+                    throw error(x.getMessage());
+                }
+            } else if ("id".equals(field)) {
+                return new IdPredicate(checkCompareOp(op, field), expectLong(field));
+            } else if ("size".equals(field)) {
+                return new SizePredicate(checkCompareOp(op, field), expectLong(field));
+            } else {    // timestamp
+                checkCompareOp(op, field);
+                long v;
+                if (type == STRING) {
+                    try {
+                        v = DateTimeParser.INSTANCE.parse(text).getTime();
+                    } catch (ParseException e) {
+                        throw error("Invalid timestamp [" + text + "]: " + e.getMessage());
+                    }
+                    next();
+                } else {
+                    v = expectLong(field);
+                }
+                return new TimestampPredicate(op, v);
+            }
+        }
+
+        FilterExpression parseJson() {
+            ++jsonPredicates;
+            JsonPath p = new JsonPath(path.toArray());
+            next();
+            if (type != OP) return new JsonPredicate(p, null, null, null);
+            String op = text;
+            next();
+            Object v;
+            if (type == STRING) v = text;
+            else if (type == NUMBER) v = Double.valueOf(text);
+            else if (type == BOOLEAN) v = Boolean.valueOf(text);
+            else if (type == NULL) v = null;
+            else throw error("Expected value instead of " + describe());
+            Pattern pattern = null;
+            if ("~".equals(op)) {
+                if (!(v instanceof String)) throw error("Expected regex string after ~");
+                pattern = compileRegex((String)v);
+            } else if (v == null && !"=".equals(op) && !"!=".equals(op)) {
+                throw error("Invalid operator " + op + " for null");
+            }
+            next();
+            return new JsonPredicate(p, op, v, pattern);
+        }
+
+        Pattern compileRegex(String regex) {
+            try {
+                return Pattern.compile(regex);
+            } catch (PatternSyntaxException e) {
+                throw error("Invalid regex [" + regex + "]: " + e.getDescription());
+            }
+        }
+
+        String checkCompareOp(String op, String field) {
+            if ("~".equals(op)) throw error("Invalid operator " + op + " for " + field);
+            return op;
+        }
+
+        String expectString(String field) {
+            if (type != STRING) throw error("Expected quoted string for " + field + " instead of " + describe());
+            String v = text;
+            next();
+            return v;
+        }
+
+        long expectLong(String field) {
+            if (type != NUMBER) throw error("Expected number for " + field + " instead of " + describe());
+            long v;
+            try {
+                v = Long.parseLong(text);
+            } catch (NumberFormatException e) {
+                throw error("Expected whole number for " + field + " instead of " + describe());
+            }
+            next();
+            return v;
+        }
+
+        void next() {
+            int n = s.length();
+            while (pos < n && Character.isWhitespace(s.charAt(pos))) ++pos;
+            tokenStart = pos;
+            if (pos >= n) {
+                type = EOF;
+                return;
+            }
+            char c = s.charAt(pos);
+            if (c == '(') {
+                ++pos;
+                type = LPAREN;
+            } else if (c == ')') {
+                ++pos;
+                type = RPAREN;
+            } else if (c == '&' && s.startsWith("&&", pos)) {
+                pos += 2;
+                type = AND;
+            } else if (c == '|' && s.startsWith("||", pos)) {
+                pos += 2;
+                type = OR;
+            } else if (c == '!' && !s.startsWith("!=", pos)) {
+                ++pos;
+                type = NOT;
+            } else if (c == '=' || c == '~') {
+                ++pos;
+                type = OP;
+                text = String.valueOf(c);
+            } else if (c == '!' || c == '<' || c == '>') {
+                ++pos;
+                if (pos < n && s.charAt(pos) == '=') ++pos;
+                else if (c == '!') throw error("Expected != ");
+                type = OP;
+                text = s.substring(tokenStart, pos);
+            } else if (c == '\'' || c == '"') {
+                text = readString();
+                type = STRING;
+            } else if (c == '-' || c >= '0' && c <= '9') {
+                ++pos;
+                while (pos < n && isNumberChar(s.charAt(pos))) ++pos;
+                text = s.substring(tokenStart, pos);
+                type = NUMBER;
+                try {
+                    Double.parseDouble(text);
+                } catch (NumberFormatException e) {
+                    throw error("Invalid number [" + text + "]");
+                }
+            } else if (c == '$') {
+                path = new ArrayList<Object>();
+                try {
+                    pos = JsonPath.read(s, pos, path);
+                } catch (IllegalArgumentException e) {
+                    throw new IllegalArgumentException(e.getMessage() + " in filter expression [" + s + "]");
+                }
+                type = PATH;
+            } else if (Character.isJavaIdentifierStart(c)) {
+                while (pos < n && Character.isJavaIdentifierPart(s.charAt(pos))) ++pos;
+                text = s.substring(tokenStart, pos);
+                String lc = text.toLowerCase();
+                if ("and".equals(lc)) type = AND;
+                else if ("or".equals(lc)) type = OR;
+                else if ("not".equals(lc)) type = NOT;
+                else if ("true".equals(lc) || "false".equals(lc)) type = BOOLEAN;
+                else if ("null".equals(lc)) type = NULL;
+                else type = IDENT;
+            } else {
+                throw error("Unexpected character '" + c + "'");
+            }
+        }
+
+        private boolean isNumberChar(char c) {
+            return c >= '0' && c <= '9' || c == '.' || c == 'e' || c == 'E' || c == '-' || c == '+';
+        }
+
+        private String readString() {
+            StringBuilder b = new StringBuilder();
+            try {
+                pos = JsonPath.readString(s, pos, b);
+            } catch (IllegalArgumentException e) {
+                throw error("Unterminated string");
+            }
+            return b.toString();
+        }
+    }
+}
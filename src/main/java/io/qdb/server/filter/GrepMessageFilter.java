@@ -10,13 +10,15 @@ import java.util.regex.PatternSyntaxException;
 
 /**
  * Accepts messages with payload as a String matching a regex. The contentType of the queue is used to find the
- * encoding of the payload with UTF8 being the default.
+ * encoding of the payload with UTF8 being the default. Most patterns are matched directly on the payload bytes
+ * by a {@link BytePattern}. The payload is only decoded to a String for patterns that need full regex support.
  */
 public class GrepMessageFilter implements MessageFilter {
 
     public String grep;
 
     private Pattern pattern;
+    private BytePattern bytePattern;
     private String encoding;
 
     @Override
@@ -30,17 +32,20 @@ public class GrepMessageFilter implements MessageFilter {
         if (q != null) encoding = new ContentParser(q.getContentType()).getCharset();
 
         if (encoding == null || encoding.length() == 0) encoding = "UTF8";
+        Charset charset;
         try {
-            Charset.forName(encoding);
+            charset = Charset.forName(encoding);
         } catch (Exception e) {
             throw new IllegalArgumentException("Invalid queue charset in contentType [" +
                     (q == null ? "(no queue?)" : q.getContentType()) + "]");
         }
+        bytePattern = BytePattern.compile(grep, charset);
     }
 
     @Override
     public Result accept(long id, long timestamp, String routingKey, byte[] payload) {
         if (payload == null) return Result.CHECK_PAYLOAD;
+        if (bytePattern != null) return bytePattern.find(payload) ? Result.ACCEPT : Result.REJECT;
         String s;
         try {
             s = new String(payload, encoding);
@@ -0,0 +1,27 @@
+package io.qdb.server.filter;
+
+import io.qdb.server.model.Queue;
+
+/**
+ * Accepts JSON messages matching one or more JSON path predicates combined with and, or and not e.g.
+ * <pre>$.type = 'refund' and $.amount > 100</pre>
+ * Payloads are streamed and parsing stops as soon as the value for each predicate has been found. Messages that
+ * are not JSON are rejected.
+ */
+public class JsonMessageFilter implements MessageFilter {
+
+    public String json;
+
+    private FilterExpression expression;
+
+    @Override
+    public void init(Queue q) throws IllegalArgumentException {
+        expression = FilterExpression.parseJson(json);
+    }
+
+    @Override
+    public Result accept(long id, long timestamp, String routingKey, byte[] payload) {
+        if (payload == null) return Result.CHECK_PAYLOAD;
+        return expression.matches(id, timestamp, routingKey, payload) ? Result.ACCEPT : Result.REJECT;
+    }
+}
@@ -0,0 +1,184 @@
+package io.qdb.server.filter;
+
+import com.fasterxml.jackson.core.JsonFactory;
+import com.fasterxml.jackson.core.JsonParser;
+import com.fasterxml.jackson.core.JsonToken;
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * A path to a value in a JSON document e.g. $.a.b[2]['c d']. Values are found by streaming the document with
+ * a Jackson parser. Objects and arrays not on the path are skipped without building anything and parsing stops
+ * as soon as the value is reached.
+ */
+public class JsonPath {
+
+    private static final JsonFactory FACTORY = new JsonFactory();
+    private static final ObjectMapper MAPPER = new ObjectMapper();
+
+    private final Object[] path;    // String field names and Integer array indexes
+
+    public JsonPath(Object[] path) {
+        this.path = path;
+    }
+
+    /**
+     * Parse a path like $.a.b[2]['c d']. The leading $ is optional and so is the first '.' if it is left out
+     * e.g. a.b is the same as $.a.b.
+     * @throws IllegalArgumentException if s is invalid
+     */
+    public static JsonPath parse(String s) throws IllegalArgumentException {
+        List<Object> path = new ArrayList<Object>();
+        try {
+            int pos = read(s, 0, path);
+            if (pos < s.length()) throw error("Unexpected '" + s.charAt(pos) + "'", pos);
+        } catch (IllegalArgumentException e) {
+            throw new IllegalArgumentException(e.getMessage() + " in JSON path [" + s + "]");
+        }
+        return new JsonPath(path.toArray());
+    }
+
+    /**
+     * Read a path from s starting at pos into path and return the position of the first character after it.
+     * See {@link #parse(String)} for the syntax.
+     * @throws IllegalArgumentException if the path is invalid, the message includes the position of the error
+     */
+    public static int read(String s, int pos, List<Object> path) throws IllegalArgumentException {
+        int n = s.length();
+        if (pos < n && s.charAt(pos) == '$') ++pos;
+        else if (pos < n && isNameChar(s.charAt(pos))) pos = readName(s, pos, path);
+        while (pos < n) {
+            char c = s.charAt(pos);
+            if (c == '.') {
+                pos = readName(s, pos + 1, path);
+            } else if (c == '[') {
+                ++pos;
+                if (pos < n && (s.charAt(pos) == '\'' || s.charAt(pos) == '"')) {
+                    StringBuilder b = new StringBuilder();
+                    pos = readString(s, pos, b);
+                    path.add(b.toString());
+                } else {
+                    int start = pos;
+                    while (pos < n && Character.isDigit(s.charAt(pos))) ++pos;
+                    if (pos == start) throw error("Expected array index or quoted field name", pos);
+                    path.add(Integer.valueOf(s.substring(start, pos)));
+                }
+                if (pos >= n || s.charAt(pos) != ']') throw error("Expected ']'", pos);
+                ++pos;
+            } else {
+                break;
+            }
+        }
+        if (path.isEmpty()) throw error("Expected field name or array index", pos);
+        return pos;
+    }
+
+    private static int readName(String s, int pos, List<Object> path) {
+        int start = pos;
+        while (pos < s.length() && isNameChar(s.charAt(pos))) ++pos;
+        if (pos == start) throw error("Expected field name", pos);
+        path.add(s.substring(start, pos));
+        return pos;
+    }
+
+    private static boolean isNameChar(char c) {
+        return Character.isJavaIdentifierPart(c) || c == '-';
+    }
+
+    /**
+     * Read a string quoted with the character at pos into b and return the position after the closing quote.
+     * The quote and backslash can be escaped with a backslash.
+     */
+    static int readString(String s, int pos, StringBuilder b) throws IllegalArgumentException {
+        int n = s.length();
+        char quote = s.charAt(pos);
+        for (++pos; ; ) {
+            if (pos >= n) throw error("Unterminated string", pos);
+            char c = s.charAt(pos++);
+            if (c == quote) return pos;
+            if (c == '\\' && pos < n && (s.charAt(pos) == quote || s.charAt(pos) == '\\')) c = s.charAt(pos++);
+            b.append(c);
+        }
+    }
+
+    private static IllegalArgumentException error(String msg, int pos) {
+        return new IllegalArgumentException(msg + " at position " + pos);
+    }
+
+    /**
+     * Create a parser for payload. Jackson detects the encoding (UTF-8, UTF-16 or UTF-32).
+     */
+    public static JsonParser createParser(byte[] payload) throws IOException {
+        return FACTORY.createParser(payload);
+    }
+
+    /**
+     * Advance p (positioned before the root value of a document) to the value at this path. Returns the token
+     * for the value (e.g. {@link JsonToken#VALUE_STRING}, {@link JsonToken#START_OBJECT}) with p positioned on it
+     * or null if the document does not contain the path. Throws IOException if the document is not valid JSON up
+     * to the value.
+     */
+    public JsonToken find(JsonParser p) throws IOException {
+        JsonToken t = p.nextToken();
+        for (Object segment : path) {
+            if (t == null) return null;
+            t = segment instanceof String ? findField(p, t, (String)segment) : findElement(p, t, (Integer)segment);
+        }
+        return t;
+    }
+
+    private JsonToken findField(JsonParser p, JsonToken t, String name) throws IOException {
+        if (t != JsonToken.START_OBJECT) return null;
+        while (p.nextToken() == JsonToken.FIELD_NAME) {
+            boolean match = name.equals(p.getCurrentName());
+            t = p.nextToken();
+            if (match) return t;
+            p.skipChildren();
+        }
+        return null;
+    }
+
+    private JsonToken findElement(JsonParser p, JsonToken t, int index) throws IOException {
+        if (t != JsonToken.START_ARRAY) return null;
+        for (int i = 0; ; i++) {
+            t = p.nextToken();
+            if (t == null || t == JsonToken.END_ARRAY) return null;
+            if (i == index) return t;
+            p.skipChildren();
+        }
+    }
+
+    /**
+     * Parse all of payload into a tree. Use this instead of {@link #find(JsonParser)} when several paths must be
+     * looked up in the same document. Returns null if payload is empty.
+     */
+    public static JsonNode readTree(byte[] payload) throws IOException {
+        return MAPPER.readTree(payload);
+    }
+
+    /**
+     * Get the node at this path from the tree rooted at n or null if there isn't one.
+     */
+    public JsonNode find(JsonNode n) {
+        for (Object segment : path) {
+            if (n == null) return null;
+            if (segment instanceof String) n = n.isObject() ? n.get((String)segment) : null;
+            else n = n.isArray() ? n.get((Integer)segment) : null;
+        }
+        return n;
+    }
+
+    @Override
+    public String toString() {
+        StringBuilder b = new StringBuilder("$");
+        for (Object segment : path) {
+            if (segment instanceof Integer) b.append('[').append(segment).append(']');
+            else b.append("['").append(segment).append("']");
+        }
+        return b.toString();
+    }
+}
@@ -41,16 +41,28 @@ public class MessageFilterFactory {
     }
 
     /**
-     * Create and initialize a MessageFilter instance. If filter is null then routingKey and grep are used to select
-     * a filter if either or both are not null. Returns an 'accept all' filter if all 3 are null.
+     * Create and initialize a MessageFilter instance. If filter is null then where, json, routingKey and grep are
+     * used to select a filter if any of them are not null. Returns an 'accept all' filter if they are all null.
+     * Where cannot be combined with the others.
      * @throws IllegalArgumentException on invalid parameters or filter init failure
      */
     public MessageFilter createFilter(Map params, Queue q) throws IllegalArgumentException {
         String filter = (String)params.get("filter");
         if (filter == null || filter.length() == 0) {
+            String where = (String)params.get("where");
+            String json = (String)params.get("json");
             String routingKey = (String)params.get("routingKey");
             String grep = (String)params.get("grep");
-            if (routingKey != null && routingKey.length() > 0) {
+            if (where != null && where.length() > 0) {
+                if (json != null && json.length() > 0 || routingKey != null && routingKey.length() > 0
+                        || grep != null && grep.length() > 0) {
+                    throw new IllegalArgumentException("where cannot be combined with json, routingKey or grep, " +
+                            "put those conditions in the where expression instead");
+                }
+                filter = "expr";
+            } else if (json != null && json.length() > 0) {
+                filter = "json";
+            } else if (routingKey != null && routingKey.length() > 0) {
                 if (grep != null && grep.length() > 0) filter = "standard";
                 else filter = "routingKey";
             } else if (grep != null && grep.length() > 0) {
@@ -82,6 +94,10 @@ public class MessageFilterFactory {
             cls = GrepMessageFilter.class;
         } else if ("standard".equals(filter)) {
             cls = StandardMessageFilter.class;
+        } else if ("expr".equals(filter)) {
+            cls = ExpressionMessageFilter.class;
+        } else if ("json".equals(filter)) {
+            cls = JsonMessageFilter.class;
         } else if (filter.contains(".")) {
             try {
                 cls = Class.forName(filter);
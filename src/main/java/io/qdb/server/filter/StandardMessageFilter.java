@@ -6,7 +6,7 @@ import io.qdb.server.model.Queue;
  * Combines {@link RoutingKeyMessageFilter} and {@link GrepMessageFilter}. This is the filter used when both
  * routingKey and grep parameters are supplied without a filter parameter.
  */
-public class StandardMessageFilter implements MessageFilter {
+public class StandardMessageFilter implements MessageFilter, TopicFilter {
 
     public String routingKey;
     public String grep;
@@ -31,4 +31,9 @@ public class StandardMessageFilter implements MessageFilter {
         }
         return grepMessageFilter.accept(id, timestamp, routingKey, payload);
     }
+
+    @Override
+    public String getTopicPattern() {
+        return routingKeyMessageFilter.getTopicPattern();
+    }
 }
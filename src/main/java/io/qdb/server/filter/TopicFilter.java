@@ -0,0 +1,13 @@
+package io.qdb.server.filter;
+
+/**
+ * Implemented by filters that only accept messages with routing keys matching a RabbitMQ style topic pattern. This
+ * makes it possible to use a routing key index to skip messages that cannot match.
+ */
+public interface TopicFilter {
+
+    /**
+     * Get the topic pattern all accepted messages match or null if there isn't one.
+     */
+    String getTopicPattern();
+}
@@ -0,0 +1,130 @@
+package io.qdb.server.filter;
+
+/**
+ * Matches routing keys against RabbitMQ style topic patterns. Words are separated by '.', '*' matches exactly
+ * one word and '#' matches zero or more words. A pattern of just '*' does not match an empty routing key.
+ * Patterns are compiled into a trie of words so matching walks the routing key in place without splitting it
+ * or allocating anything.
+ */
+public class TopicTrie {
+
+    private final Node root = new Node();
+
+    private static class Node {
+        String[] words;     // open addressing hash table of literal words -> children
+        Node[] children;
+        int size;
+        Node star;          // '*'
+        Node plus;          // '*' that must match a non-empty word
+        Node hash;          // '#'
+        boolean terminal;
+
+        Node child(String word) {
+            if (words == null) {
+                words = new String[8];
+                children = new Node[8];
+            } else if (size * 2 >= words.length) {
+                String[] ow = words;
+                Node[] oc = children;
+                words = new String[ow.length * 2];
+                children = new Node[ow.length * 2];
+                for (int i = 0; i < ow.length; i++) {
+                    if (ow[i] == null) continue;
+                    int j = slot(ow[i], 0, ow[i].length());
+                    words[j] = ow[i];
+                    children[j] = oc[i];
+                }
+            }
+            int i = slot(word, 0, word.length());
+            if (words[i] == null) {
+                words[i] = word;
+                children[i] = new Node();
+                ++size;
+            }
+            return children[i];
+        }
+
+        Node find(String key, int from, int to) {
+            if (words == null) return null;
+            int i = slot(key, from, to);
+            return words[i] == null ? null : children[i];
+        }
+
+        /**
+         * Find the slot holding key[from, to) or the empty slot where it would go.
+         */
+        private int slot(String key, int from, int to) {
+            int h = 0;
+            for (int i = from; i < to; i++) h = 31 * h + key.charAt(i);
+            h ^= h >>> 16;
+            int mask = words.length - 1;
+            int len = to - from;
+            for (int i = h & mask; ; i = (i + 1) & mask) {
+                String w = words[i];
+                if (w == null || w.length() == len && key.regionMatches(from, w, 0, len)) return i;
+            }
+        }
+    }
+
+    /**
+     * Add a pattern. A routing key matches if it matches any of the patterns added. As for the regex this replaces,
+     * a word starting with '*' or '#' is treated as that wildcard.
+     */
+    public void add(String pattern) {
+        if ("*".equals(pattern)) {
+            if (root.plus == null) root.plus = new Node();
+            root.plus.terminal = true;
+            return;
+        }
+        String[] terms = pattern.split("\\.");
+        if (terms.length == 0) terms = new String[]{""};
+        Node n = root;
+        int prev = -1;
+        for (String term : terms) {
+            int current = term.length() == 0 ? 0 : term.charAt(0);
+            if (current == '*') {
+                if (n.star == null) n.star = new Node();
+                n = n.star;
+            } else if (current == '#') {
+                if (prev == '#') continue;  // consecutive '#' are the same as one
+                if (n.hash == null) n.hash = new Node();
+                n = n.hash;
+            } else {
+                n = n.child(term);
+            }
+            prev = current;
+        }
+        n.terminal = true;
+    }
+
+    /**
+     * Does routingKey match any of our patterns?
+     */
+    public boolean matches(String routingKey) {
+        return match(root, routingKey == null ? "" : routingKey, 0);
+    }
+
+    /**
+     * Does the part of key starting at pos match node? There are no words left when pos is past the end of key.
+     */
+    private boolean match(Node n, String key, int pos) {
+        int len = key.length();
+        if (pos > len) return n.terminal || n.hash != null && n.hash.terminal;
+        int end = key.indexOf('.', pos);
+        if (end < 0) end = len;
+        Node c = n.find(key, pos, end);
+        if (c != null && match(c, key, end + 1)) return true;
+        if (n.star != null && match(n.star, key, end + 1)) return true;
+        if (n.plus != null && end > pos && match(n.plus, key, end + 1)) return true;
+        if (n.hash != null) {
+            // try '#' matching zero words, then one, two etc.
+            for (int p = pos; ; ) {
+                if (match(n.hash, key, p)) return true;
+                if (p > len) break;
+                int e = key.indexOf('.', p);
+                p = e < 0 ? len + 1 : e + 1;
+            }
+        }
+        return false;
+    }
+}
@@ -40,6 +40,9 @@ public interface InputHandler extends Closeable {
         /** Append a message, throws an IllegalArgumentException if payload exceeds the queue maxPayloadSize. */
         void append(String routingKey, ReadableByteChannel payload, int payloadSize) throws IOException, IllegalArgumentException;
 
+        /** Force all messages appended so far to disk. Call this before acknowledging messages to their source. */
+        void sync() throws IOException;
+
         /** Record an error. Call this on errors communicating with the source of the messages etc. */
         void error(String msg, Throwable t);
 
@@ -64,9 +67,12 @@ public interface InputHandler extends Closeable {
     void start(Sink sink) throws Exception;
 
     /**
-     * This is called when processing progress is being recorded with the new input instance. Handlers might want
-     * to update fields of the input at this time. This method must be fast.
+     * This used to be called when processing progress was recorded with the new input instance.
+     *
+     * @deprecated progress is now kept in the {@link io.qdb.server.repo.ProgressStore} without updating the
+     * input so this is no longer called
      */
+    @Deprecated
     void updateInput(Input input);
 
 }
@@ -24,6 +24,8 @@ import io.qdb.server.model.Database;
 import io.qdb.server.model.Input;
 import io.qdb.server.model.Queue;
 import io.qdb.server.queue.QueueManager;
+import io.qdb.server.queue.SubscriberRegistry;
+import io.qdb.server.repo.ProgressStore;
 import io.qdb.server.repo.Repository;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
@@ -31,9 +33,13 @@ import org.slf4j.LoggerFactory;
 import java.io.IOException;
 import java.nio.channels.ReadableByteChannel;
 import java.util.Map;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
 
 /**
- * Fetches messages from somewhere and appends them to a queue.
+ * Fetches messages from somewhere and appends them to a queue. The append methods do not lock the job so
+ * handlers may append from several threads at once. Progress is published to the fetch loop through an
+ * immutable snapshot that appenders swap in with compare-and-set.
  */
 public class InputJob implements Runnable, InputHandler.Sink {
 
@@ -42,26 +48,44 @@ public class InputJob implements Runnable, InputHandler.Sink {
     private final InputManager inputManager;
     private final InputHandlerFactory handlerFactory;
     private final QueueManager queueManager;
+    private final SubscriberRegistry subscriberRegistry;
     private final Repository repo;
+    private final ProgressStore progressStore;
     private final JsonService jsonService;
     private final String inputId;
 
     private Thread thread;
     private String inputPath;
     private Input input;
-    private int errorCount;
+    private final AtomicInteger errorCount = new AtomicInteger();
     private boolean stopFlag;
     private boolean exitFetchLoop;
-    private MessageBuffer buffer;
-    private long lastMessageTimestamp;
-    private long lastMessageId;
+    private volatile MessageBuffer buffer;
+    private volatile Queue queue;
+    private final AtomicReference<Progress> progress = new AtomicReference<Progress>(new Progress(0, 0));
+
+    /**
+     * Id and timestamp of the highest message appended so far.
+     */
+    private static final class Progress {
+        final long messageId;
+        final long timestamp;
+
+        Progress(long messageId, long timestamp) {
+            this.messageId = messageId;
+            this.timestamp = timestamp;
+        }
+    }
 
     public InputJob(InputManager inputManager, InputHandlerFactory handlerFactory, QueueManager queueManager,
-                    Repository repo, JsonService jsonService, String inputId) {
+                    SubscriberRegistry subscriberRegistry, Repository repo, ProgressStore progressStore,
+                    JsonService jsonService, String inputId) {
         this.inputManager = inputManager;
         this.handlerFactory = handlerFactory;
         this.queueManager = queueManager;
+        this.subscriberRegistry = subscriberRegistry;
         this.repo = repo;
+        this.progressStore = progressStore;
         this.jsonService = jsonService;
         this.inputId = inputId;
     }
@@ -105,7 +129,7 @@ public class InputJob implements Runnable, InputHandler.Sink {
                 return;
             }
 
-            inputPath = toPath(db, q, input);
+            inputPath = toPath(input);
 
             InputHandler handler;
             try {
@@ -129,20 +153,21 @@ public class InputJob implements Runnable, InputHandler.Sink {
                 return;
             } catch (Exception e) {
                 log.error(inputPath + ": " + e.getMessage(), e instanceof ExpectedIOException ? null : e);
-                ++errorCount;
+                errorCount.incrementAndGet();
             }
 
             try {
                 if (initOk) {
                     buffer = queueManager.getBuffer(q);
+                    queue = q;
                     if (buffer == null) {   // we might be busy starting up or something
                         if (log.isDebugEnabled()) log.debug("Queue [" + q.getId() + "] does not have a buffer");
-                        ++errorCount;
+                        errorCount.incrementAndGet();
                     } else {
                         try {
                             fetchMessages(handler);
                         } catch (Exception e) {
-                            ++errorCount;
+                            errorCount.incrementAndGet();
                             log.error(inputPath + ": " + e.getMessage(), e);
                         }
                     }
@@ -156,7 +181,7 @@ public class InputJob implements Runnable, InputHandler.Sink {
             }
 
             // todo use backoff policy from input
-            int sleepMs = errorCount * 1000;
+            int sleepMs = errorCount.get() * 1000;
             if (sleepMs > 0) {
                 try {
                     Thread.sleep(sleepMs);
@@ -167,14 +192,15 @@ public class InputJob implements Runnable, InputHandler.Sink {
     }
 
     /**
-     * Fetch messages using our handler until we are closed or our input is changed by someone else.
+     * Fetch messages using our handler until we are closed or our input is changed by someone else. Progress is
+     * recorded in the {@link ProgressStore} and not written to the input itself.
      */
     public void fetchMessages(final InputHandler handler) throws Exception {
         if (log.isDebugEnabled()) log.debug(this + ": fetching messages");
 
-        long lastMessageId = input.getLastMessageId();
-        this.lastMessageId = lastMessageId;
-        this.lastMessageTimestamp = input.getLastMessageTimestamp();
+        Input start = progressStore.merge(input);
+        long lastMessageId = start.getLastMessageId();
+        progress.set(new Progress(lastMessageId, start.getLastMessageTimestamp()));
 
         // start the handler on a separate thread so it can block if it wants to
         inputManager.getPool().execute(new Runnable() {
@@ -206,42 +232,73 @@ public class InputJob implements Runnable, InputHandler.Sink {
             Input in = repo.findInput(inputId);
             if (in != input) {
                 setExitFetchLoop(true);  // input has been changed by someone else
-                errorCount = 0;
+                errorCount.set(0);
             }
 
-            synchronized (this) {
-                if (lastMessageId != this.lastMessageId && (exitFetchLoop || updateIntervalMs <= 0
-                        || System.currentTimeMillis() - lastUpdate >= updateIntervalMs)) {
-                    synchronized (repo) {
-                        in = repo.findInput(inputId);
-                        input = in.deepCopy();
-                        handler.updateInput(input);
-                        input.setLastMessageId(lastMessageId = this.lastMessageId);
-                        input.setLastMessageTimestamp(this.lastMessageTimestamp);
-                        repo.updateInput(input);
-                        lastUpdate = System.currentTimeMillis();
-                    }
+            Progress p = progress.get();
+            if (lastMessageId != p.messageId && (isExitFetchLoop() || updateIntervalMs <= 0
+                    || System.currentTimeMillis() - lastUpdate >= updateIntervalMs)) {
+                synchronized (repo) {
+                    in = repo.findInput(inputId);
+                    if (in == null) break;
+                    progressStore.record(in, lastMessageId = p.messageId, p.timestamp);
+                    lastUpdate = System.currentTimeMillis();
                 }
             }
         }
     }
 
     @Override
-    public synchronized void append(String routingKey, byte[] payload) throws IOException {
+    public void append(String routingKey, byte[] payload) throws IOException {
         long timestamp = System.currentTimeMillis();
-        lastMessageId = buffer.append(timestamp, routingKey, payload);
-        lastMessageTimestamp = timestamp;
-        errorCount = 0;
-        if (log.isDebugEnabled()) log.debug(this + " appended id " + lastMessageId + " timestamp " + lastMessageTimestamp);
+        MessageBuffer mb = getBuffer();
+        long id;
+        try {
+            id = queueManager.append(queue, mb, timestamp, routingKey, payload);
+        } catch (IOException e) {
+            if (mb.isOpen()) throw e;
+            id = queueManager.append(queue, getBuffer(), timestamp, routingKey, payload);   // closed under us
+        }
+        appended(id, timestamp);
     }
 
     @Override
-    public synchronized void append(String routingKey, ReadableByteChannel payload, int payloadSize) throws IOException {
+    public void append(String routingKey, ReadableByteChannel payload, int payloadSize) throws IOException {
         long timestamp = System.currentTimeMillis();
-        lastMessageId = buffer.append(timestamp, routingKey, payload, payloadSize);
-        lastMessageTimestamp = timestamp;
-        errorCount = 0;
-        if (log.isDebugEnabled()) log.debug(this + " appended id " + lastMessageId + " timestamp " + lastMessageTimestamp);
+        MessageBuffer mb = getBuffer();
+        // the payload can't be read again so if mb is closed under us the next append gets the new buffer
+        appended(queueManager.append(queue, mb, timestamp, routingKey, payload, payloadSize), timestamp);
+    }
+
+    /**
+     * Get the buffer for our queue. The buffer is closed and re-opened in a new location when the queue is moved
+     * to a different data directory so fetch it again from the {@link QueueManager} if ours has been closed.
+     */
+    private MessageBuffer getBuffer() throws IOException {
+        MessageBuffer mb = buffer;
+        if (mb.isOpen()) return mb;
+        mb = queueManager.getBuffer(queue);
+        if (mb == null || !mb.isOpen()) {
+            throw new ExpectedIOException("Queue [" + queue.getId() + "] is not available, it may be moving");
+        }
+        return buffer = mb;
+    }
+
+    private void appended(long id, long timestamp) {
+        // appends from different threads can finish out of order so only ever move progress forward
+        Progress np = null;
+        for (Progress p = progress.get(); p.messageId < id; p = progress.get()) {
+            if (np == null) np = new Progress(id, timestamp);
+            if (progress.compareAndSet(p, np)) break;
+        }
+        subscriberRegistry.appended(queue);
+        if (errorCount.get() != 0) errorCount.set(0);   // avoid writing the shared counter on every append
+        if (log.isDebugEnabled()) log.debug(this + " appended id " + id + " timestamp " + timestamp);
+    }
+
+    @Override
+    public void sync() throws IOException {
+        getBuffer().sync();
     }
 
     @Override
@@ -249,7 +306,7 @@ public class InputJob implements Runnable, InputHandler.Sink {
         log.error(this + ": " + msg,
                 t instanceof IllegalArgumentException || t instanceof ExpectedIOException ? null : t);
         if (!(t instanceof IllegalArgumentException)) {
-            ++errorCount;
+            errorCount.incrementAndGet();
             setExitFetchLoop(true);
             if (thread != null) thread.interrupt();
         }
@@ -285,19 +342,9 @@ public class InputJob implements Runnable, InputHandler.Sink {
     /**
      * Create user friendly identifier for the output for error messages and so on.
      */
-    private String toPath(Database db, Queue q, Input in) {
-        StringBuilder b = new StringBuilder();
-        String dbId = db.getId();
-        if (!"default".equals(dbId)) b.append("/db/").append(dbId);
-        String s = db.getQueueForQid(q.getId());
-        if (s != null) {
-            b.append("/q/").append(s);
-            s = q.getInputForInputId(in.getId());
-            if (s != null) {
-                return b.append("/in/").append(s).toString();
-            }
-        }
-        return in.toString();
+    private String toPath(Input in) throws IOException {
+        String path = repo.findPath(in);
+        return path == null ? in.toString() : path;
     }
 
     @Override
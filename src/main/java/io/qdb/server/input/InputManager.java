@@ -16,12 +16,14 @@
 
 package io.qdb.server.input;
 
-import com.google.common.eventbus.EventBus;
 import com.google.common.eventbus.Subscribe;
 import com.google.common.util.concurrent.ThreadFactoryBuilder;
 import io.qdb.server.controller.JsonService;
 import io.qdb.server.model.Input;
 import io.qdb.server.queue.QueueManager;
+import io.qdb.server.queue.SubscriberRegistry;
+import io.qdb.server.repo.ObjectEventDispatcher;
+import io.qdb.server.repo.ProgressStore;
 import io.qdb.server.repo.Repository;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
@@ -45,24 +47,29 @@ public class InputManager implements Closeable, Thread.UncaughtExceptionHandler
     private static final Logger log = LoggerFactory.getLogger(InputManager.class);
 
     private final Repository repo;
+    private final ProgressStore progressStore;
     private final QueueManager queueManager;
+    private final SubscriberRegistry subscriberRegistry;
     private final InputHandlerFactory handlerFactory;
     private final JsonService jsonService;
     private final Map<String, InputJob> jobs = new ConcurrentHashMap<String, InputJob>(); // input id -> job
     private final ExecutorService pool;
 
     @Inject
-    public InputManager(EventBus eventBus, Repository repo, QueueManager queueManager,
+    public InputManager(ObjectEventDispatcher eventDispatcher, Repository repo, ProgressStore progressStore,
+                        QueueManager queueManager, SubscriberRegistry subscriberRegistry,
                         InputHandlerFactory handlerFactory, JsonService jsonService) throws IOException {
         this.repo = repo;
+        this.progressStore = progressStore;
         this.queueManager = queueManager;
+        this.subscriberRegistry = subscriberRegistry;
         this.handlerFactory = handlerFactory;
         this.jsonService = jsonService;
         this.pool = new ThreadPoolExecutor(1, Integer.MAX_VALUE,
                 60L, TimeUnit.SECONDS,
                 new SynchronousQueue<Runnable>(),
                 new ThreadFactoryBuilder().setNameFormat("input-%d").setUncaughtExceptionHandler(this).build());
-        eventBus.register(this);
+        eventDispatcher.register(this);
         for (Input input : this.repo.findInputs(0, -1)) inputChanged(input);
     }
 
@@ -99,7 +106,8 @@ public class InputManager implements Closeable, Thread.UncaughtExceptionHandler
 
         if (!in.isEnabled()) return;
 
-        InputJob job = new InputJob(this, handlerFactory, queueManager, repo, jsonService, inputId);
+        InputJob job = new InputJob(this, handlerFactory, queueManager, subscriberRegistry, repo, progressStore,
+                jsonService, inputId);
         jobs.put(inputId, job);
         pool.execute(job);
     }
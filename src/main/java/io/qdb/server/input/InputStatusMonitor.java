@@ -17,11 +17,10 @@
 package io.qdb.server.input;
 
 import io.qdb.server.databind.DurationParser;
-import io.qdb.server.model.Database;
 import io.qdb.server.model.Input;
-import io.qdb.server.model.Queue;
 import io.qdb.server.monitor.Status;
 import io.qdb.server.monitor.StatusMonitor;
+import io.qdb.server.repo.ProgressStore;
 import io.qdb.server.repo.Repository;
 
 import javax.inject.Inject;
@@ -37,16 +36,18 @@ import java.util.Collection;
 public class InputStatusMonitor extends StatusMonitor<Input> {
 
     private final Repository repo;
+    private final ProgressStore progressStore;
 
     private final long started = System.currentTimeMillis();
 
     @Inject
-    public InputStatusMonitor(Repository repo,
+    public InputStatusMonitor(Repository repo, ProgressStore progressStore,
                               @Named("inputStatusMonitorStartDelay") int startDelay,
                               @Named("inputStatusMonitorInterval") int interval,
                               @Named("inputWarningRepeatSecs") int warningRepeat) throws IOException {
         super("input", startDelay, interval, warningRepeat);
         this.repo = repo;
+        this.progressStore = progressStore;
     }
 
     @Override
@@ -64,7 +65,7 @@ public class InputStatusMonitor extends StatusMonitor<Input> {
         int errorAfter = in.getErrorAfter();
         if (warnAfter <= 0 && errorAfter <= 0) return OK;
 
-        long newest = in.getLastMessageTimestamp();
+        long newest = progressStore.merge(in).getLastMessageTimestamp();
         long ms = System.currentTimeMillis() - (newest <= 0L ? started : newest);
         int secs = (int)(ms / 1000);
 
@@ -82,13 +83,8 @@ public class InputStatusMonitor extends StatusMonitor<Input> {
 
     protected String toPath(Input in) {
         try {
-            StringBuilder b = new StringBuilder();
-            Queue q = repo.findQueue(in.getQueue());
-            Database db = repo.findDatabase(q.getDatabase());
-            if (!"default".equals(db.getId())) b.append("/db/").append(db);
-            b.append("/q/").append(db.getQueueForQid(q.getId()));
-            b.append("/in/").append(q.getInputForInputId(in.getId()));
-            return b.toString();
+            String path = repo.findPath(in);
+            return path == null ? "input id " + in.getId() : path;
         } catch (IOException e) {
             log.error(e.toString(), e);
             return "input id " + in.getId();
@@ -16,6 +16,7 @@
 
 package io.qdb.server.input;
 
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
 import com.rabbitmq.client.*;
 import io.qdb.server.ExpectedIOException;
 import io.qdb.server.model.Input;
@@ -23,9 +24,14 @@ import io.qdb.server.model.Queue;
 
 import java.io.IOException;
 import java.net.ConnectException;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
 
 /**
- * Fetches messages from a RabbitMQ queue.
+ * Fetches messages from a RabbitMQ queue. Deliveries are not acknowledged one at a time. Instead every ackEvery
+ * deliveries (or every ackIntervalMs if fewer arrive) the appended messages are synced to disk and all of them are
+ * acknowledged with a single multiple ack. The broker sends at most prefetch unacknowledged deliveries at once.
  */
 public class RabbitMQInputHandler extends InputHandlerAdapter implements ShutdownListener {
 
@@ -34,6 +40,9 @@ public class RabbitMQInputHandler extends InputHandlerAdapter implements Shutdow
     public String routingKey = "";
     public int heartbeat = 30;
     public boolean autoAck;
+    public int prefetch = 1000;
+    public int ackEvery = 250;
+    public int ackIntervalMs = 200;
 
     protected String inputPath;
     protected ConnectionFactory connectionFactory;
@@ -45,6 +54,12 @@ public class RabbitMQInputHandler extends InputHandlerAdapter implements Shutdow
     protected boolean exchangeDurable;
     protected boolean queueDurable;
 
+    protected ScheduledExecutorService ackTimer;
+    private final Object ackLock = new Object();
+    private Channel ackChannel;     // channel the pending deliveries arrived on
+    private long lastDeliveryTag;   // highest delivery tag appended but not yet acked
+    private int unacked;            // number of deliveries appended but not yet acked
+
     @SuppressWarnings("unchecked")
     @Override
     public void init(Queue q, Input input, String inputPath) throws Exception {
@@ -72,6 +87,16 @@ public class RabbitMQInputHandler extends InputHandlerAdapter implements Shutdow
             exchangeDurable = toks.length < 3 || "true".equals(toks[2]);
         }
 
+        if (prefetch < 0) throw new IllegalArgumentException("prefetch must be 0 (unlimited) or more");
+        if (ackEvery < 1) throw new IllegalArgumentException("ackEvery must be 1 or more");
+        if (!autoAck && prefetch > 0 && ackEvery > prefetch) {
+            throw new IllegalArgumentException("ackEvery must not be more than prefetch");
+        }
+        if (!autoAck && ackEvery > 1 && ackIntervalMs <= 0) {
+            // without the timer deliveries short of ackEvery would never be acked
+            throw new IllegalArgumentException("ackIntervalMs must be more than 0 when ackEvery is more than 1");
+        }
+
         connectionFactory = new ConnectionFactory();
         connectionFactory.setUri(input.getUrl());
         connectionFactory.setRequestedHeartbeat(heartbeat);
@@ -82,6 +107,20 @@ public class RabbitMQInputHandler extends InputHandlerAdapter implements Shutdow
     public void start(final Sink sink) throws Exception {
         this.sink = sink;
         final Channel c = ensureChannel();
+        if (!autoAck && ackEvery > 1) {
+            ackTimer = Executors.newSingleThreadScheduledExecutor(
+                    new ThreadFactoryBuilder().setNameFormat("rabbitmq-input-ack-%d").setDaemon(true).build());
+            ackTimer.scheduleWithFixedDelay(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        ackPending();
+                    } catch (Exception e) {
+                        sink.error(e);
+                    }
+                }
+            }, ackIntervalMs, ackIntervalMs, TimeUnit.MILLISECONDS);
+        }
         c.basicConsume(queue, autoAck, "qdb:" + inputPath,
             new DefaultConsumer(c) {
                 @Override
@@ -90,12 +129,12 @@ public class RabbitMQInputHandler extends InputHandlerAdapter implements Shutdow
                     boolean ok = false;
                     try {
                         sink.append(envelope.getRoutingKey(), body);
-                        if (!autoAck) c.basicAck(envelope.getDeliveryTag(), false);
                         ok = true;
+                        if (!autoAck) delivered(c, envelope.getDeliveryTag());
                     } catch (Exception e) {
                         sink.error(e);
                     } finally {
-                        if (!ok) {
+                        if (!ok && !autoAck) {
                             try {
                                 // todo should probably sit on the message for a bit before nacking to prevent storm
                                 c.basicNack(envelope.getDeliveryTag(), false, true);
@@ -109,10 +148,53 @@ public class RabbitMQInputHandler extends InputHandlerAdapter implements Shutdow
         );
     }
 
+    /**
+     * Record that the delivery has been appended and ack it and all the deliveries before it if enough have built up.
+     */
+    protected void delivered(Channel c, long deliveryTag) throws IOException {
+        synchronized (this) {
+            if (ackChannel != c) {  // tags from an earlier channel can no longer be acked
+                ackChannel = c;
+                unacked = 0;
+            }
+            lastDeliveryTag = deliveryTag;
+            if (++unacked < ackEvery) return;
+        }
+        ackPending();
+    }
+
+    /**
+     * Sync the queue to disk and ack everything appended so far with a single multiple ack.
+     */
+    protected void ackPending() throws IOException {
+        // acks must reach the broker in tag order so only one thread may be between here and basicAck at a time
+        synchronized (ackLock) {
+            Channel c;
+            long tag;
+            synchronized (this) {
+                if (unacked == 0) return;
+                c = ackChannel;
+                tag = lastDeliveryTag;
+                unacked = 0;
+            }
+            // sync without holding this so deliveries can keep being appended while the disk catches up
+            sink.sync();
+            if (c.isOpen()) c.basicAck(tag, true);
+        }
+    }
+
     @Override
     public void close() throws IOException {
         // this method cannot be synchronized or we get deadlock with shutdownCompleted
-        if (con != null) con.close();
+        if (ackTimer != null) ackTimer.shutdownNow();
+        if (con != null) {
+            try {
+                ackPending();
+            } catch (Exception e) {
+                log.debug(inputPath + ": Error acking messages on close: " + e, e);
+            }
+            con.close();
+        }
     }
 
     protected synchronized Channel ensureChannel() throws Exception {
@@ -131,6 +213,7 @@ public class RabbitMQInputHandler extends InputHandlerAdapter implements Shutdow
     }
 
     protected void initChannel(Channel channel) throws IOException {
+        if (prefetch > 0) channel.basicQos(prefetch);
         channel.queueDeclare(queue, queueDurable, false, false, null);
         if (exchange != null) {
             channel.exchangeDeclare(exchange, exchangeType, exchangeDurable);
@@ -141,6 +224,7 @@ public class RabbitMQInputHandler extends InputHandlerAdapter implements Shutdow
     @Override
     public synchronized void shutdownCompleted(ShutdownSignalException cause) {
         channel = null;
+        unacked = 0;    // the broker will redeliver anything we did not get to ack
         if (!cause.isInitiatedByApplication()) {
             try {
                 if (con.isOpen()) con.close();
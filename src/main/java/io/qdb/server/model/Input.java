@@ -122,9 +122,17 @@ public class Input extends ModelObject {
         return super.toString() + ":queue=" + queue + ":type=" + type;
     }
 
+    /**
+     * Make a copy sharing our params. Use this to change anything other than params, otherwise use
+     * {@link #deepCopy()} or give the copy a new params map.
+     */
+    public Input copy() {
+        return (Input)clone();
+    }
+
     public Input deepCopy() {
         Input o = (Input)clone();
-        if (params != null) o.params = CLONER.deepClone(params);
+        if (params != null) o.params = copyParams(params);
         return o;
     }
 }
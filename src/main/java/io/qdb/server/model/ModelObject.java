@@ -16,24 +16,23 @@
 
 package io.qdb.server.model;
 
-import com.rits.cloning.Cloner;
-
 import java.lang.reflect.InvocationTargetException;
 import java.lang.reflect.Method;
+import java.util.ArrayList;
 import java.util.HashMap;
+import java.util.List;
 import java.util.Map;
 
 /**
  * Base class for objects in our model. Supports equals (class and id must match) and hashcode (on id).
- * Serializable to/from JSON with Genson. All subclasses have a deepCopy method.
+ * Serializable to/from JSON with Genson. All subclasses have a deepCopy method. Instances in the repository are
+ * never modified, changes are made to a copy which then replaces the original.
  */
 public abstract class ModelObject implements Comparable<ModelObject>, Cloneable {
 
     private String id;
     private int version;
 
-    protected static final Cloner CLONER = new Cloner();
-
     protected ModelObject() {
     }
 
@@ -82,6 +81,31 @@ public abstract class ModelObject implements Comparable<ModelObject>, Cloneable
         }
     }
 
+    /**
+     * Copy a params map. Nested maps and lists (from JSON) are copied, other values are immutable and are shared.
+     */
+    @SuppressWarnings("unchecked")
+    protected static Map<String, Object> copyParams(Map<String, Object> params) {
+        return (Map<String, Object>)copyValue(params);
+    }
+
+    @SuppressWarnings("unchecked")
+    private static Object copyValue(Object v) {
+        if (v instanceof Map) {
+            Map<Object, Object> m = (Map<Object, Object>)v;
+            Map<Object, Object> ans = new HashMap<Object, Object>(m.size() * 4 / 3 + 1);
+            for (Map.Entry<Object, Object> e : m.entrySet()) ans.put(e.getKey(), copyValue(e.getValue()));
+            return ans;
+        }
+        if (v instanceof List) {
+            List<Object> list = (List<Object>)v;
+            List<Object> ans = new ArrayList<Object>(list.size());
+            for (Object o : list) ans.add(copyValue(o));
+            return ans;
+        }
+        return v;
+    }
+
     @Override
     public int compareTo(ModelObject o) {
         return id.compareTo(o.id);
@@ -40,6 +40,8 @@ public class Output extends ModelObject {
     private String filter;
     private String routingKey;
     private String grep;
+    private String where;
+    private String json;
     private Map<String, Object> params;
 
     public Output() {
@@ -181,6 +183,22 @@ public class Output extends ModelObject {
         this.grep = grep;
     }
 
+    public String getWhere() {
+        return where;
+    }
+
+    public void setWhere(String where) {
+        this.where = where;
+    }
+
+    public String getJson() {
+        return json;
+    }
+
+    public void setJson(String json) {
+        this.json = json;
+    }
+
     public Map<String, Object> getParams() {
         return params;
     }
@@ -194,9 +212,17 @@ public class Output extends ModelObject {
         return super.toString() + ":queue=" + queue + ":type=" + type;
     }
 
+    /**
+     * Make a copy sharing our params. Use this to change anything other than params, otherwise use
+     * {@link #deepCopy()} or give the copy a new params map.
+     */
+    public Output copy() {
+        return (Output)clone();
+    }
+
     public Output deepCopy() {
         Output o = (Output)clone();
-        if (params != null) o.params = CLONER.deepClone(params);
+        if (params != null) o.params = copyParams(params);
         return o;
     }
 }
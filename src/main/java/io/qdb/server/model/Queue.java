@@ -31,6 +31,7 @@ public class Queue extends ModelObject {
     private String contentType;
     private int warnAfter;
     private int errorAfter;
+    private int indexRoutingKeys;
     private Map<String, String> outputs;
     private Map<String, String> inputs;
 
@@ -85,6 +86,17 @@ public class Queue extends ModelObject {
         this.errorAfter = errorAfter;
     }
 
+    /**
+     * Get the number of leading words of each routing key to index or 0 for no routing key index.
+     */
+    public int getIndexRoutingKeys() {
+        return indexRoutingKeys;
+    }
+
+    public void setIndexRoutingKeys(int indexRoutingKeys) {
+        this.indexRoutingKeys = indexRoutingKeys;
+    }
+
     public Map<String, String> getOutputs() {
         return outputs;
     }
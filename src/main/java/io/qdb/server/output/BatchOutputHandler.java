@@ -0,0 +1,42 @@
+/*
+ * Copyright 2013 David Tinker
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package io.qdb.server.output;
+
+/**
+ * An {@link OutputHandler} that processes messages a batch at a time. The output job collects up to
+ * {@link #getMaxBatchSize()} messages or {@link #getMaxBatchBytes()} of payload, waiting at most
+ * {@link #getMaxBatchWaitMs()} after the first message for more to arrive, and records its progress once per
+ * batch. Handlers that only implement {@link OutputHandler} are fed batches through
+ * {@link SingleMessageBatchAdapter}.
+ */
+public interface BatchOutputHandler extends OutputHandler {
+
+    /**
+     * Process the messages in the batch and return the id of the last message that has been completed i.e. the
+     * id of the message that processing should start after. This will usually be the id of the last message in
+     * the batch, unless messages are being processed asynchronously. Return 0 if no messages have been completed.
+     * This is also called with an empty batch when no new messages arrive while earlier messages have not been
+     * completed so asynchronous handlers can report their progress.
+     */
+    long processBatch(OutputBatch batch) throws Exception;
+
+    int getMaxBatchSize();
+
+    int getMaxBatchBytes();
+
+    int getMaxBatchWaitMs();
+}
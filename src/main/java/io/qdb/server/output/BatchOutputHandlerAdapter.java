@@ -0,0 +1,57 @@
+/*
+ * Copyright 2013 David Tinker
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package io.qdb.server.output;
+
+/**
+ * Extend this instead of implementing {@link BatchOutputHandler} directly as new methods may be added to the
+ * interface in future. The batch limits can be set using the batchSize, batchBytes and batchWaitMs output
+ * parameters.
+ */
+public abstract class BatchOutputHandlerAdapter extends OutputHandlerAdapter implements BatchOutputHandler {
+
+    public int batchSize = 100;
+    public int batchBytes = 1024 * 1024;
+    public int batchWaitMs = 50;
+
+    private OutputBatch single;
+
+    /**
+     * Process the message as a batch of one.
+     */
+    @Override
+    public long processMessage(long messageId, String routingKey, long timestamp, byte[] payload) throws Exception {
+        if (single == null) single = new OutputBatch(1);
+        single.clear();
+        single.add(messageId, routingKey, timestamp, payload);
+        return processBatch(single);
+    }
+
+    @Override
+    public int getMaxBatchSize() {
+        return batchSize;
+    }
+
+    @Override
+    public int getMaxBatchBytes() {
+        return batchBytes;
+    }
+
+    @Override
+    public int getMaxBatchWaitMs() {
+        return batchWaitMs;
+    }
+}
@@ -0,0 +1,38 @@
+/*
+ * Copyright 2013 David Tinker
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package io.qdb.server.output;
+
+/**
+ * Thrown by {@link BatchOutputHandler#processBatch} when processing fails partway through a batch so the output
+ * job can still record the messages that were completed before the failure. The cause is the original failure.
+ */
+public class BatchProcessingException extends Exception {
+
+    private final long completedId;
+
+    public BatchProcessingException(long completedId, Exception cause) {
+        super(cause.toString(), cause);
+        this.completedId = completedId;
+    }
+
+    /**
+     * Get the id of the last message completed before the failure or 0 if none were.
+     */
+    public long getCompletedId() {
+        return completedId;
+    }
+}
@@ -0,0 +1,112 @@
+/*
+ * Copyright 2013 David Tinker
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package io.qdb.server.output;
+
+import java.util.Arrays;
+
+/**
+ * Messages read from a queue to be processed by a {@link BatchOutputHandler} in one go. Instances are re-used
+ * by {@link OutputJob} so handlers must not hang onto them after processing returns.
+ */
+public class OutputBatch {
+
+    private long[] ids;
+    private long[] timestamps;
+    private String[] routingKeys;
+    private byte[][] payloads;
+    private int count;
+    private int payloadBytes;
+
+    public OutputBatch() {
+        this(64);
+    }
+
+    public OutputBatch(int initialMessages) {
+        ids = new long[initialMessages];
+        timestamps = new long[initialMessages];
+        routingKeys = new String[initialMessages];
+        payloads = new byte[initialMessages][];
+    }
+
+    public void add(long messageId, String routingKey, long timestamp, byte[] payload) {
+        if (count == ids.length) {
+            int n = count * 2;
+            ids = Arrays.copyOf(ids, n);
+            timestamps = Arrays.copyOf(timestamps, n);
+            routingKeys = Arrays.copyOf(routingKeys, n);
+            payloads = Arrays.copyOf(payloads, n);
+        }
+        ids[count] = messageId;
+        timestamps[count] = timestamp;
+        routingKeys[count] = routingKey;
+        payloads[count++] = payload;
+        payloadBytes += payload.length;
+    }
+
+    /**
+     * Forget all messages so the batch can be re-used.
+     */
+    public void clear() {
+        Arrays.fill(routingKeys, 0, count, null);
+        Arrays.fill(payloads, 0, count, null);
+        count = 0;
+        payloadBytes = 0;
+    }
+
+    public int size() {
+        return count;
+    }
+
+    public boolean isEmpty() {
+        return count == 0;
+    }
+
+    /**
+     * How many payload bytes are in the batch?
+     */
+    public int getPayloadBytes() {
+        return payloadBytes;
+    }
+
+    public long getId(int i) {
+        return ids[i];
+    }
+
+    public long getTimestamp(int i) {
+        return timestamps[i];
+    }
+
+    public String getRoutingKey(int i) {
+        return routingKeys[i];
+    }
+
+    public byte[] getPayload(int i) {
+        return payloads[i];
+    }
+
+    /**
+     * Get the id of the last message in the batch or 0 if it is empty.
+     */
+    public long getLastId() {
+        return count == 0 ? 0 : ids[count - 1];
+    }
+
+    @Override
+    public String toString() {
+        return "OutputBatch[" + count + " messages, " + payloadBytes + " bytes]";
+    }
+}
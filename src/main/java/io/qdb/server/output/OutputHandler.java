@@ -50,10 +50,13 @@ public interface OutputHandler extends Closeable {
     long flushMessages() throws Exception;
 
     /**
-     * This is called when processing progress is being recorded with the new output instance. Handlers might want
-     * to update fields of the output at this time. In particular the timestamp field will be set to
+     * This is called with the new output instance when an output reaches its 'to', 'toId' or 'limit' and its
+     * final progress is written to it. Routine progress checkpoints are kept in the
+     * {@link io.qdb.server.repo.ProgressStore} and do not call this. Handlers might want to update fields of the
+     * output at this time. In particular the timestamp field will be set to
      * the timestamp of the last message processed and this may not be the same as the last completed message if
-     * messages are being processed asynchronously. This method must be fast.
+     * messages are being processed asynchronously. This method must be fast. The params map of the output is
+     * shared with the previous instance so replace it instead of modifying it.
      */
     void updateOutput(Output output);
 
@@ -18,7 +18,6 @@ package io.qdb.server.output;
 
 import com.fasterxml.jackson.databind.util.BeanUtil;
 import io.qdb.buffer.MessageBuffer;
-import io.qdb.buffer.MessageCursor;
 import io.qdb.server.ExpectedIOException;
 import io.qdb.server.controller.JsonService;
 import io.qdb.server.databind.DataBinder;
@@ -29,6 +28,8 @@ import io.qdb.server.model.ModelObject;
 import io.qdb.server.model.Output;
 import io.qdb.server.model.Queue;
 import io.qdb.server.queue.QueueManager;
+import io.qdb.server.queue.RoutingKeyIndex;
+import io.qdb.server.repo.ProgressStore;
 import io.qdb.server.repo.Repository;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
@@ -49,6 +50,7 @@ public class OutputJob implements Runnable {
     private final MessageFilterFactory messageFilterFactory;
     private final QueueManager queueManager;
     private final Repository repo;
+    private final ProgressStore progressStore;
     private final JsonService jsonService;
     private final String oid;
 
@@ -60,12 +62,13 @@ public class OutputJob implements Runnable {
 
     public OutputJob(OutputManager outputManager, OutputHandlerFactory handlerFactory,
                      MessageFilterFactory messageFilterFactory, QueueManager queueManager,
-                     Repository repo, JsonService jsonService, String oid) {
+                     Repository repo, ProgressStore progressStore, JsonService jsonService, String oid) {
         this.outputManager = outputManager;
         this.handlerFactory = handlerFactory;
         this.messageFilterFactory = messageFilterFactory;
         this.queueManager = queueManager;
         this.repo = repo;
+        this.progressStore = progressStore;
         this.jsonService = jsonService;
         this.oid = oid;
     }
@@ -122,6 +125,8 @@ public class OutputJob implements Runnable {
                     if (log.isDebugEnabled()) log.debug("Database [" + q.getDatabase() + "] does not exist");
                     return;
                 }
+
+                outputPath = toPath(output);
             } catch (IOException e) {   // this shouldn't happen but trap anyway as we don't want this job to die
                 log.error(this + ": " + e, e);
                 try {
@@ -131,8 +136,6 @@ public class OutputJob implements Runnable {
                 continue;   // hope the error has gone away
             }
 
-            outputPath = toPath(db, q, output);
-
             MessageFilter messageFilter;
             try {
                 messageFilter = messageFilterFactory.createFilter(output.toMap(), q);
@@ -174,7 +177,9 @@ public class OutputJob implements Runnable {
                         ++errorCount;
                     } else {
                         try {
-                            processMessages(buffer, handler, messageFilter);
+                            processMessages(q, buffer, handler instanceof BatchOutputHandler
+                                    ? (BatchOutputHandler)handler : new SingleMessageBatchAdapter(handler),
+                                    messageFilter);
                         } catch (Exception e) {
                             ++errorCount;
                             logError(e);
@@ -201,73 +206,137 @@ public class OutputJob implements Runnable {
     }
 
     /**
-     * Feed messages to our handler until we are closed, reach our to or toId or limit or our output is changed by
-     * someone else.
+     * Feed batches of messages to our handler until we are closed, reach our to or toId or limit or our output is
+     * changed by someone else. Progress is recorded in the {@link ProgressStore} and only written to the output
+     * itself when it is disabled on reaching to, toId or limit.
      */
-    public void processMessages(MessageBuffer buffer, OutputHandler handler, MessageFilter mf) throws Exception {
+    public void processMessages(Queue q, MessageBuffer buffer, BatchOutputHandler handler, MessageFilter mf)
+            throws Exception {
         if (log.isDebugEnabled()) log.debug(outputPath + ": processing messages");
-        MessageCursor cursor = null;
+        QueueReader.Cursor cursor = null;
         try {
-            long atId = output.getAtId();
-            cursor = atId < 0 ? buffer.cursorByTimestamp(output.getAt()) : buffer.cursor(atId);
+            Output start = progressStore.merge(output);
+            long atId = start.getAtId();
+            long recordedAt = start.getAt();
+            cursor = outputManager.getQueueReader(q.getId(), buffer).open(atId, recordedAt);
+            RoutingKeyIndex index = queueManager.getRoutingKeyIndex(q);
+            String indexKey = index == null ? null : index.getKey(mf);
+            if (indexKey != null) cursor.setIndex(index, indexKey);
 
             long completedId = atId;
             long timestamp = 0;
             long lastUpdate = System.currentTimeMillis();
             long to = output.getTo();
             long toId = output.getToId();
-            long limit = output.getLimit();
+            long limit = start.getLimit();
             boolean reachedTo = false;
             boolean reachedLimit = false;
             int updateIntervalMs = output.getUpdateIntervalMs();
 
+            int maxBatchSize = Math.max(handler.getMaxBatchSize(), 1);
+            int maxBatchBytes = handler.getMaxBatchBytes();
+            int maxBatchWaitMs = handler.getMaxBatchWaitMs();
+            OutputBatch batch = new OutputBatch(Math.min(maxBatchSize, 1024));
+            long handledLastId = 0; // id of the last message handed to the handler
+            long handledId = 0;     // id of message following the last one handed to the handler
+
             boolean exitLoop = false;
             while (!exitLoop && !isStopFlag()) {
-                boolean haveMsg;
+                // collect messages until the batch is full, we run out of time, we reach our to or toId or we have
+                // scanned maxBatchSize messages (so a selective filter over a big backlog still records progress and
+                // notices stop and changes to the output regularly)
+                batch.clear();
+                int scanned = 0;
+                long firstId = -1;      // id of first message read for this batch that is not past to or toId
+                long nextId = 0;        // id of message following the last one read for this batch
+                long currentId = 0;
+                long batchTimestamp = timestamp;
                 try {
-                    haveMsg = cursor.next(1000);
+                    long deadline = 0;
+                    while (true) {
+                        boolean haveMsg;
+                        if (firstId < 0) {
+                            haveMsg = cursor.next(1000);
+                        } else {
+                            long ms = deadline - System.currentTimeMillis();
+                            haveMsg = ms > 0 ? cursor.next((int)ms) : cursor.next();
+                        }
+                        if (!haveMsg) break;
+                        currentId = cursor.getId();
+                        long ts = cursor.getTimestamp();
+                        reachedTo = to > 0 && ts >= to || toId > 0 && currentId >= toId;
+                        if (reachedTo) break;
+                        if (firstId < 0) {
+                            firstId = currentId;
+                            deadline = System.currentTimeMillis() + maxBatchWaitMs;
+                        }
+                        batchTimestamp = ts;
+                        nextId = cursor.getNextId();
+                        String routingKey = cursor.getRoutingKey();
+                        byte[] payload = null;
+                        MessageFilter.Result result = mf.accept(currentId, ts, routingKey, null);
+                        if (result == MessageFilter.Result.CHECK_PAYLOAD) {
+                            result = mf.accept(currentId, ts, routingKey, payload = cursor.getPayload());
+                        }
+                        if (result == MessageFilter.Result.ACCEPT) {
+                            batch.add(currentId, routingKey, ts, payload == null ? cursor.getPayload() : payload);
+                            if (batch.size() >= maxBatchSize || batch.getPayloadBytes() >= maxBatchBytes
+                                    || limit > 0 && batch.size() >= limit) {
+                                break;
+                            }
+                        }
+                        if (++scanned >= maxBatchSize) break;
+                        // don't keep scanning rejected backlog without waiting once we are out of time
+                        if (result != MessageFilter.Result.ACCEPT && System.currentTimeMillis() >= deadline) break;
+                    }
                 } catch (IOException e) {
-                    haveMsg = false;
                     exitLoop = true;
                     logError(e);
                 } catch (InterruptedException e) {
-                    haveMsg = false;
                     exitLoop = true;
                 }
-                if (haveMsg) {
+
+                if (!exitLoop && firstId < 0 && !reachedTo && completedId < handledId) {
+                    // nothing new so give the handler a chance to report progress on messages still in flight
                     try {
-                        long currentId = cursor.getId();
-                        timestamp = cursor.getTimestamp();
-                        reachedTo = to > 0 && timestamp >= to || toId > 0 && currentId >= toId;
-                        if (reachedTo) {
+                        long id = handler.processBatch(batch);
+                        if (id == handledLastId) completedId = handledId;
+                        else if (id > 0) completedId = id + 1;
+                    } catch (Exception e) {
+                        exitLoop = true;
+                        ++errorCount;
+                        logError(e);
+                    }
+                }
+
+                if (!exitLoop && (firstId >= 0 || reachedTo)) {
+                    try {
+                        if (!batch.isEmpty()) {
+                            long id = handler.processBatch(batch);
+                            handledLastId = batch.getLastId();
+                            handledId = nextId;
+                            if (id == batch.getLastId()) completedId = nextId;
+                            else if (id > 0) completedId = id + 1;
+                            // limit must be checked after processing so cannot combine this code with reachedTo
+                            if (limit > 0) reachedLimit = (limit -= batch.size()) <= 0;
+                        } else if (firstId >= 0 && completedId == firstId) {
+                            // don't reprocess rejected messages if output restarts
+                            completedId = nextId;
+                        }
+                        timestamp = batchTimestamp;
+                        if (reachedTo || reachedLimit) {
                             long id = handler.flushMessages();
-                            completedId = id <= 0 ? currentId - 1 : id;
+                            completedId = id <= 0 ? (reachedTo ? currentId : batch.getLastId()) - 1 : id;
                             exitLoop = true;
-                        } else {
-                            String routingKey = cursor.getRoutingKey();
-                            byte[] payload = null;
-                            MessageFilter.Result result = mf.accept(currentId, timestamp, routingKey, null);
-                            if (result == MessageFilter.Result.CHECK_PAYLOAD) {
-                                result = mf.accept(currentId, timestamp, routingKey, payload = cursor.getPayload());
-                            }
-                            if (result == MessageFilter.Result.ACCEPT) {
-                                completedId = handler.processMessage(currentId, routingKey, timestamp,
-                                        payload == null ? cursor.getPayload() : payload);
-                                if (completedId == currentId) completedId = cursor.getNextId();
-                                else if (completedId > 0) ++completedId;
-                                // limit must be checked after processing so cannot combine this code with reachedTo
-                                reachedLimit = limit > 0 && (--limit == 0);
-                                if (reachedLimit) {
-                                    long id = handler.flushMessages();
-                                    completedId = id <= 0 ? currentId - 1 : id;
-                                    exitLoop = true;
-                                }
-                            } else {
-                                // don't reprocess rejected messages if output restarts
-                                if (completedId == currentId) completedId = cursor.getNextId();
-                            }
                         }
-                        errorCount = 0; // we successfully processed a message
+                        errorCount = 0; // we successfully processed a batch
+                    } catch (BatchProcessingException e) {
+                        // record the messages completed before the failure so they are not processed again
+                        long id = e.getCompletedId();
+                        if (id > 0) completedId = id + 1;
+                        exitLoop = true;
+                        ++errorCount;
+                        logError(e.getCause());
                     } catch (Exception e) {
                         exitLoop = true;
                         ++errorCount;
@@ -286,16 +355,23 @@ public class OutputJob implements Runnable {
                         || System.currentTimeMillis() - lastUpdate >= updateIntervalMs)) {
                     synchronized (repo) {
                         o = repo.findOutput(oid);
+                        if (o == null) break;
                         // don't record our progress if we are now supposed to be processing from a different point in buffer
-                        if (o.getAtId() != output.getAtId() || o.getAt() != output.getAt()) break;
-                        output = o.deepCopy();
-                        output.setAt(timestamp);
-                        handler.updateOutput(output);
-                        output.setAtId(completedId);
-                        output.setLimit(limit);
-                        if (reachedTo || reachedLimit) output.setEnabled(false);
-                        repo.updateOutput(output);
+                        Output current = progressStore.merge(o);
+                        if (current.getAtId() != atId || current.getAt() != recordedAt) break;
+                        if (reachedTo || reachedLimit) {
+                            output = o.copy();
+                            output.setAt(timestamp);
+                            handler.updateOutput(output);
+                            output.setAtId(completedId);
+                            output.setLimit(limit);
+                            output.setEnabled(false);
+                            repo.updateOutput(output);
+                        } else {
+                            progressStore.record(o, completedId, timestamp, limit);
+                        }
                         atId = completedId;
+                        recordedAt = timestamp;
                         lastUpdate = System.currentTimeMillis();
                     }
                 }
@@ -328,19 +404,9 @@ public class OutputJob implements Runnable {
     /**
      * Create user friendly identifier for the output for error messages and so on.
      */
-    private String toPath(Database db, Queue q, Output o) {
-        StringBuilder b = new StringBuilder();
-        String dbId = db.getId();
-        if (!"default".equals(dbId)) b.append("/db/").append(dbId);
-        String s = db.getQueueForQid(q.getId());
-        if (s != null) {
-            b.append("/q/").append(s);
-            s = q.getOutputForOid(o.getId());
-            if (s != null) {
-                return b.append("/out/").append(s).toString();
-            }
-        }
-        return o.toString();
+    private String toPath(Output o) throws IOException {
+        String path = repo.findPath(o);
+        return path == null ? o.toString() : path;
     }
 
     @Override
@@ -16,18 +16,22 @@
 
 package io.qdb.server.output;
 
-import com.google.common.eventbus.EventBus;
 import com.google.common.eventbus.Subscribe;
 import com.google.common.util.concurrent.ThreadFactoryBuilder;
+import io.qdb.buffer.MessageBuffer;
 import io.qdb.server.controller.JsonService;
 import io.qdb.server.filter.MessageFilterFactory;
 import io.qdb.server.model.Output;
+import io.qdb.server.model.Queue;
+import io.qdb.server.repo.ObjectEventDispatcher;
+import io.qdb.server.repo.ProgressStore;
 import io.qdb.server.repo.Repository;
 import io.qdb.server.queue.QueueManager;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import javax.inject.Inject;
+import javax.inject.Named;
 import javax.inject.Singleton;
 import java.io.Closeable;
 import java.io.IOException;
@@ -46,27 +50,36 @@ public class OutputManager implements Closeable, Thread.UncaughtExceptionHandler
     private static final Logger log = LoggerFactory.getLogger(OutputManager.class);
 
     private final Repository repo;
+    private final ProgressStore progressStore;
     private final QueueManager queueManager;
     private final OutputHandlerFactory handlerFactory;
     private final MessageFilterFactory messageFilterFactory;
     private final JsonService jsonService;
     private final Map<String, OutputJob> jobs = new ConcurrentHashMap<String, OutputJob>(); // output id -> job
+    private final Map<String, QueueReader> readers = new ConcurrentHashMap<String, QueueReader>(); // queue id -> reader
+    private final int sharedReadMessages;
+    private final int sharedReadBytes;
     private final ExecutorService pool;
 
     @Inject
-    public OutputManager(EventBus eventBus, Repository repo, QueueManager queueManager,
-                         OutputHandlerFactory handlerFactory, MessageFilterFactory messageFilterFactory,
-                         JsonService jsonService) throws IOException {
+    public OutputManager(ObjectEventDispatcher eventDispatcher, Repository repo, ProgressStore progressStore,
+                         QueueManager queueManager, OutputHandlerFactory handlerFactory,
+                         MessageFilterFactory messageFilterFactory, JsonService jsonService,
+                         @Named("outputSharedReadMessages") int sharedReadMessages,
+                         @Named("outputSharedReadMB") int sharedReadMB) throws IOException {
         this.repo = repo;
+        this.progressStore = progressStore;
         this.queueManager = queueManager;
         this.handlerFactory = handlerFactory;
         this.messageFilterFactory = messageFilterFactory;
         this.jsonService = jsonService;
+        this.sharedReadMessages = sharedReadMessages;
+        this.sharedReadBytes = sharedReadMB * 1024 * 1024;
         this.pool = new ThreadPoolExecutor(1, Integer.MAX_VALUE,
                 60L, TimeUnit.SECONDS,
                 new SynchronousQueue<Runnable>(),
                 new ThreadFactoryBuilder().setNameFormat("output-%d").setUncaughtExceptionHandler(this).build());
-        eventBus.register(this);
+        eventDispatcher.register(this);
         for (Output output : this.repo.findOutputs(0, -1)) outputChanged(output);
     }
 
@@ -89,6 +102,8 @@ public class OutputManager implements Closeable, Thread.UncaughtExceptionHandler
             } else {
                 outputChanged(output);
             }
+        } else if (ev.value instanceof Queue && ev.type == Repository.ObjectEvent.Type.DELETED) {
+            readers.remove(ev.value.getId());
         }
     }
 
@@ -103,11 +118,24 @@ public class OutputManager implements Closeable, Thread.UncaughtExceptionHandler
 
         if (!o.isEnabled()) return;
 
-        OutputJob job = new OutputJob(this, handlerFactory, messageFilterFactory, queueManager, repo, jsonService, oid);
+        OutputJob job = new OutputJob(this, handlerFactory, messageFilterFactory, queueManager, repo, progressStore,
+                jsonService, oid);
         jobs.put(oid, job);
         pool.execute(job);
     }
 
+    /**
+     * Get the reader shared by all jobs processing queue qid.
+     */
+    synchronized QueueReader getQueueReader(String qid, MessageBuffer buffer) {
+        QueueReader r = readers.get(qid);
+        if (r == null || r.getBuffer() != buffer) {
+            // a new buffer means the queue was re-created, jobs still using the old reader will restart
+            readers.put(qid, r = new QueueReader(buffer, sharedReadMessages, sharedReadBytes));
+        }
+        return r;
+    }
+
     void onOutputJobExit(OutputJob job) {
         jobs.remove(job.getOid());
     }
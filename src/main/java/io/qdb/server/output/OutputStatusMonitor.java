@@ -17,12 +17,12 @@
 package io.qdb.server.output;
 
 import io.qdb.buffer.MessageBuffer;
-import io.qdb.server.model.Database;
 import io.qdb.server.model.Output;
 import io.qdb.server.model.Queue;
 import io.qdb.server.monitor.Status;
 import io.qdb.server.monitor.StatusMonitor;
 import io.qdb.server.queue.QueueManager;
+import io.qdb.server.repo.ProgressStore;
 import io.qdb.server.repo.Repository;
 
 import javax.inject.Inject;
@@ -39,15 +39,17 @@ public class OutputStatusMonitor extends StatusMonitor<Output> {
 
     private final Repository repo;
     private final QueueManager outputManager;
+    private final ProgressStore progressStore;
 
     @Inject
-    public OutputStatusMonitor(Repository repo, QueueManager outputManager,
+    public OutputStatusMonitor(Repository repo, QueueManager outputManager, ProgressStore progressStore,
                                @Named("outputStatusMonitorStartDelay") int startDelay,
                                @Named("outputStatusMonitorInterval") int interval,
                                @Named("outputWarningRepeatSecs") int warningRepeat) throws IOException {
         super("output", startDelay, interval, warningRepeat);
         this.repo = repo;
         this.outputManager = outputManager;
+        this.progressStore = progressStore;
     }
 
     @Override
@@ -70,7 +72,7 @@ public class OutputStatusMonitor extends StatusMonitor<Output> {
         double errorAfter = o.getErrorAfter();
         if (warnAfter <= 0.0 && errorAfter <= 0.0) return OK;
 
-        long behindByBytes = mb.getNextId() - o.getAtId();
+        long behindByBytes = mb.getNextId() - progressStore.merge(o).getAtId();
         double p = behindByBytes * 100.0 / mb.getMaxSize();
 
         if (errorAfter > 0.0 && p >= errorAfter) {
@@ -87,13 +89,8 @@ public class OutputStatusMonitor extends StatusMonitor<Output> {
 
     protected String toPath(Output o) {
         try {
-            StringBuilder b = new StringBuilder();
-            Queue q = repo.findQueue(o.getQueue());
-            Database db = repo.findDatabase(q.getDatabase());
-            if (!"default".equals(db.getId())) b.append("/db/").append(db);
-            b.append("/q/").append(db.getQueueForQid(q.getId()));
-            b.append("/out/").append(q.getOutputForOid(o.getId()));
-            return b.toString();
+            String path = repo.findPath(o);
+            return path == null ? "output id " + o.getId() : path;
         } catch (IOException e) {
             log.error(e.toString(), e);
             return "output id " + o.getId();
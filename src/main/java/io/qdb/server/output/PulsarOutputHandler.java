@@ -31,7 +31,7 @@ import java.util.function.BiFunction;
 /**
  * Published messages to a Apache Pulsar cluster.
  */
-public class PulsarOutputHandler extends OutputHandlerAdapter {
+public class PulsarOutputHandler extends BatchOutputHandlerAdapter {
 
     public String topic;
 
@@ -64,8 +64,14 @@ public class PulsarOutputHandler extends OutputHandlerAdapter {
     }
 
     @Override
-    public long processMessage(final long qdbMessageId, String routingKey, long timestamp, byte[] payload) throws Exception {
-        if (log.isDebugEnabled()) log.debug(outputPath + ": Publishing " + qdbMessageId);
+    public long processBatch(OutputBatch batch) throws Exception {
+        if (log.isDebugEnabled()) log.debug(outputPath + ": Publishing " + batch);
+        for (int i = 0, n = batch.size(); i < n; i++) sendAsync(batch.getId(i), batch.getPayload(i));
+        if (log.isDebugEnabled()) log.debug(outputPath + ": Publishing return " + oldestQdbMessageIdAckedByPulsar);
+        return oldestQdbMessageIdAckedByPulsar;
+    }
+
+    private void sendAsync(final long qdbMessageId, byte[] payload) throws Exception {
         if (pulsarSendError != null) throw pulsarSendError;
         synchronized (this) {
             outstandingMessages.addLast(qdbMessageId);
@@ -81,8 +87,6 @@ public class PulsarOutputHandler extends OutputHandlerAdapter {
                 return null;
             }
         });
-        if (log.isDebugEnabled()) log.debug(outputPath + ": Publishing return " + oldestQdbMessageIdAckedByPulsar);
-        return oldestQdbMessageIdAckedByPulsar;
     }
 
     private synchronized void onMessageAckedByPulsar(Long qdbMessageId) {
@@ -0,0 +1,400 @@
+/*
+ * Copyright 2013 David Tinker
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package io.qdb.server.output;
+
+import io.qdb.buffer.MessageBuffer;
+import io.qdb.buffer.MessageCursor;
+import io.qdb.server.queue.RoutingKeyIndex;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Reads messages from a queue once on behalf of all the {@link OutputJob}s processing it. The most recently read
+ * messages are kept in a ring so jobs near the head of the queue share one buffer cursor and one copy of each
+ * payload instead of each reading every message from disk. Whichever job reaches the end of the ring first reads
+ * the next messages for everyone. A job that starts further back in the queue or falls behind the ring reads
+ * with its own cursor until it catches up.
+ */
+public class QueueReader {
+
+    private static final Logger log = LoggerFactory.getLogger(QueueReader.class);
+
+    private static final int READ_AHEAD = 64;       // max messages read for the ring in one go
+    private static final int JOIN_CHECK_EVERY = 64; // private reads between attempts to join the ring
+
+    private final MessageBuffer buffer;
+    private final int maxBytes;
+
+    private final ReentrantLock readLock = new ReentrantLock();
+    private MessageCursor cursor;   // guarded by readLock
+
+    // the rest are guarded by this
+    private final long[] ids;
+    private final long[] nextIds;
+    private final long[] timestamps;
+    private final String[] routingKeys;
+    private final byte[][] payloads;
+    private final int mask;
+    private long firstSeq;          // sequence number of the oldest message in the ring
+    private long endSeq;            // sequence number the next message added to the ring will get
+    private long endId = -1;        // id of the message following the newest one in the ring, -1 if not started
+    private boolean restart;        // cursor must be re-opened at endId
+    private int bytes;
+    private final List<Cursor> members = new ArrayList<Cursor>();  // cursors reading from the ring
+    private int refs;               // open cursors
+
+    /**
+     * Keep up to maxMessages (rounded up to a power of 2) and maxBytes of payload in the ring.
+     */
+    public QueueReader(MessageBuffer buffer, int maxMessages, int maxBytes) {
+        this.buffer = buffer;
+        this.maxBytes = maxBytes;
+        int n = Integer.highestOneBit(Math.max(maxMessages, 2) - 1) << 1;
+        ids = new long[n];
+        nextIds = new long[n];
+        timestamps = new long[n];
+        routingKeys = new String[n];
+        payloads = new byte[n][];
+        mask = n - 1;
+    }
+
+    public MessageBuffer getBuffer() {
+        return buffer;
+    }
+
+    /**
+     * Open a cursor positioned at message atId or at the first message with timestamp at or after at if atId
+     * is less than 0. The cursor must be closed.
+     */
+    public Cursor open(long atId, long at) throws IOException {
+        Cursor c = new Cursor();
+        if (atId < 0) c.own = buffer.cursorByTimestamp(at);
+        else c.nextId = atId;
+        synchronized (this) {
+            ++refs;
+        }
+        return c;
+    }
+
+    /**
+     * If id is in the ring (or is the id of the message the ring will read next) then return its sequence number
+     * otherwise -1.
+     */
+    private long seqOf(long id) {
+        if (id == endId) return endSeq;
+        long lo = firstSeq, hi = endSeq - 1;
+        while (lo <= hi) {
+            long mid = (lo + hi) >>> 1;
+            long v = ids[(int)mid & mask];
+            if (v < id) lo = mid + 1;
+            else if (v > id) hi = mid - 1;
+            else return mid;
+        }
+        return -1;
+    }
+
+    /**
+     * Read the next message(s) from the buffer into the ring for a cursor at seq. Returns true without reading if
+     * another cursor has already read past seq while we waited for the lock. Returns false if no message arrived
+     * before timeoutMs (0 for no wait) or another cursor is busy reading and did not finish in time.
+     */
+    private boolean readAhead(long seq, int timeoutMs) throws IOException, InterruptedException {
+        long start = timeoutMs > 0 ? System.currentTimeMillis() : 0;
+        if (timeoutMs > 0 ? !readLock.tryLock(timeoutMs, TimeUnit.MILLISECONDS) : !readLock.tryLock()) return false;
+        try {
+            long startId;
+            synchronized (this) {
+                if (endSeq > seq) return true;
+                if (restart) {
+                    restart = false;
+                    startId = endId;
+                } else {
+                    startId = -1;
+                }
+            }
+            if (startId >= 0) {
+                closeCursor();
+                cursor = buffer.cursor(startId);
+            }
+            int ms = timeoutMs > 0 ? timeoutMs - (int)(System.currentTimeMillis() - start) : 0;
+            if (!(ms > 0 ? cursor.next(ms) : cursor.next())) return false;
+            int max = Math.min(READ_AHEAD, (mask + 1) / 2);
+            for (int i = 0; ; ) {
+                // the first message is always added even if that pushes out messages slower cursors still need
+                if (i > 0 && !hasRoom(cursor.getPayloadSize())) {
+                    synchronized (this) {
+                        restart = true; // this message did not make it into the ring so read it again next time
+                    }
+                    break;
+                }
+                byte[] payload = cursor.getPayload();
+                synchronized (this) {
+                    while (endSeq - firstSeq > mask || bytes + payload.length > maxBytes && endSeq > firstSeq) {
+                        int j = (int)firstSeq & mask;
+                        bytes -= payloads[j].length;
+                        routingKeys[j] = null;
+                        payloads[j] = null;
+                        ++firstSeq;
+                    }
+                    int j = (int)endSeq & mask;
+                    ids[j] = cursor.getId();
+                    timestamps[j] = cursor.getTimestamp();
+                    routingKeys[j] = cursor.getRoutingKey();
+                    payloads[j] = payload;
+                    nextIds[j] = endId = cursor.getNextId();
+                    bytes += payload.length;
+                    ++endSeq;
+                }
+                if (++i == max || !cursor.next()) break;
+            }
+            return true;
+        } catch (IOException e) {
+            // our cursor may have moved past messages that did not make it into the ring
+            synchronized (this) {
+                restart = true;
+            }
+            throw e;
+        } finally {
+            readLock.unlock();
+        }
+    }
+
+    /**
+     * Can a message with payloadSize be added to the ring without dropping messages that cursors reading from
+     * the ring have not reached yet?
+     */
+    private synchronized boolean hasRoom(int payloadSize) {
+        if (endSeq - firstSeq <= mask && bytes + payloadSize <= maxBytes) return true;
+        long keep = endSeq;     // oldest message still needed
+        for (Cursor c : members) {
+            if (c.seq >= firstSeq && c.seq < keep) keep = c.seq;
+        }
+        // drop messages from the front of the ring the way readAhead does and see if any of them are needed
+        int b = bytes;
+        for (long s = firstSeq; endSeq - s > mask || b + payloadSize > maxBytes && s < endSeq; s++) {
+            if (s == keep) return false;
+            b -= payloads[(int)s & mask].length;
+        }
+        return true;
+    }
+
+    private void closeCursor() {
+        if (cursor != null) {
+            try {
+                cursor.close();
+            } catch (IOException e) {
+                log.error("Error closing cursor: " + e);
+            }
+            cursor = null;
+        }
+    }
+
+    private void cursorClosed(Cursor c, boolean member) {
+        readLock.lock();
+        try {
+            synchronized (this) {
+                if (member) members.remove(c);
+                if (--refs > 0) return;
+                // nobody is reading the queue so free the ring
+                Arrays.fill(routingKeys, null);
+                Arrays.fill(payloads, null);
+                firstSeq = endSeq;
+                endId = -1;
+                bytes = 0;
+                restart = false;
+            }
+            closeCursor();
+        } finally {
+            readLock.unlock();
+        }
+    }
+
+    @Override
+    public synchronized String toString() {
+        return "QueueReader[" + buffer + ", " + (endSeq - firstSeq) + " messages, " + bytes + " bytes, " +
+                members.size() + "/" + refs + " cursors]";
+    }
+
+    /**
+     * Reads messages from the ring or from its own buffer cursor when it is not close enough to the head of the
+     * queue. Not thread safe. The payload arrays returned are shared with other cursors and must not be modified.
+     */
+    public class Cursor implements Closeable {
+
+        private MessageCursor own;  // null when reading from the ring or before the first read
+        private long seq = -1;      // our position in the ring or -1 if not reading from it
+        private long nextId = -1;   // id of the message following the current one, -1 if not known
+        private int privateReads;
+        private boolean ownIdle;    // own cursor ran out of messages
+        private RoutingKeyIndex index;
+        private String indexKey;
+
+        private long id;
+        private long timestamp;
+        private String routingKey;
+        private byte[] payload;
+
+        /**
+         * Advance to the next message without waiting for one to arrive.
+         */
+        public boolean next() throws IOException {
+            try {
+                return next(0);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return false;
+            }
+        }
+
+        /**
+         * Advance to the next message waiting up to timeoutMs for one to arrive.
+         */
+        public boolean next(int timeoutMs) throws IOException, InterruptedException {
+            if (seq < 0 && nextId >= 0 && (own == null || ownIdle || privateReads % JOIN_CHECK_EVERY == 0)) join();
+            if (seq < 0) return nextPrivate(timeoutMs);
+            long deadline = timeoutMs > 0 ? System.currentTimeMillis() + timeoutMs : 0;
+            while (true) {
+                synchronized (QueueReader.this) {
+                    if (seq < firstSeq) {
+                        // we fell behind and the messages we need have been dropped from the ring
+                        members.remove(this);
+                        seq = -1;
+                    } else if (seq < endSeq) {
+                        int j = (int)seq++ & mask;
+                        id = ids[j];
+                        timestamp = timestamps[j];
+                        routingKey = routingKeys[j];
+                        payload = payloads[j];
+                        nextId = nextIds[j];
+                        return true;
+                    }
+                }
+                if (seq < 0) {
+                    if (log.isDebugEnabled()) log.debug(QueueReader.this + ": cursor fell behind at " + nextId);
+                    return nextPrivate(timeoutMs);
+                }
+                int ms = timeoutMs > 0 ? (int)(deadline - System.currentTimeMillis()) : 0;
+                if (timeoutMs > 0 && ms <= 0 || !readAhead(seq, ms)) return false;
+            }
+        }
+
+        /**
+         * Start reading from the ring if nextId is in it. If nobody else is using the ring and we are close enough
+         * to the head of the queue then restart the ring at nextId.
+         */
+        private void join() throws IOException {
+            synchronized (QueueReader.this) {
+                long s = seqOf(nextId);
+                if (s < 0) {
+                    if (!members.isEmpty() || buffer.getNextId() - nextId > maxBytes) return;
+                    Arrays.fill(routingKeys, null);
+                    Arrays.fill(payloads, null);
+                    firstSeq = s = endSeq;
+                    endId = nextId;
+                    bytes = 0;
+                    restart = true;
+                }
+                seq = s;
+                members.add(this);
+            }
+            if (own != null) {
+                own.close();
+                own = null;
+            }
+            ownIdle = false;
+        }
+
+        /**
+         * Use index to skip messages without routing keys starting with key when reading with our own cursor.
+         */
+        public void setIndex(RoutingKeyIndex index, String key) {
+            this.index = index;
+            this.indexKey = key;
+        }
+
+        private boolean nextPrivate(int timeoutMs) throws IOException, InterruptedException {
+            if (index != null && nextId >= 0) {
+                long skipTo = index.skipTo(indexKey, nextId);
+                if (skipTo >= 0) {
+                    if (own != null) own.close();
+                    own = null;
+                    nextId = skipTo;
+                }
+            }
+            if (own == null) own = buffer.cursor(nextId);
+            if (!(timeoutMs > 0 ? own.next(timeoutMs) : own.next())) {
+                ownIdle = true;
+                return false;
+            }
+            ownIdle = false;
+            ++privateReads;
+            id = own.getId();
+            timestamp = own.getTimestamp();
+            routingKey = own.getRoutingKey();
+            payload = null;
+            nextId = own.getNextId();
+            return true;
+        }
+
+        public long getId() {
+            return id;
+        }
+
+        public long getTimestamp() {
+            return timestamp;
+        }
+
+        public String getRoutingKey() {
+            return routingKey;
+        }
+
+        public byte[] getPayload() throws IOException {
+            if (payload == null) payload = own.getPayload();
+            return payload;
+        }
+
+        public long getNextId() {
+            return nextId;
+        }
+
+        /**
+         * Is this cursor reading from the shared ring?
+         */
+        public boolean isShared() {
+            return seq >= 0;
+        }
+
+        @Override
+        public void close() throws IOException {
+            try {
+                if (own != null) own.close();
+            } finally {
+                own = null;
+                cursorClosed(this, seq >= 0);
+                seq = -1;
+            }
+        }
+    }
+}
@@ -23,16 +23,24 @@ import io.qdb.server.model.Queue;
 
 import java.io.IOException;
 import java.net.ConnectException;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.TreeMap;
 
 /**
- * Published messages to a RabbitMQ server.
+ * Published messages to a RabbitMQ server. By default the channel is put into confirm mode and messages are only
+ * reported as completed once the broker has confirmed them. Up to maxUnconfirmed messages may be waiting for
+ * confirmation at once so publishing is not held up by round trips to the broker.
  */
-public class RabbitMQOutputHandler extends OutputHandlerAdapter implements ShutdownListener {
+public class RabbitMQOutputHandler extends BatchOutputHandlerAdapter implements ShutdownListener, ConfirmListener {
 
     public String exchange;
     public String[] queues;
     public int heartbeat = 30;
     public boolean persistentMessages;
+    public boolean confirms = true;
+    public int maxUnconfirmed = 1000;
+    public int confirmTimeoutMs = 30000;
 
     protected String outputPath;
     protected ConnectionFactory connectionFactory;
@@ -45,6 +53,20 @@ public class RabbitMQOutputHandler extends OutputHandlerAdapter implements Shutd
 
     protected AMQP.BasicProperties messageProperties;
 
+    // publish sequence number -> QDB message id for messages waiting for confirmation, in publish order
+    private final TreeMap<Long, Unconfirmed> unconfirmed = new TreeMap<Long, Unconfirmed>();
+    private long confirmedId;   // highest QDB message id with it and all messages before it confirmed
+    private Exception confirmError;
+
+    private static class Unconfirmed {
+        final long messageId;
+        boolean acked;
+
+        Unconfirmed(long messageId) {
+            this.messageId = messageId;
+        }
+    }
+
     @SuppressWarnings("unchecked")
     @Override
     public void init(Queue q, Output output, String outputPath) throws Exception {
@@ -88,10 +110,88 @@ public class RabbitMQOutputHandler extends OutputHandlerAdapter implements Shutd
     }
 
     @Override
-    public long processMessage(long messageId, String routingKey, long timestamp, byte[] payload) throws Exception {
-        if (log.isDebugEnabled()) log.debug(outputPath + ": Publishing " + messageId);
-        ensureChannel().basicPublish(exchange, routingKey, messageProperties, payload);
-        return messageId;
+    public long processBatch(OutputBatch batch) throws Exception {
+        if (log.isDebugEnabled()) log.debug(outputPath + ": Publishing " + batch);
+        if (!confirms) {
+            Channel c = ensureChannel();
+            for (int i = 0, n = batch.size(); i < n; i++) {
+                c.basicPublish(exchange, batch.getRoutingKey(i), messageProperties, batch.getPayload(i));
+            }
+            return batch.getLastId();
+        }
+        for (int i = 0, n = batch.size(); i < n; i++) {
+            Channel c = ensureChannel();
+            synchronized (unconfirmed) {
+                awaitConfirms(maxUnconfirmed - 1);
+                unconfirmed.put(c.getNextPublishSeqNo(), new Unconfirmed(batch.getId(i)));
+            }
+            c.basicPublish(exchange, batch.getRoutingKey(i), messageProperties, batch.getPayload(i));
+        }
+        synchronized (unconfirmed) {
+            if (confirmError != null) throw confirmError;
+            return confirmedId;
+        }
+    }
+
+    @Override
+    public long flushMessages() throws Exception {
+        if (!confirms) return -1;
+        synchronized (unconfirmed) {
+            awaitConfirms(0);
+            return confirmedId;
+        }
+    }
+
+    /**
+     * Wait until no more than max messages are waiting for confirmation. Must be called holding the lock on
+     * unconfirmed.
+     */
+    private void awaitConfirms(int max) throws Exception {
+        long timeoutAt = System.currentTimeMillis() + confirmTimeoutMs;
+        while (true) {
+            if (confirmError != null) throw confirmError;
+            if (unconfirmed.size() <= max) return;
+            long ms = timeoutAt - System.currentTimeMillis();
+            if (ms <= 0) {
+                throw new ExpectedIOException("Timed out waiting for confirmation of " + unconfirmed.size() +
+                        " message(s) from " + getConnectionInfo());
+            }
+            unconfirmed.wait(ms);
+        }
+    }
+
+    @Override
+    public void handleAck(long deliveryTag, boolean multiple) throws IOException {
+        synchronized (unconfirmed) {
+            if (multiple) {
+                for (Unconfirmed u : unconfirmed.headMap(deliveryTag, true).values()) u.acked = true;
+            } else {
+                Unconfirmed u = unconfirmed.get(deliveryTag);
+                if (u != null) u.acked = true;
+            }
+            // messages can be confirmed out of order so only advance past a contiguous run of acked messages
+            for (Iterator<Map.Entry<Long, Unconfirmed>> i = unconfirmed.entrySet().iterator(); i.hasNext(); ) {
+                Unconfirmed u = i.next().getValue();
+                if (!u.acked) break;
+                confirmedId = u.messageId;
+                i.remove();
+            }
+            unconfirmed.notifyAll();
+        }
+    }
+
+    @Override
+    public void handleNack(long deliveryTag, boolean multiple) throws IOException {
+        synchronized (unconfirmed) {
+            Unconfirmed u = multiple
+                    ? (unconfirmed.isEmpty() ? null : unconfirmed.firstEntry().getValue())
+                    : unconfirmed.get(deliveryTag);
+            if (confirmError == null) {
+                confirmError = new ExpectedIOException(outputPath + ": Message " +
+                        (u == null ? "?" : Long.toString(u.messageId)) + " was rejected by " + getConnectionInfo());
+            }
+            unconfirmed.notifyAll();
+        }
     }
 
     @Override
@@ -115,6 +215,10 @@ public class RabbitMQOutputHandler extends OutputHandlerAdapter implements Shutd
             channel = con.createChannel();
             if (log.isInfoEnabled()) log.info(outputPath + ": Connected to " + getConnectionInfo());
             channel.addShutdownListener(this);
+            if (confirms) {
+                channel.addConfirmListener(this);
+                channel.confirmSelect();
+            }
             initChannel(channel);
         }
         return channel;
@@ -134,6 +238,14 @@ public class RabbitMQOutputHandler extends OutputHandlerAdapter implements Shutd
     @Override
     public synchronized void shutdownCompleted(ShutdownSignalException cause) {
         channel = null;
+        synchronized (unconfirmed) {
+            // publish sequence numbers start again on a new channel so anything unconfirmed must be sent again
+            if (!unconfirmed.isEmpty() && confirmError == null) {
+                confirmError = new ExpectedIOException(outputPath + ": Channel closed with " + unconfirmed.size() +
+                        " message(s) unconfirmed");
+            }
+            unconfirmed.notifyAll();
+        }
         if (!cause.isInitiatedByApplication()) {
             log.error(outputPath + ": Channel closed unexpectedly: " + cause.getMessage());
             try {
@@ -0,0 +1,102 @@
+/*
+ * Copyright 2013 David Tinker
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package io.qdb.server.output;
+
+import io.qdb.server.model.Output;
+import io.qdb.server.model.Queue;
+
+import java.io.IOException;
+
+/**
+ * Feeds batches to a handler that only processes one message at a time. Batches are not held back waiting for
+ * more messages as there is nothing to be gained from that.
+ */
+class SingleMessageBatchAdapter implements BatchOutputHandler {
+
+    private final OutputHandler handler;
+
+    SingleMessageBatchAdapter(OutputHandler handler) {
+        this.handler = handler;
+    }
+
+    @Override
+    public void init(Queue q, Output output, String outputPath) throws Exception {
+        handler.init(q, output, outputPath);
+    }
+
+    /**
+     * Process each message in turn and return the last completed id returned by the handler. If the handler fails
+     * after completing some messages a {@link BatchProcessingException} with the last completed id is thrown so
+     * those messages are not processed again.
+     */
+    @Override
+    public long processBatch(OutputBatch batch) throws Exception {
+        long completedId = 0;
+        for (int i = 0, n = batch.size(); i < n; i++) {
+            long id;
+            try {
+                id = handler.processMessage(batch.getId(i), batch.getRoutingKey(i), batch.getTimestamp(i),
+                        batch.getPayload(i));
+            } catch (Exception e) {
+                if (completedId > 0) throw new BatchProcessingException(completedId, e);
+                throw e;
+            }
+            if (id > 0) completedId = id;
+        }
+        return completedId;
+    }
+
+    @Override
+    public long processMessage(long messageId, String routingKey, long timestamp, byte[] payload) throws Exception {
+        return handler.processMessage(messageId, routingKey, timestamp, payload);
+    }
+
+    @Override
+    public long flushMessages() throws Exception {
+        return handler.flushMessages();
+    }
+
+    @Override
+    public void updateOutput(Output output) {
+        handler.updateOutput(output);
+    }
+
+    @Override
+    public int getMaxBatchSize() {
+        return 100;
+    }
+
+    @Override
+    public int getMaxBatchBytes() {
+        return 1024 * 1024;
+    }
+
+    @Override
+    public int getMaxBatchWaitMs() {
+        return 0;
+    }
+
+    @Override
+    public void close() throws IOException {
+        handler.close();
+    }
+
+    @Override
+    public String toString() {
+        return handler.toString();
+    }
+}
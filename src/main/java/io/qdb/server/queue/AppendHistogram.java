@@ -0,0 +1,233 @@
+/*
+ * Copyright 2013 David Tinker
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package io.qdb.server.queue;
+
+import io.qdb.server.databind.DurationParser;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Counts of messages and payload bytes appended to a queue bucketed by timestamp at one or more resolutions
+ * (e.g. per second for the last hour and per minute for the last week). Updated as messages are appended so rate
+ * charts can be drawn without scanning the buffer. Each resolution is a ring of buckets so memory use is fixed.
+ */
+public class AppendHistogram {
+
+    private static final int FILE_VERSION = 1;
+
+    private final Level[] levels;
+
+    /**
+     * Buckets at one resolution. Bucket i holds slot (timestamp / resolutionMs) s where s % size == i and
+     * lastSlot - size < s <= lastSlot.
+     */
+    private static class Level {
+        final long resolutionMs;
+        final int[] counts;
+        final long[] bytes;
+        long lastSlot = -1;
+
+        Level(long resolutionMs, int size) {
+            this.resolutionMs = resolutionMs;
+            counts = new int[size];
+            bytes = new long[size];
+        }
+
+        void add(long timestamp, int payloadSize) {
+            long slot = timestamp / resolutionMs;
+            int n = counts.length;
+            if (slot > lastSlot) {
+                // clear the buckets for the slots we skipped over
+                if (lastSlot < 0 || slot - lastSlot >= n) {
+                    Arrays.fill(counts, 0);
+                    Arrays.fill(bytes, 0);
+                } else {
+                    for (long s = lastSlot + 1; s <= slot; s++) {
+                        int i = (int)(s % n);
+                        counts[i] = 0;
+                        bytes[i] = 0;
+                    }
+                }
+                lastSlot = slot;
+            } else if (slot <= lastSlot - n) {
+                return; // too old
+            }
+            int i = (int)(slot % n);
+            ++counts[i];
+            bytes[i] += payloadSize;
+        }
+    }
+
+    /**
+     * One bucket.
+     */
+    public static class Bucket {
+        public final long timestamp;
+        public final int count;
+        public final long bytes;
+
+        public Bucket(long timestamp, int count, long bytes) {
+            this.timestamp = timestamp;
+            this.count = count;
+            this.bytes = bytes;
+        }
+    }
+
+    /**
+     * Create a histogram from a spec like "1 for 1:00:00, 1:00 for 7 days" (per second for an hour and per
+     * minute for a week). The durations are in {@link DurationParser} format.
+     * @throws IllegalArgumentException if spec is invalid
+     */
+    public AppendHistogram(String spec) throws IllegalArgumentException {
+        List<Level> list = new ArrayList<Level>();
+        for (String part : spec.split(",")) {
+            part = part.trim();
+            if (part.length() == 0) continue;
+            int i = part.indexOf(" for ");
+            if (i < 0) throw new IllegalArgumentException("Expected 'resolution for duration' in [" + part + "]");
+            long res = DurationParser.parse(part.substring(0, i).trim()) * 1000L;
+            long duration = DurationParser.parse(part.substring(i + 5).trim()) * 1000L;
+            if (res <= 0 || duration < res) throw new IllegalArgumentException("Invalid histogram [" + part + "]");
+            long size = duration / res;
+            if (size > 1000000) throw new IllegalArgumentException("Too many buckets for [" + part + "]");
+            list.add(new Level(res, (int)size));
+        }
+        levels = list.toArray(new Level[list.size()]);
+    }
+
+    /**
+     * Record the append of a message.
+     */
+    public synchronized void add(long timestamp, int payloadSize) {
+        for (Level level : levels) level.add(timestamp, payloadSize);
+    }
+
+    /**
+     * Get the resolutions available in ms.
+     */
+    public long[] getResolutions() {
+        long[] ans = new long[levels.length];
+        for (int i = 0; i < levels.length; i++) ans[i] = levels[i].resolutionMs;
+        return ans;
+    }
+
+    /**
+     * Get the non-empty buckets at resolutionMs covering timestamps from (inclusive) to to (exclusive) in time
+     * order. Returns null if there is no level with that resolution.
+     */
+    public synchronized List<Bucket> getBuckets(long resolutionMs, long from, long to) {
+        Level level = null;
+        for (Level l : levels) if (l.resolutionMs == resolutionMs) level = l;
+        if (level == null) return null;
+        List<Bucket> ans = new ArrayList<Bucket>();
+        if (level.lastSlot < 0) return ans;
+        int n = level.counts.length;
+        long first = Math.max(level.lastSlot - n + 1, Math.max(from, 0) / resolutionMs);
+        long last = Math.min(level.lastSlot, (to - 1) / resolutionMs);
+        for (long s = first; s <= last; s++) {
+            int i = (int)(s % n);
+            if (level.counts[i] > 0) ans.add(new Bucket(s * resolutionMs, level.counts[i], level.bytes[i]));
+        }
+        return ans;
+    }
+
+    /**
+     * Write to file (replacing it atomically).
+     */
+    public void save(File file) throws IOException {
+        File tmp = new File(file.getPath() + ".tmp");
+        DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(tmp)));
+        try {
+            out.writeInt(FILE_VERSION);
+            synchronized (this) {
+                out.writeInt(levels.length);
+                for (Level level : levels) {
+                    out.writeLong(level.resolutionMs);
+                    out.writeInt(level.counts.length);
+                    out.writeLong(level.lastSlot);
+                    for (int i = 0; i < level.counts.length; i++) {
+                        out.writeInt(level.counts[i]);
+                        out.writeLong(level.bytes[i]);
+                    }
+                }
+            }
+        } finally {
+            out.close();
+        }
+        if (!tmp.renameTo(file)) {
+            if (!file.delete() || !tmp.renameTo(file)) {
+                throw new IOException("Unable to rename [" + tmp + "] to [" + file + "]");
+            }
+        }
+    }
+
+    /**
+     * Load buckets saved to file by {@link #save(java.io.File)}. Levels whose resolution and size are not the
+     * same as ours are skipped. Nothing is changed if the file cannot be read in full.
+     */
+    public void load(File file) throws IOException {
+        List<Level> loaded = new ArrayList<Level>();
+        DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(file)));
+        try {
+            int ver = in.readInt();
+            if (ver != FILE_VERSION) throw new IOException("Unsupported version " + ver + " in [" + file + "]");
+            for (int n = in.readInt(); n > 0; n--) {
+                long res = in.readLong();
+                int size = in.readInt();
+                long lastSlot = in.readLong();
+                boolean wanted = false;
+                for (Level l : levels) if (l.resolutionMs == res && l.counts.length == size) wanted = true;
+                Level level = wanted ? new Level(res, size) : null;
+                for (int i = 0; i < size; i++) {
+                    int count = in.readInt();
+                    long bytes = in.readLong();
+                    if (level != null) {
+                        level.counts[i] = count;
+                        level.bytes[i] = bytes;
+                    }
+                }
+                if (level != null) {
+                    level.lastSlot = lastSlot;
+                    loaded.add(level);
+                }
+            }
+        } finally {
+            in.close();
+        }
+        synchronized (this) {
+            for (Level src : loaded) {
+                for (Level l : levels) {
+                    if (l.resolutionMs == src.resolutionMs && l.counts.length == src.counts.length) {
+                        System.arraycopy(src.counts, 0, l.counts, 0, src.counts.length);
+                        System.arraycopy(src.bytes, 0, l.bytes, 0, src.bytes.length);
+                        l.lastSlot = src.lastSlot;
+                    }
+                }
+            }
+        }
+    }
+}
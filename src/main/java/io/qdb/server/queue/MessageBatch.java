@@ -0,0 +1,194 @@
+/*
+ * Copyright 2013 David Tinker
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package io.qdb.server.queue;
+
+import io.qdb.buffer.MessageBuffer;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.ReadableByteChannel;
+import java.util.Arrays;
+
+/**
+ * Messages collected into a single growable byte array so they can be appended to a buffer in one group commit.
+ * Instances can be re-used after {@link #clear()} and are not thread safe.
+ */
+public class MessageBatch {
+
+    private byte[] data;
+    private int dataSize;
+    private String[] routingKeys;
+    private int[] offsets;
+    private long[] timestamps;
+    private long[] ids;
+    private int count;
+
+    private final RegionChannel channel = new RegionChannel();
+
+    public MessageBatch() {
+        this(64 * 1024, 64);
+    }
+
+    public MessageBatch(int initialBytes, int initialMessages) {
+        data = new byte[initialBytes];
+        routingKeys = new String[initialMessages];
+        offsets = new int[initialMessages + 1];
+        timestamps = new long[initialMessages];
+        ids = new long[initialMessages];
+    }
+
+    /**
+     * Add a message with payload of len bytes read from in. Throws IllegalArgumentException if in runs dry
+     * before len bytes have been read. A timestamp of 0 means use the time the batch is appended.
+     */
+    public void add(long timestamp, String routingKey, InputStream in, int len) throws IOException {
+        int off = reserve(timestamp, routingKey, len);
+        for (int todo = len; todo > 0; ) {
+            int sz = in.read(data, off + len - todo, todo);
+            if (sz < 0) {
+                throw new IllegalArgumentException("Expected " + len + " bytes, only read " + (len - todo) +
+                        " while reading payload");
+            }
+            todo -= sz;
+        }
+        offsets[++count] = dataSize += len;
+    }
+
+    /**
+     * Add a message with a copy of len bytes from payload starting at off.
+     */
+    public void add(long timestamp, String routingKey, byte[] payload, int off, int len) {
+        System.arraycopy(payload, off, data, reserve(timestamp, routingKey, len), len);
+        offsets[++count] = dataSize += len;
+    }
+
+    private int reserve(long timestamp, String routingKey, int len) {
+        if (count == routingKeys.length) {
+            int n = count * 2;
+            routingKeys = Arrays.copyOf(routingKeys, n);
+            offsets = Arrays.copyOf(offsets, n + 1);
+            timestamps = Arrays.copyOf(timestamps, n);
+            ids = Arrays.copyOf(ids, n);
+        }
+        long need = (long)dataSize + len;
+        if (need > data.length) {
+            if (need > Integer.MAX_VALUE) throw new IllegalArgumentException("Batch is too large");
+            data = Arrays.copyOf(data, (int)Math.min(Integer.MAX_VALUE, Math.max(need, data.length * 2L)));
+        }
+        routingKeys[count] = routingKey;
+        timestamps[count] = timestamp;
+        ids[count] = 0;
+        return dataSize;
+    }
+
+    /**
+     * Append all the messages in this batch to mb (and idx and hist if not null) and record their ids. Messages
+     * without a timestamp get timestamp. The appends are done holding the buffer's lock so the messages get
+     * contiguous ids and concurrent appenders only contend once per batch instead of once per message.
+     */
+    public void appendTo(MessageBuffer mb, RoutingKeyIndex idx, AppendHistogram hist, long timestamp)
+            throws IOException {
+        synchronized (mb) {
+            for (int i = 0; i < count; i++) {
+                if (ids[i] != 0) continue; // already appended
+                int off = offsets[i];
+                int len = offsets[i + 1] - off;
+                channel.reset(off, len);
+                long ts = timestamps[i];
+                if (ts == 0) timestamps[i] = ts = timestamp;
+                ids[i] = mb.append(ts, routingKeys[i], channel, len);
+                if (idx != null) idx.add(ids[i], routingKeys[i]);
+                if (hist != null) hist.add(ts, len);
+            }
+        }
+    }
+
+    /**
+     * Forget all messages so the batch can be re-used. The backing arrays are kept.
+     */
+    public void clear() {
+        Arrays.fill(routingKeys, 0, count, null);
+        count = 0;
+        dataSize = 0;
+    }
+
+    public int size() {
+        return count;
+    }
+
+    public boolean isEmpty() {
+        return count == 0;
+    }
+
+    /**
+     * How many payload bytes are in the batch?
+     */
+    public int getPayloadBytes() {
+        return dataSize;
+    }
+
+    public String getRoutingKey(int i) {
+        return routingKeys[i];
+    }
+
+    public int getPayloadSize(int i) {
+        return offsets[i + 1] - offsets[i];
+    }
+
+    public long getTimestamp(int i) {
+        return timestamps[i];
+    }
+
+    /**
+     * Get the id of message i or 0 if it has not been appended yet.
+     */
+    public long getId(int i) {
+        return ids[i];
+    }
+
+    /**
+     * Reads a region of our data array without copying it into another array first.
+     */
+    private class RegionChannel implements ReadableByteChannel {
+
+        private int pos, end;
+
+        void reset(int off, int len) {
+            pos = off;
+            end = off + len;
+        }
+
+        @Override
+        public int read(ByteBuffer dst) throws IOException {
+            if (pos >= end) return -1;
+            int n = Math.min(dst.remaining(), end - pos);
+            dst.put(data, pos, n);
+            pos += n;
+            return n;
+        }
+
+        @Override
+        public boolean isOpen() {
+            return true;
+        }
+
+        @Override
+        public void close() throws IOException {
+        }
+    }
+}
@@ -0,0 +1,267 @@
+/*
+ * Copyright 2013 David Tinker
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package io.qdb.server.queue;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+
+/**
+ * Copies message payloads directly from the files of a PersistentMessageBuffer to a channel using
+ * {@link FileChannel#transferTo(long, long, java.nio.channels.WritableByteChannel)} so they don't have to be
+ * read into a byte[] first. Relies on the buffer's file layout: each file is named with the hex id of its first
+ * message and a message with id n is at position n - firstId after the file header. This matches the layout
+ * of qdb-buffer 0.4.1. The first time a file is used the message header at the computed position is checked
+ * against the routing key and payload size read by the cursor and if they don't match (e.g. the buffer layout
+ * has changed) direct transfer is switched off and callers fall back to the cursor. Read only channels are
+ * kept open for recently used files. This class is thread safe.
+ */
+public class PayloadTransfer implements Closeable {
+
+    private static final Logger log = LoggerFactory.getLogger(PayloadTransfer.class);
+
+    /** Size of the header at the start of each file. */
+    static final int FILE_HEADER_SIZE = 4096;
+    /** Type byte, timestamp, routing key size and payload size that precede the routing key for each message. */
+    static final int MESSAGE_HEADER_SIZE = 1 + 8 + 2 + 4;
+    /** Offset of the routing key size in the message header. */
+    private static final int ROUTING_KEY_SIZE_OFFSET = 1 + 8;
+
+    private final File dir;
+    private final int maxOpenFiles;
+    private final TreeMap<Long, Entry> files = new TreeMap<Long, Entry>();
+    private int openFiles;
+    private long useCounter;
+    private boolean closed;
+    private boolean layoutMismatch;
+
+    private static class Entry {
+        final long firstId;
+        final File file;
+        FileChannel channel;
+        boolean checked;
+        int refs;
+        long lastUsed;
+        boolean removed;
+
+        Entry(long firstId, File file) {
+            this.firstId = firstId;
+            this.file = file;
+        }
+    }
+
+    public PayloadTransfer(File dir, int maxOpenFiles) {
+        this.dir = dir;
+        this.maxOpenFiles = maxOpenFiles;
+    }
+
+    /**
+     * Transfer the payload of the message with id, routingKey and payloadSize (as read from a cursor) to out.
+     * Returns false if the file containing the message could not be found in which case nothing has been written
+     * and the caller should fall back to reading the payload from the cursor.
+     */
+    public boolean transfer(long id, String routingKey, int payloadSize, WritableByteChannel out) throws IOException {
+        int routingKeySize = utf8Length(routingKey);
+        Entry e = acquire(id, routingKey, routingKeySize, payloadSize);
+        if (e == null) return false;
+        try {
+            long pos = id - e.firstId + FILE_HEADER_SIZE + MESSAGE_HEADER_SIZE + routingKeySize;
+            for (long todo = payloadSize; todo > 0; ) {
+                long n = e.channel.transferTo(pos, todo, out);
+                if (n <= 0) throw new IOException("Unable to transfer payload of message " + id + " from " + e.file);
+                pos += n;
+                todo -= n;
+            }
+            return true;
+        } finally {
+            release(e);
+        }
+    }
+
+    /**
+     * Find the file containing message id that is big enough to hold its payload and open it if needed.
+     * Returns null if there is no such file.
+     */
+    private synchronized Entry acquire(long id, String routingKey, int routingKeySize, int payloadSize)
+            throws IOException {
+        if (closed || layoutMismatch) return null;
+        for (int attempt = 0; attempt < 2; attempt++) {
+            if (attempt > 0) refresh();
+            Map.Entry<Long, Entry> me = files.floorEntry(id);
+            if (me == null) continue;
+            Entry e = me.getValue();
+            if (e.channel == null) {
+                try {
+                    e.channel = new FileInputStream(e.file).getChannel();
+                } catch (IOException x) {
+                    // file might have been renamed or deleted by the buffer since we last looked
+                    if (log.isDebugEnabled()) log.debug("Unable to open " + e.file + ": " + x);
+                    continue;
+                }
+                ++openFiles;
+            }
+            long end = id - e.firstId + FILE_HEADER_SIZE + MESSAGE_HEADER_SIZE + routingKeySize + payloadSize;
+            if (e.channel.size() < end) continue;
+            if (!e.checked) {
+                if (!isLayoutOk(e, id, routingKey, payloadSize)) {
+                    log.warn(this + ": Message " + id + " in " + e.file + " does not match the expected file " +
+                            "layout, payloads will be read from the buffer instead");
+                    layoutMismatch = true;
+                    return null;
+                }
+                e.checked = true;
+            }
+            ++e.refs;
+            e.lastUsed = ++useCounter;
+            if (openFiles > maxOpenFiles) closeLeastRecentlyUsed();
+            return e;
+        }
+        return null;
+    }
+
+    /**
+     * Does the message header for id in e have the routing key and payload size read by the cursor?
+     */
+    private boolean isLayoutOk(Entry e, long id, String routingKey, int payloadSize) throws IOException {
+        byte[] key = routingKey == null ? new byte[0] : routingKey.getBytes("UTF8");
+        ByteBuffer bb = ByteBuffer.allocate(MESSAGE_HEADER_SIZE + key.length);
+        long pos = id - e.firstId + FILE_HEADER_SIZE;
+        while (bb.hasRemaining()) {
+            if (e.channel.read(bb, pos + bb.position()) < 0) return false;
+        }
+        bb.position(ROUTING_KEY_SIZE_OFFSET);
+        if ((bb.getShort() & 0xffff) != key.length || bb.getInt() != payloadSize) return false;
+        for (byte b : key) if (bb.get() != b) return false;
+        return true;
+    }
+
+    private synchronized void release(Entry e) {
+        if (--e.refs == 0 && e.removed) closeChannel(e);
+    }
+
+    /**
+     * Re-read the list of files from our directory. Files that are gone are closed once no longer in use.
+     */
+    private void refresh() {
+        String[] names = dir.list();
+        if (names == null) return;
+        Set<Long> seen = new HashSet<Long>();
+        for (String name : names) {
+            long firstId = parseFirstId(name);
+            if (firstId < 0) continue;
+            seen.add(firstId);
+            Entry e = files.get(firstId);
+            if (e == null) {
+                files.put(firstId, new Entry(firstId, new File(dir, name)));
+            } else if (!e.file.getName().equals(name) && e.channel == null) {
+                // file was renamed when it filled up and we have not opened it yet
+                files.put(firstId, new Entry(firstId, new File(dir, name)));
+            }
+        }
+        for (Iterator<Map.Entry<Long, Entry>> i = files.entrySet().iterator(); i.hasNext(); ) {
+            Map.Entry<Long, Entry> me = i.next();
+            if (seen.contains(me.getKey())) continue;
+            Entry e = me.getValue();
+            i.remove();
+            e.removed = true;
+            if (e.refs == 0) closeChannel(e);
+        }
+    }
+
+    private void closeLeastRecentlyUsed() {
+        Entry lru = null;
+        for (Entry e : files.values()) {
+            if (e.channel != null && e.refs == 0 && (lru == null || e.lastUsed < lru.lastUsed)) lru = e;
+        }
+        if (lru != null) closeChannel(lru);
+    }
+
+    private void closeChannel(Entry e) {
+        if (e.channel == null) return;
+        try {
+            e.channel.close();
+        } catch (IOException x) {
+            log.warn("Error closing " + e.file + ": " + x);
+        }
+        e.channel = null;
+        --openFiles;
+    }
+
+    /**
+     * Extract the id of the first message from a buffer file name (e.g. 0000000000000001-000000000000007b-0.qdb)
+     * or return -1 if it is not a buffer file.
+     */
+    static long parseFirstId(String name) {
+        if (!name.endsWith(".qdb") || name.length() < 17 || name.charAt(16) != '-') return -1;
+        try {
+            return Long.parseLong(name.substring(0, 16), 16);
+        } catch (NumberFormatException e) {
+            return -1;
+        }
+    }
+
+    /**
+     * How many bytes does s take up when encoded as UTF8?
+     */
+    static int utf8Length(String s) {
+        if (s == null) return 0;
+        int n = 0;
+        for (int i = 0, len = s.length(); i < len; i++) {
+            char c = s.charAt(i);
+            if (c < 0x80) {
+                ++n;
+            } else if (c < 0x800) {
+                n += 2;
+            } else if (Character.isHighSurrogate(c) && i + 1 < len && Character.isLowSurrogate(s.charAt(i + 1))) {
+                n += 4;
+                ++i;
+            } else if (Character.isSurrogate(c)) {
+                ++n; // unpaired surrogates are encoded as '?'
+            } else {
+                n += 3;
+            }
+        }
+        return n;
+    }
+
+    @Override
+    public synchronized void close() throws IOException {
+        closed = true;
+        for (Entry e : files.values()) {
+            e.removed = true;
+            if (e.refs == 0) closeChannel(e);
+        }
+        files.clear();
+    }
+
+    @Override
+    public String toString() {
+        return "PayloadTransfer[" + dir + "]";
+    }
+}
@@ -0,0 +1,235 @@
+/*
+ * Copyright 2013 David Tinker
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package io.qdb.server.queue;
+
+import io.qdb.buffer.MessageBuffer;
+import io.qdb.buffer.MessageCursor;
+import io.qdb.server.filter.MessageFilter;
+import io.qdb.server.filter.MessageFilterFactory;
+import io.qdb.server.model.Queue;
+import javax.inject.Inject;
+import javax.inject.Singleton;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+
+/**
+ * Counts the messages in a range of a queue, optionally grouped by routing key or time interval, without sending
+ * them anywhere. Only message headers are read unless the filter needs payloads. Large ranges can be split at
+ * the buffer's file boundaries and the pieces scanned in parallel by the {@link QueueScanner}.
+ */
+@Singleton
+public class QueueAggregator {
+
+    private static final int MAX_GROUPS = 100000;
+
+    private final MessageFilterFactory messageFilterFactory;
+    private final QueueScanner scanner;
+
+    /**
+     * What to aggregate.
+     */
+    public static class Query {
+        public long fromId = -1;    // start at this message id
+        public long from = -1;      // or at the first message with timestamp at or after this
+        public long toId = -1;      // stop at this message id (exclusive)
+        public long to = -1;        // and/or at the first message with timestamp at or after this
+        public String groupBy;      // null, "routingKey" or "time"
+        public int words;           // group on the first this many words of routing keys (0 for all)
+        public long intervalMs;     // time bucket size for "time" grouping
+        public Map filterParams;    // for MessageFilterFactory or null for all messages
+        public boolean parallel;
+    }
+
+    /**
+     * Totals for one group.
+     */
+    public static class Group {
+        public Object key;
+        public long count;
+        public long bytes;
+        public long minTimestamp = Long.MAX_VALUE;
+        public long maxTimestamp = Long.MIN_VALUE;
+        public long firstId = -1;
+        public long lastId = -1;
+
+        Group(Object key) {
+            this.key = key;
+        }
+
+        void add(long id, long timestamp, int size) {
+            ++count;
+            bytes += size;
+            if (timestamp < minTimestamp) minTimestamp = timestamp;
+            if (timestamp > maxTimestamp) maxTimestamp = timestamp;
+            if (firstId < 0) firstId = id;
+            lastId = id;
+        }
+
+        void add(Group g) {
+            count += g.count;
+            bytes += g.bytes;
+            if (g.minTimestamp < minTimestamp) minTimestamp = g.minTimestamp;
+            if (g.maxTimestamp > maxTimestamp) maxTimestamp = g.maxTimestamp;
+            if (firstId < 0 || g.firstId >= 0 && g.firstId < firstId) firstId = g.firstId;
+            if (g.lastId > lastId) lastId = g.lastId;
+        }
+    }
+
+    /**
+     * The groups found (sorted by key) and the range of ids scanned.
+     */
+    public static class Result {
+        public List<Group> groups;
+        public long fromId;
+        public long toId;
+        public int pieces;
+    }
+
+    @Inject
+    public QueueAggregator(MessageFilterFactory messageFilterFactory, QueueScanner scanner) {
+        this.messageFilterFactory = messageFilterFactory;
+        this.scanner = scanner;
+    }
+
+    /**
+     * Scan the messages in mb selected by query.
+     * @throws IllegalArgumentException if the filter parameters are invalid or there are too many groups
+     */
+    public Result aggregate(final Queue q, final MessageBuffer mb, final Query query)
+            throws IOException, IllegalArgumentException {
+        if (query.filterParams != null) messageFilterFactory.createFilter(query.filterParams, q); // validate
+
+        Result ans = new Result();
+        ans.fromId = query.fromId >= 0 ? query.fromId : QueueScanner.findFirstId(mb, query.from);
+        long endId = mb.getNextId();
+        ans.toId = query.toId >= 0 && query.toId < endId ? query.toId : endId;
+        if (ans.fromId < 0 || ans.fromId >= ans.toId) {
+            ans.groups = new ArrayList<Group>();
+            return ans;
+        }
+
+        // split the range at the start of each buffer file if we are going parallel
+        List<Long> starts;
+        if (query.parallel) {
+            starts = QueueScanner.split(mb, ans.fromId, ans.toId, query.to);
+        } else {
+            starts = new ArrayList<Long>();
+            starts.add(ans.fromId);
+        }
+        ans.pieces = starts.size();
+
+        Map<Object, Group> groups;
+        if (starts.size() == 1) {
+            groups = scan(q, mb, query, ans.fromId, ans.toId);
+        } else {
+            List<Future<Map<Object, Group>>> futures = new ArrayList<Future<Map<Object, Group>>>();
+            for (int i = 0; i < starts.size(); i++) {
+                final long fromId = starts.get(i);
+                final long toId = i + 1 < starts.size() ? starts.get(i + 1) : ans.toId;
+                futures.add(scanner.submit(new Callable<Map<Object, Group>>() {
+                    @Override
+                    public Map<Object, Group> call() throws Exception {
+                        return scan(q, mb, query, fromId, toId);
+                    }
+                }));
+            }
+            groups = new HashMap<Object, Group>();
+            try {
+                for (Future<Map<Object, Group>> f : futures) {
+                    for (Group g : f.get().values()) {
+                        Group t = groups.get(g.key);
+                        if (t == null) groups.put(g.key, g);
+                        else t.add(g);
+                    }
+                    if (groups.size() > MAX_GROUPS) throw tooManyGroups();
+                }
+            } catch (InterruptedException e) {
+                throw new IOException("Interrupted");
+            } catch (ExecutionException e) {
+                Throwable c = e.getCause();
+                if (c instanceof IOException) throw (IOException)c;
+                if (c instanceof RuntimeException) throw (RuntimeException)c;
+                throw new IOException(c.toString(), c);
+            } finally {
+                for (Future<Map<Object, Group>> f : futures) f.cancel(true);
+            }
+        }
+        ans.groups = new ArrayList<Group>(new TreeMap<Object, Group>(groups).values());
+        return ans;
+    }
+
+    /**
+     * Scan the messages from fromId up to toId (exclusive) on the calling thread. Each scan gets its own filter
+     * as filters are not necessarily thread safe.
+     */
+    private Map<Object, Group> scan(Queue q, MessageBuffer mb, Query query, long fromId, long toId)
+            throws IOException {
+        MessageFilter mf = query.filterParams == null ? MessageFilter.NULL
+                : messageFilterFactory.createFilter(query.filterParams, q);
+        boolean byRoutingKey = "routingKey".equals(query.groupBy);
+        boolean byTime = "time".equals(query.groupBy);
+        Map<Object, Group> groups = new HashMap<Object, Group>();
+        MessageCursor c = mb.cursor(fromId);
+        try {
+            while (c.next()) {
+                long id = c.getId();
+                long timestamp = c.getTimestamp();
+                if (id >= toId || query.to > 0 && timestamp >= query.to) break;
+                String routingKey = c.getRoutingKey();
+                MessageFilter.Result r = mf.accept(id, timestamp, routingKey, null);
+                if (r == MessageFilter.Result.CHECK_PAYLOAD) r = mf.accept(id, timestamp, routingKey, c.getPayload());
+                if (r != MessageFilter.Result.ACCEPT) continue;
+                Object key;
+                if (byRoutingKey) key = toKey(routingKey, query.words);
+                else if (byTime) key = timestamp - timestamp % query.intervalMs;
+                else key = "";
+                Group g = groups.get(key);
+                if (g == null) {
+                    if (groups.size() == MAX_GROUPS) throw tooManyGroups();
+                    groups.put(key, g = new Group(key));
+                }
+                g.add(id, timestamp, c.getPayloadSize());
+                if (Thread.interrupted()) throw new IOException("Interrupted");
+            }
+        } finally {
+            c.close();
+        }
+        return groups;
+    }
+
+    private static String toKey(String routingKey, int words) {
+        if (routingKey == null) return "";
+        if (words <= 0) return routingKey;
+        int i = -1;
+        for (int n = words; n > 0; --n) {
+            i = routingKey.indexOf('.', i + 1);
+            if (i < 0) return routingKey;
+        }
+        return routingKey.substring(0, i);
+    }
+
+    private static IllegalArgumentException tooManyGroups() {
+        return new IllegalArgumentException("More than " + MAX_GROUPS + " groups, try a narrower range or grouping");
+    }
+}
@@ -16,22 +16,27 @@
 
 package io.qdb.server.queue;
 
-import com.google.common.eventbus.EventBus;
 import com.google.common.eventbus.Subscribe;
 import com.google.common.util.concurrent.ThreadFactoryBuilder;
 import io.qdb.buffer.MessageBuffer;
 import io.qdb.buffer.PersistentMessageBuffer;
 import io.qdb.server.model.Queue;
+import io.qdb.server.repo.ObjectEventDispatcher;
 import io.qdb.server.repo.Repository;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import javax.inject.Inject;
+import javax.inject.Named;
 import javax.inject.Singleton;
 import java.io.Closeable;
 import java.io.File;
 import java.io.IOException;
+import java.nio.channels.ReadableByteChannel;
+import java.util.HashMap;
+import java.util.HashSet;
 import java.util.Map;
+import java.util.Set;
 import java.util.concurrent.*;
 
 /**
@@ -42,24 +47,84 @@ public class QueueManager implements Closeable, Thread.UncaughtExceptionHandler
 
     private static final Logger log = LoggerFactory.getLogger(QueueManager.class);
 
+    private static final int MAX_OPEN_FILES_PER_QUEUE = 32;
+    private static final int WRITE_RATE_SAMPLE_SECS = 10;
+    private static final int HISTOGRAM_SAVE_SECS = 60;
+    private static final String HISTOGRAM_FILE = "append-histogram.dat";
+
+    private final Repository repo;
     private final QueueStorageManager queueStorageManager;
     private final Map<String, MessageBuffer> buffers = new ConcurrentHashMap<String, MessageBuffer>();
+    private final Map<String, PayloadTransfer> payloadTransfers = new ConcurrentHashMap<String, PayloadTransfer>();
+    private final Map<String, WriteRate> writeRates = new ConcurrentHashMap<String, WriteRate>();
+    private final Map<String, RoutingKeyIndex> indexes = new ConcurrentHashMap<String, RoutingKeyIndex>();
+    private final Map<String, AppendHistogram> histograms = new ConcurrentHashMap<String, AppendHistogram>();
+    private final Map<String, Queue> synced = new ConcurrentHashMap<String, Queue>(); // queue id -> last synced
+    private final Set<String> moving = new HashSet<String>();
     private final ExecutorService threadPool;
+    private final ScheduledExecutorService timer;
+    private final String appendHistograms;
+
+    /**
+     * Tracks the bytes/sec being appended to a queue by sampling its next message id (ids are byte positions).
+     */
+    private static class WriteRate {
+        final File dir;
+        long lastNextId = -1;
+        long lastSampleTime;
+        volatile long bytesPerSec;
+
+        WriteRate(File dir) {
+            this.dir = dir;
+        }
+
+        void sample(MessageBuffer mb, long now) throws IOException {
+            long nextId = mb.getNextId();
+            if (lastNextId >= 0 && now > lastSampleTime) {
+                long rate = (nextId - lastNextId) * 1000 / (now - lastSampleTime);
+                bytesPerSec = (bytesPerSec * 2 + rate) / 3;   // smooth it out a bit
+            }
+            lastNextId = nextId;
+            lastSampleTime = now;
+        }
+    }
 
     @Inject
-    public QueueManager(EventBus eventBus, Repository repo, QueueStorageManager queueStorageManager) throws IOException {
+    public QueueManager(ObjectEventDispatcher eventDispatcher, Repository repo, QueueStorageManager queueStorageManager,
+                        @Named("appendHistograms") String appendHistograms) throws IOException {
+        this.repo = repo;
         this.queueStorageManager = queueStorageManager;
+        new AppendHistogram(appendHistograms);  // fail fast if the spec is invalid
+        this.appendHistograms = appendHistograms;
         this.threadPool = new ThreadPoolExecutor(2, Integer.MAX_VALUE,
                 60L, TimeUnit.SECONDS,
                 new SynchronousQueue<Runnable>(),
                 new ThreadFactoryBuilder().setNameFormat("queue-manager-%d").setUncaughtExceptionHandler(this).build());
-        eventBus.register(this);
+        this.timer = Executors.newSingleThreadScheduledExecutor(
+                new ThreadFactoryBuilder().setNameFormat("queue-manager-timer").setUncaughtExceptionHandler(this).build());
+        timer.scheduleWithFixedDelay(new Runnable() {
+            @Override
+            public void run() {
+                sampleWriteRates();
+                trimIndexes();
+            }
+        }, WRITE_RATE_SAMPLE_SECS, WRITE_RATE_SAMPLE_SECS, TimeUnit.SECONDS);
+        timer.scheduleWithFixedDelay(new Runnable() {
+            @Override
+            public void run() {
+                saveHistograms();
+            }
+        }, HISTOGRAM_SAVE_SECS, HISTOGRAM_SAVE_SECS, TimeUnit.SECONDS);
+        eventDispatcher.register(this);
         for (Queue queue : repo.findQueues(0, -1)) syncQueue(queue);
     }
 
     @Override
     public void close() throws IOException {
+        timer.shutdownNow();
         threadPool.shutdown();
+        for (RoutingKeyIndex idx : indexes.values()) idx.close();
+        saveHistograms();
         for (Map.Entry<String, MessageBuffer> e : buffers.entrySet()) {
             MessageBuffer mb = e.getValue();
             try {
@@ -68,6 +133,13 @@ public class QueueManager implements Closeable, Thread.UncaughtExceptionHandler
                 log.error("Error closing " + mb);
             }
         }
+        for (PayloadTransfer pt : payloadTransfers.values()) {
+            try {
+                pt.close();
+            } catch (IOException x) {
+                log.error("Error closing " + pt);
+            }
+        }
     }
 
     @Subscribe
@@ -77,15 +149,22 @@ public class QueueManager implements Closeable, Thread.UncaughtExceptionHandler
     }
 
     private synchronized void syncQueue(Queue q) {
+        if (moving.contains(q.getId())) return; // the buffer is re-opened when the move is done
+        Queue last = synced.get(q.getId());
+        if (last != null && last.getVersion() > q.getVersion()) return; // event for an older version arrived late
         MessageBuffer mb = buffers.get(q.getId());
         boolean newBuffer = mb == null;
+        PayloadTransfer pt = null;
+        File dir = null;
         if (newBuffer) {
             try {
-                File dir = queueStorageManager.findDir(q);
+                dir = queueStorageManager.findDir(q, getWriteLoad());
                 mb = new PersistentMessageBuffer(dir);
                 if (mb.isEmpty()) mb.setFirstId(1);
+                pt = new PayloadTransfer(dir, MAX_OPEN_FILES_PER_QUEUE);
             } catch (IOException e) {
                 log.error("Error creating buffer for queue " + q + ": " + e, e);
+                synced.put(q.getId(), q);   // don't try again until q changes
                 return;
             }
             if (log.isDebugEnabled()) log.debug("Opened " + mb);
@@ -94,7 +173,185 @@ public class QueueManager implements Closeable, Thread.UncaughtExceptionHandler
         }
         mb.setExecutor(threadPool);
         updateBufferProperties(mb, q);
-        if (newBuffer) buffers.put(q.getId(), mb);
+        if (newBuffer) {
+            histograms.put(q.getId(), loadHistogram(dir));
+            writeRates.put(q.getId(), new WriteRate(dir));
+            payloadTransfers.put(q.getId(), pt);
+            buffers.put(q.getId(), mb);
+        }
+        syncIndex(q, mb);
+        synced.put(q.getId(), q);
+    }
+
+    /**
+     * Create, re-create or discard the routing key index for q as needed and start building it if it isn't ready.
+     */
+    private void syncIndex(Queue q, final MessageBuffer mb) {
+        int words = q.getIndexRoutingKeys();
+        RoutingKeyIndex idx = indexes.get(q.getId());
+        if (idx != null && idx.getWords() != words) {
+            indexes.remove(q.getId());
+            idx.close();
+            idx = null;
+        }
+        if (words <= 0) return;
+        if (idx == null) indexes.put(q.getId(), idx = new RoutingKeyIndex(words));
+        if (!idx.isReady()) {
+            final RoutingKeyIndex index = idx;
+            threadPool.execute(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        index.build(mb);
+                    } catch (IOException e) {
+                        log.error("Error building routing key index for " + mb + ": " + e, e);
+                    }
+                }
+            });
+        }
+    }
+
+    private AppendHistogram loadHistogram(File dir) {
+        AppendHistogram h = new AppendHistogram(appendHistograms);
+        File f = new File(dir, HISTOGRAM_FILE);
+        if (f.exists()) {
+            try {
+                h.load(f);
+            } catch (IOException e) {
+                log.error("Error loading [" + f + "], starting new histogram: " + e);
+            }
+        }
+        return h;
+    }
+
+    private void saveHistograms() {
+        for (Map.Entry<String, AppendHistogram> e : histograms.entrySet()) {
+            WriteRate r = writeRates.get(e.getKey());
+            if (r != null) saveHistogram(e.getValue(), r.dir);
+        }
+    }
+
+    private void saveHistogram(AppendHistogram h, File dir) {
+        File f = new File(dir, HISTOGRAM_FILE);
+        try {
+            h.save(f);
+        } catch (IOException e) {
+            log.error("Error saving [" + f + "]: " + e);
+        }
+    }
+
+    private void trimIndexes() {
+        for (Map.Entry<String, RoutingKeyIndex> e : indexes.entrySet()) {
+            MessageBuffer mb = buffers.get(e.getKey());
+            if (mb == null || !mb.isOpen()) continue;
+            try {
+                if (!mb.isEmpty()) e.getValue().trim(mb.getOldestId());
+            } catch (IOException x) {
+                if (log.isDebugEnabled()) log.debug("Error trimming routing key index for " + mb + ": " + x);
+            }
+        }
+    }
+
+    private void sampleWriteRates() {
+        long now = System.currentTimeMillis();
+        for (Map.Entry<String, WriteRate> e : writeRates.entrySet()) {
+            MessageBuffer mb = buffers.get(e.getKey());
+            if (mb == null || !mb.isOpen()) continue;
+            try {
+                e.getValue().sample(mb, now);
+            } catch (IOException x) {
+                if (log.isDebugEnabled()) log.debug("Error sampling write rate for " + mb + ": " + x);
+            }
+        }
+    }
+
+    /**
+     * Get the bytes/sec currently being appended to each queue keyed by queue directory.
+     */
+    public Map<File, Long> getWriteLoad() {
+        Map<File, Long> ans = new HashMap<File, Long>();
+        for (WriteRate r : writeRates.values()) ans.put(r.dir, r.bytesPerSec);
+        return ans;
+    }
+
+    /**
+     * Get the directory holding the buffer for q or null if it does not have a buffer.
+     */
+    public File getDir(Queue q) {
+        WriteRate r = writeRates.get(q.getId());
+        return r == null ? null : r.dir;
+    }
+
+    /**
+     * Get the bytes/sec currently being appended to q.
+     */
+    public long getWriteRate(Queue q) {
+        WriteRate r = writeRates.get(q.getId());
+        return r == null ? 0 : r.bytesPerSec;
+    }
+
+    /**
+     * Move the buffer for q to dataDir. Most of the data is copied with the buffer open. Then the buffer is closed
+     * while the rest is copied and re-opened in its new location so the queue is only unavailable briefly.
+     * Returns the new directory for the queue.
+     */
+    public File moveQueue(Queue q, File dataDir) throws IOException {
+        if (!queueStorageManager.isDataDir(dataDir)) {
+            throw new IllegalArgumentException("[" + dataDir + "] is not a queue data directory");
+        }
+        File src;
+        synchronized (this) {
+            src = getDir(q);
+            if (src == null) throw new IllegalStateException("Queue " + q + " does not have a buffer");
+            if (queueStorageManager.getDataDir(src).equals(dataDir.getAbsoluteFile())) return src;
+            if (!moving.add(q.getId())) throw new IllegalStateException("Queue " + q + " is already being moved");
+        }
+        File dst = queueStorageManager.getDir(q, dataDir);
+        File tmp = queueStorageManager.getMoveDir(q, dataDir);
+        boolean moved = false;
+        try {
+            if (dst.exists()) throw new IllegalStateException("[" + dst + "] already exists");
+            log.info("Moving " + q + " from [" + src + "] to [" + dst + "]");
+            queueStorageManager.syncFiles(src, tmp, false);
+            synchronized (this) {
+                closeBuffer(q);
+            }
+            // the queue is unavailable until the buffer is re-opened but other queues must not wait for the copy
+            queueStorageManager.syncFiles(src, tmp, true);
+            if (!tmp.renameTo(dst)) throw new IOException("Unable to rename [" + tmp + "] to [" + dst + "]");
+            moved = true;
+            try {
+                queueStorageManager.deleteDir(src);
+            } catch (IOException e) {
+                log.error("Moved " + q + " to [" + dst + "] but unable to delete [" + src + "]: " + e);
+            }
+            return dst;
+        } finally {
+            synchronized (this) {
+                moving.remove(q.getId());
+                if (!moved) {
+                    try {
+                        queueStorageManager.deleteDir(tmp);
+                    } catch (IOException e) {
+                        log.error("Error deleting [" + tmp + "]: " + e);
+                    }
+                }
+                if (buffers.get(q.getId()) == null) {
+                    Queue latest = repo.findQueue(q.getId());   // q might have been changed during the move
+                    if (latest != null) syncQueue(latest);
+                }
+            }
+        }
+    }
+
+    private void closeBuffer(Queue q) throws IOException {
+        MessageBuffer mb = buffers.remove(q.getId());
+        WriteRate r = writeRates.remove(q.getId());
+        AppendHistogram h = histograms.remove(q.getId());
+        if (h != null && r != null) saveHistogram(h, r.dir);
+        PayloadTransfer pt = payloadTransfers.remove(q.getId());
+        if (pt != null) pt.close();
+        if (mb != null) mb.close();
     }
 
     private void updateBufferProperties(MessageBuffer mb, Queue q) {
@@ -116,9 +373,88 @@ public class QueueManager implements Closeable, Thread.UncaughtExceptionHandler
     }
 
     /**
-     * Get the buffer for q or null if it does not exist.
+     * Get the buffer for q or null if it does not exist. Repository events are delivered asynchronously so if q
+     * is newer than the queue our buffer was last synced with (e.g. it has just been created or changed) the
+     * buffer is synced first. This means callers always see their own changes.
      */
     public MessageBuffer getBuffer(Queue q) {
+        Queue last = synced.get(q.getId());
+        if (last == null || last.getVersion() < q.getVersion()) syncQueue(q);
         return buffers.get(q.getId());
     }
+
+    /**
+     * Get the routing key index for q or null if it does not have one.
+     */
+    public RoutingKeyIndex getRoutingKeyIndex(Queue q) {
+        return indexes.get(q.getId());
+    }
+
+    /**
+     * Get the append histogram for q or null if it does not have a buffer.
+     */
+    public AppendHistogram getAppendHistogram(Queue q) {
+        return histograms.get(q.getId());
+    }
+
+    /**
+     * Append a message to mb, the buffer for q, add it to the routing key index for q (if any) and record it in
+     * the append histogram for q.
+     */
+    public long append(Queue q, MessageBuffer mb, long timestamp, String routingKey, byte[] payload)
+            throws IOException {
+        RoutingKeyIndex idx = indexes.get(q.getId());
+        long id;
+        if (idx == null) {
+            id = mb.append(timestamp, routingKey, payload);
+        } else {
+            synchronized (mb) {
+                id = mb.append(timestamp, routingKey, payload);
+                idx.add(id, routingKey);
+            }
+        }
+        appended(q, timestamp, payload.length);
+        return id;
+    }
+
+    /**
+     * Append a message to mb, the buffer for q, add it to the routing key index for q (if any) and record it in
+     * the append histogram for q.
+     */
+    public long append(Queue q, MessageBuffer mb, long timestamp, String routingKey, ReadableByteChannel payload,
+                       int payloadSize) throws IOException {
+        RoutingKeyIndex idx = indexes.get(q.getId());
+        long id;
+        if (idx == null) {
+            id = mb.append(timestamp, routingKey, payload, payloadSize);
+        } else {
+            synchronized (mb) {
+                id = mb.append(timestamp, routingKey, payload, payloadSize);
+                idx.add(id, routingKey);
+            }
+        }
+        appended(q, timestamp, payloadSize);
+        return id;
+    }
+
+    /**
+     * Append all the messages in batch to mb, the buffer for q, in one group commit. Messages without a
+     * timestamp get timestamp.
+     */
+    public void append(Queue q, MessageBuffer mb, MessageBatch batch, long timestamp) throws IOException {
+        batch.appendTo(mb, indexes.get(q.getId()), histograms.get(q.getId()), timestamp);
+    }
+
+    private void appended(Queue q, long timestamp, int payloadSize) {
+        AppendHistogram h = histograms.get(q.getId());
+        if (h != null) h.add(timestamp, payloadSize);
+    }
+
+    /**
+     * Get the object used to stream payloads directly from the files of the buffer for q or null if it does
+     * not exist.
+     */
+    public PayloadTransfer getPayloadTransfer(Queue q) {
+        return payloadTransfers.get(q.getId());
+    }
 }
@@ -0,0 +1,117 @@
+/*
+ * Copyright 2013 David Tinker
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package io.qdb.server.queue;
+
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+import io.qdb.buffer.MessageBuffer;
+import io.qdb.buffer.MessageCursor;
+import io.qdb.buffer.Timeline;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import javax.inject.Inject;
+import javax.inject.Named;
+import javax.inject.Singleton;
+import java.io.Closeable;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+/**
+ * Threads for reading large ranges of queues in parallel (aggregation and bulk export). Ranges are split at the
+ * buffer's file boundaries so each piece is read sequentially from its own file(s) by its own cursor.
+ */
+@Singleton
+public class QueueScanner implements Closeable, Thread.UncaughtExceptionHandler {
+
+    private static final Logger log = LoggerFactory.getLogger(QueueScanner.class);
+
+    private final ExecutorService pool;
+    private final int threads;
+    private final int exportStallTimeoutMs;
+
+    @Inject
+    public QueueScanner(@Named("scanThreads") int threads, @Named("exportStallTimeout") int exportStallTimeout) {
+        this.threads = threads;
+        this.exportStallTimeoutMs = exportStallTimeout * 1000;
+        pool = Executors.newFixedThreadPool(threads,
+                new ThreadFactoryBuilder().setNameFormat("scanner-%d").setUncaughtExceptionHandler(this).build());
+    }
+
+    @Override
+    public void close() throws IOException {
+        pool.shutdownNow();
+    }
+
+    @Override
+    public void uncaughtException(Thread t, Throwable e) {
+        log.error(t.getName() + ": " + e, e);
+    }
+
+    public int getThreads() {
+        return threads;
+    }
+
+    /**
+     * How long can a bulk export wait for its client to read something before it is aborted?
+     */
+    public int getExportStallTimeoutMs() {
+        return exportStallTimeoutMs;
+    }
+
+    public <T> Future<T> submit(Callable<T> task) {
+        return pool.submit(task);
+    }
+
+    /**
+     * Get the id of the first message in mb with timestamp at or after from or the oldest message if from is
+     * negative. Returns -1 if there are no messages at or after from.
+     */
+    public static long findFirstId(MessageBuffer mb, long from) throws IOException {
+        if (from < 0) return mb.isEmpty() ? mb.getNextId() : mb.getOldestId();
+        MessageCursor c = mb.cursorByTimestamp(from);
+        try {
+            return c.next() ? c.getId() : -1;
+        } finally {
+            c.close();
+        }
+    }
+
+    /**
+     * Split the range of messages from fromId up to toId (exclusive) at the start of each buffer file. If to is
+     * more than 0 then files starting at or after that timestamp are left out. Returns the start id of each piece
+     * in order, the first is always fromId and each piece ends at the start of the next one (or toId).
+     */
+    public static List<Long> split(MessageBuffer mb, long fromId, long toId, long to) throws IOException {
+        List<Long> starts = new ArrayList<Long>();
+        starts.add(fromId);
+        Timeline timeline = mb.getTimeline();
+        if (timeline != null) {
+            for (int i = 0, n = timeline.size(); i < n; i++) {
+                long id = timeline.getMessageId(i);
+                if (id <= fromId) continue;
+                if (id >= toId || to > 0 && timeline.getTimestamp(i) >= to) break;
+                starts.add(id);
+            }
+        }
+        return starts;
+    }
+}
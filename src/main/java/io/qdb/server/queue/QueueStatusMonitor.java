@@ -18,7 +18,6 @@ package io.qdb.server.queue;
 
 import io.qdb.buffer.MessageBuffer;
 import io.qdb.server.databind.DurationParser;
-import io.qdb.server.model.Database;
 import io.qdb.server.model.Queue;
 import io.qdb.server.monitor.Status;
 import io.qdb.server.monitor.StatusMonitor;
@@ -83,11 +82,8 @@ public class QueueStatusMonitor extends StatusMonitor<Queue> {
 
     protected String toPath(Queue q) {
         try {
-            StringBuilder b = new StringBuilder();
-            Database db = repo.findDatabase(q.getDatabase());
-            if (!"default".equals(db.getId())) b.append("/db/").append(db);
-            b.append("/q/").append(db.getQueueForQid(q.getId()));
-            return b.toString();
+            String path = repo.findPath(q);
+            return path == null ? "queue id " + q.getId() : path;
         } catch (IOException e) {
             log.error(e.toString(), e);
             return "queue id " + q.getId();
@@ -20,12 +20,24 @@ import io.qdb.server.Util;
 import io.qdb.server.model.Database;
 import io.qdb.server.model.Queue;
 import io.qdb.server.repo.Repository;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
 
 import javax.inject.Inject;
 import javax.inject.Named;
 import javax.inject.Singleton;
 import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
 import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
 
 /**
  * Keeps track of where we can store queue data (one or more paths on the file system) and allocates storage
@@ -34,21 +46,54 @@ import java.io.IOException;
 @Singleton
 public class QueueStorageManager {
 
+    private static final Logger log = LoggerFactory.getLogger(QueueStorageManager.class);
+
+    private static final int COMPARE_BUFFER_SIZE = 64 * 1024;
+
     private final File[] queueDataDirs;
+    private final File defaultDataDir;
     private final Repository repository;
 
     @Inject
-    public QueueStorageManager(@Named("dataDir") String dataDir, Repository repository) throws IOException {
+    public QueueStorageManager(@Named("dataDir") String dataDir, @Named("queueDataDirs") String queueDataDirs,
+                Repository repository) throws IOException {
         this.repository = repository;
-        queueDataDirs = new File[]{new File(dataDir, "queues")};
-        for (File dir : queueDataDirs) Util.ensureDirectory(dir);
+        defaultDataDir = new File(dataDir, "queues").getAbsoluteFile();
+        List<File> dirs = new ArrayList<File>();
+        for (String s : queueDataDirs.split(",")) {
+            s = s.trim();
+            if (s.length() > 0) dirs.add(Util.ensureDirectory(new File(s)));
+        }
+        if (dirs.isEmpty()) dirs.add(defaultDataDir);
+        this.queueDataDirs = dirs.toArray(new File[dirs.size()]);
+        for (File dir : this.queueDataDirs) Util.ensureDirectory(dir);
+    }
+
+    /**
+     * Get the directories queues can be stored in.
+     */
+    public File[] getQueueDataDirs() {
+        return queueDataDirs.clone();
     }
 
     /**
      * If q already exists i.e. there is an existing directory for it then return that directory. Otherwise allocate
-     * a new directory and return it.
+     * a new directory and return it. The writeLoad map contains the bytes/sec currently being appended to
+     * other queues keyed by queue directory and is used to spread busy queues over the data directories.
      */
-    public File findDir(Queue q) throws IOException {
+    public File findDir(Queue q, Map<File, Long> writeLoad) throws IOException {
+        String name = getQueueName(q);
+        for (File dir : queueDataDirs) {
+            File f = new File(new File(dir, q.getDatabase()), name);
+            if (f.exists()) return f;
+        }
+        // queues created before queueDataDirs was configured live in the default directory
+        File f = new File(new File(defaultDataDir, q.getDatabase()), name);
+        if (f.exists()) return f;
+        return new File(Util.ensureDirectory(new File(allocateDataDir(q, writeLoad), q.getDatabase())), name);
+    }
+
+    private String getQueueName(Queue q) throws IOException {
         Database db = repository.findDatabase(q.getDatabase());
         if (db == null) {
             throw new IllegalStateException("database [" + q.getDatabase() + "] for queue [" + q.getId() +
@@ -59,28 +104,185 @@ public class QueueStorageManager {
             throw new IllegalStateException("database [" + q.getDatabase() + "] does not have name for queue [" +
                     q.getId() + "]");
         }
-        for (File dir : queueDataDirs) {
-            File dbDir = new File(dir, q.getDatabase());
-            if (dbDir.isDirectory()) {
-                File f = new File(dbDir, name);
-                if (f.exists()) return f;
-            }
-        }
-        return new File(Util.ensureDirectory(new File(allocateDataDir(q), q.getDatabase())), name);
+        return name;
     }
 
-    private File allocateDataDir(Queue q) {
+    /**
+     * Pick the data directory with the lowest write load among those with space for the whole queue, using free
+     * space to break ties. If none have enough space then the one with the most free space is used.
+     */
+    private File allocateDataDir(Queue q, Map<File, Long> writeLoad) {
         if (queueDataDirs.length == 1) return queueDataDirs[0];
-        long maxUsableSpace = -1;
+        Map<File, Long> load = getWriteLoadByDataDir(writeLoad);
         File ans = null;
+        long ansLoad = 0, ansSpace = 0;
+        boolean ansFits = false;
         for (File dir : queueDataDirs) {
-            long usableSpace = dir.getUsableSpace();
-            if (usableSpace > maxUsableSpace) {
+            long space = dir.getUsableSpace();
+            Long l = load.get(dir);
+            long dirLoad = l == null ? 0 : l;
+            boolean fits = space >= q.getMaxSize();
+            boolean better;
+            if (ans == null) better = true;
+            else if (fits != ansFits) better = fits;
+            else if (fits && dirLoad != ansLoad) better = dirLoad < ansLoad;
+            else better = space > ansSpace;
+            if (better) {
                 ans = dir;
-                maxUsableSpace = usableSpace;
+                ansLoad = dirLoad;
+                ansSpace = space;
+                ansFits = fits;
             }
         }
         return ans;
     }
 
+    /**
+     * Convert bytes/sec per queue directory into bytes/sec per data directory.
+     */
+    public Map<File, Long> getWriteLoadByDataDir(Map<File, Long> writeLoad) {
+        Map<File, Long> ans = new HashMap<File, Long>();
+        for (Map.Entry<File, Long> e : writeLoad.entrySet()) {
+            File dataDir = getDataDir(e.getKey());
+            Long l = ans.get(dataDir);
+            ans.put(dataDir, (l == null ? 0 : l) + e.getValue());
+        }
+        return ans;
+    }
+
+    /**
+     * Get the data directory that contains queueDir.
+     */
+    public File getDataDir(File queueDir) {
+        return queueDir.getAbsoluteFile().getParentFile().getParentFile();
+    }
+
+    /**
+     * Is dir one of our data directories?
+     */
+    public boolean isDataDir(File dir) {
+        dir = dir.getAbsoluteFile();
+        for (File d : queueDataDirs) if (d.equals(dir)) return true;
+        return false;
+    }
+
+    /**
+     * Get the temporary directory used to copy q to dataDir before it is moved.
+     */
+    public File getMoveDir(Queue q, File dataDir) throws IOException {
+        return new File(Util.ensureDirectory(new File(dataDir, q.getDatabase())), getQueueName(q) + ".moving");
+    }
+
+    /**
+     * Get the directory q would have in dataDir.
+     */
+    public File getDir(Queue q, File dataDir) throws IOException {
+        return new File(new File(dataDir, q.getDatabase()), getQueueName(q));
+    }
+
+    /**
+     * Make dst a copy of src. Files that are already in dst with the same name, size and modification time are
+     * not copied again so this can be called with the buffer open to copy most of the data and then again with
+     * it closed to pick up the changes. Size and modification time can match even though a file has changed (e.g.
+     * fixed size files or changes within the timestamp granularity) so the final pass must use verify to have
+     * such files compared byte for byte instead of skipped. Files in dst that are not in src are deleted.
+     */
+    public void syncFiles(File src, File dst, boolean verify) throws IOException {
+        Util.ensureDirectory(dst);
+        Set<String> names = new HashSet<String>();
+        File[] files = src.listFiles();
+        if (files == null) throw new IOException("Unable to list [" + src + "]");
+        for (File f : files) {
+            if (!f.isFile()) continue;
+            names.add(f.getName());
+            File d = new File(dst, f.getName());
+            if (d.exists() && d.length() == f.length() && d.lastModified() == f.lastModified()
+                    && (!verify || sameContents(f, d))) {
+                continue;
+            }
+            copyFile(f, d);
+        }
+        File[] existing = dst.listFiles();
+        if (existing != null) {
+            for (File f : existing) {
+                if (!names.contains(f.getName()) && !f.delete()) throw new IOException("Unable to delete [" + f + "]");
+            }
+        }
+    }
+
+    private void copyFile(File src, File dst) throws IOException {
+        long lastModified = src.lastModified();
+        FileInputStream ins = new FileInputStream(src);
+        try {
+            FileOutputStream out = new FileOutputStream(dst);
+            try {
+                FileChannel in = ins.getChannel();
+                FileChannel oc = out.getChannel();
+                long size = in.size();
+                for (long pos = 0; pos < size; ) {
+                    long n = in.transferTo(pos, size - pos, oc);
+                    if (n <= 0) throw new IOException("Unable to copy [" + src + "] to [" + dst + "]");
+                    pos += n;
+                }
+                oc.force(true);
+            } finally {
+                out.close();
+            }
+        } finally {
+            ins.close();
+        }
+        // if src changed while we were busy leave dst with the copy time so the next pass copies it again
+        if (src.lastModified() != lastModified) return;
+        if (!dst.setLastModified(lastModified)) log.warn("Unable to set last modified time on [" + dst + "]");
+    }
+
+    private boolean sameContents(File a, File b) throws IOException {
+        FileInputStream ia = new FileInputStream(a);
+        try {
+            FileInputStream ib = new FileInputStream(b);
+            try {
+                FileChannel ca = ia.getChannel();
+                FileChannel cb = ib.getChannel();
+                if (ca.size() != cb.size()) return false;
+                ByteBuffer ba = ByteBuffer.allocate(COMPARE_BUFFER_SIZE);
+                ByteBuffer bb = ByteBuffer.allocate(COMPARE_BUFFER_SIZE);
+                while (true) {
+                    ba.clear();
+                    bb.clear();
+                    int na = fill(ca, ba);
+                    int nb = fill(cb, bb);
+                    if (na != nb) return false;
+                    if (na == 0) return true;
+                    ba.flip();
+                    bb.flip();
+                    if (!ba.equals(bb)) return false;
+                }
+            } finally {
+                ib.close();
+            }
+        } finally {
+            ia.close();
+        }
+    }
+
+    private static int fill(FileChannel c, ByteBuffer b) throws IOException {
+        while (b.hasRemaining()) {
+            if (c.read(b) < 0) break;
+        }
+        return b.position();
+    }
+
+    /**
+     * Delete dir and everything in it.
+     */
+    public void deleteDir(File dir) throws IOException {
+        File[] files = dir.listFiles();
+        if (files != null) {
+            for (File f : files) {
+                if (f.isDirectory()) deleteDir(f);
+                else if (!f.delete()) throw new IOException("Unable to delete [" + f + "]");
+            }
+        }
+        if (dir.exists() && !dir.delete()) throw new IOException("Unable to delete [" + dir + "]");
+    }
 }
@@ -0,0 +1,283 @@
+/*
+ * Copyright 2013 David Tinker
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package io.qdb.server.queue;
+
+import io.qdb.buffer.MessageBuffer;
+import io.qdb.buffer.MessageCursor;
+import io.qdb.server.filter.MessageFilter;
+import io.qdb.server.filter.TopicFilter;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Map;
+
+/**
+ * In memory index from the first few words of routing keys to the ids of the messages in a queue. Messages are
+ * added as they are appended and the index is rebuilt from the buffer when the queue is opened. Cursors reading
+ * messages for a filter with a topic pattern use it to skip over runs of messages that cannot match.
+ * The ids for each key are delta encoded in blocks so the index costs a couple of bytes per message.
+ */
+public class RoutingKeyIndex {
+
+    private static final Logger log = LoggerFactory.getLogger(RoutingKeyIndex.class);
+
+    private static final int BLOCK_SIZE = 64;
+
+    /**
+     * Only re-position a cursor if it would skip at least this many bytes of messages. Otherwise it is cheaper to
+     * just read through them.
+     */
+    private static final int MIN_SKIP_BYTES = 64 * 1024;
+
+    private final int words;
+    private final Map<String, Postings> postings = new HashMap<String, Postings>();
+    private volatile boolean ready;
+    private boolean building;
+    private boolean closed;
+    private long lastId = -1;   // id of the most recently indexed message
+
+    /**
+     * The ids of the messages for one key. Every BLOCK_SIZE'th id is stored in blockIds and the ids following it
+     * in the block are stored in data as varint deltas from the previous id starting at blockOffsets.
+     */
+    private static class Postings {
+        long[] blockIds = new long[4];
+        int[] blockOffsets = new int[4];
+        int blocks;
+        byte[] data = new byte[16];
+        int length;
+        int count;
+        long lastId;
+
+        void add(long id) {
+            if (count % BLOCK_SIZE == 0) {
+                if (blocks == blockIds.length) {
+                    blockIds = Arrays.copyOf(blockIds, blocks * 2);
+                    blockOffsets = Arrays.copyOf(blockOffsets, blocks * 2);
+                }
+                blockIds[blocks] = id;
+                blockOffsets[blocks++] = length;
+            } else {
+                if (length + 10 > data.length) data = Arrays.copyOf(data, Math.max(data.length * 2, length + 10));
+                for (long d = id - lastId; ; d >>>= 7) {
+                    if ((d & ~0x7FL) == 0) {
+                        data[length++] = (byte)d;
+                        break;
+                    }
+                    data[length++] = (byte)((d & 0x7F) | 0x80);
+                }
+            }
+            lastId = id;
+            ++count;
+        }
+
+        /**
+         * Get the first id >= fromId or -1 if there isn't one.
+         */
+        long find(long fromId) {
+            if (lastId < fromId) return -1;
+            int lo = 0, hi = blocks - 1;
+            while (lo < hi) {   // find the last block starting at or before fromId
+                int mid = (lo + hi + 1) >>> 1;
+                if (blockIds[mid] <= fromId) lo = mid;
+                else hi = mid - 1;
+            }
+            long id = blockIds[lo];
+            if (id >= fromId) return id;
+            int end = lo + 1 < blocks ? blockOffsets[lo + 1] : length;
+            for (int i = blockOffsets[lo]; i < end; ) {
+                long d = 0;
+                for (int shift = 0; ; shift += 7) {
+                    byte b = data[i++];
+                    d |= (long)(b & 0x7F) << shift;
+                    if (b >= 0) break;
+                }
+                if ((id += d) >= fromId) return id;
+            }
+            return lo + 1 < blocks ? blockIds[lo + 1] : -1;
+        }
+
+        /**
+         * Discard whole blocks of ids less than oldestId.
+         */
+        void trim(long oldestId) {
+            int n = 0;
+            while (n + 1 < blocks && blockIds[n + 1] <= oldestId) ++n;
+            if (n == 0) return;
+            int off = blockOffsets[n];
+            length -= off;
+            System.arraycopy(data, off, data, 0, length);
+            blocks -= n;
+            System.arraycopy(blockIds, n, blockIds, 0, blocks);
+            for (int i = 0; i < blocks; i++) blockOffsets[i] = blockOffsets[i + n] - off;
+            count -= n * BLOCK_SIZE;
+        }
+    }
+
+    /**
+     * Index the first words words of each routing key.
+     */
+    public RoutingKeyIndex(int words) {
+        if (words <= 0) throw new IllegalArgumentException("Invalid words " + words);
+        this.words = words;
+    }
+
+    public int getWords() {
+        return words;
+    }
+
+    /**
+     * Has the index been built? Until then it is ignored and messages are not added to it.
+     */
+    public boolean isReady() {
+        return ready;
+    }
+
+    /**
+     * Get the key for routingKey i.e. its first words words.
+     */
+    String toKey(String routingKey) {
+        if (routingKey == null) return "";
+        int i = -1;
+        for (int n = words; n > 0; --n) {
+            i = routingKey.indexOf('.', i + 1);
+            if (i < 0) return routingKey;
+        }
+        return routingKey.substring(0, i);
+    }
+
+    /**
+     * Get the key to look up messages that might be accepted by mf or null if the index cannot be used to find
+     * them. This is the case if mf does not have a topic pattern or it has a wildcard in the indexed words.
+     */
+    public String getKey(MessageFilter mf) {
+        String pattern = mf instanceof TopicFilter ? ((TopicFilter)mf).getTopicPattern() : null;
+        if (pattern == null) return null;
+        String key = toKey(pattern);
+        for (int i = 0, n = key.length(); i <= n; ) {
+            if (i < n && (key.charAt(i) == '*' || key.charAt(i) == '#')) return null;
+            int j = key.indexOf('.', i);
+            i = j < 0 ? n + 1 : j + 1;
+        }
+        return key;
+    }
+
+    /**
+     * Add a just appended message to the index. Callers must hold the lock on the buffer the message was appended
+     * to so messages are added in id order.
+     */
+    public void add(long id, String routingKey) {
+        if (ready) addImpl(id, routingKey);
+    }
+
+    private synchronized void addImpl(long id, String routingKey) {
+        if (id <= lastId) return;
+        String key = toKey(routingKey);
+        Postings p = postings.get(key);
+        if (p == null) postings.put(key, p = new Postings());
+        p.add(id);
+        lastId = id;
+    }
+
+    /**
+     * If the next message that might have a routing key with key is far enough past nextId to make re-positioning
+     * a cursor there worthwhile then return its id, otherwise -1. If the index has no such message then the id of
+     * the most recently indexed message is used because messages after that have not been indexed yet.
+     */
+    public synchronized long skipTo(String key, long nextId) {
+        if (!ready) return -1;
+        Postings p = postings.get(key);
+        long id = p == null ? -1 : p.find(nextId);
+        if (id < 0) id = lastId;
+        return id - nextId >= MIN_SKIP_BYTES ? id : -1;
+    }
+
+    /**
+     * Discard index entries for messages before oldestId i.e. messages that have been deleted from the buffer.
+     */
+    public synchronized void trim(long oldestId) {
+        for (Iterator<Postings> i = postings.values().iterator(); i.hasNext(); ) {
+            Postings p = i.next();
+            if (p.lastId < oldestId) i.remove();
+            else p.trim(oldestId);
+        }
+    }
+
+    /**
+     * Build the index by reading all the message headers from mb. Messages appended while this is happening are
+     * picked up by the scan and the index is ready once it has caught up. Does nothing if the index is already
+     * ready or being built.
+     */
+    public void build(MessageBuffer mb) throws IOException {
+        synchronized (this) {
+            if (ready || building || closed) return;
+            building = true;
+            postings.clear();
+            lastId = -1;
+        }
+        long start = System.currentTimeMillis();
+        int count = 0;
+        MessageCursor c = null;
+        try {
+            long nextId = mb.getNextId();
+            c = mb.cursor(0);
+            while (true) {
+                for (int i = 0; i < 1000 && c.next(); i++, count++) {
+                    addImpl(c.getId(), c.getRoutingKey());
+                    nextId = c.getNextId();
+                }
+                synchronized (this) {
+                    if (closed) return;
+                }
+                synchronized (mb) {  // appends also lock mb so nothing can be appended until we are ready
+                    if (nextId == mb.getNextId()) {
+                        ready = true;
+                        break;
+                    }
+                }
+            }
+            if (log.isInfoEnabled()) {
+                log.info("Indexed " + count + " routing keys for " + mb + " in " +
+                        (System.currentTimeMillis() - start) + " ms");
+            }
+        } finally {
+            synchronized (this) {
+                building = false;
+            }
+            if (c != null) c.close();
+        }
+    }
+
+    /**
+     * Stop building the index and discard it.
+     */
+    public synchronized void close() {
+        closed = true;
+        ready = false;
+        postings.clear();
+    }
+
+    @Override
+    public synchronized String toString() {
+        return "RoutingKeyIndex[words=" + words + ", keys=" + postings.size() + ", lastId=" + lastId +
+                (ready ? "" : building ? ", building" : ", not ready") + "]";
+    }
+}
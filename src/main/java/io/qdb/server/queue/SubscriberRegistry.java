@@ -0,0 +1,210 @@
+/*
+ * Copyright 2013 David Tinker
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package io.qdb.server.queue;
+
+import com.google.common.eventbus.Subscribe;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+import io.qdb.server.model.Queue;
+import io.qdb.server.repo.ObjectEventDispatcher;
+import io.qdb.server.repo.Repository;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import javax.inject.Inject;
+import javax.inject.Named;
+import javax.inject.Singleton;
+import java.io.Closeable;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * Parks subscribers waiting for messages to be appended to queues so they don't each need a thread. Code that
+ * appends to a queue calls {@link #appended(io.qdb.server.model.Queue)} and all the subscribers parked on that
+ * queue are resumed using a small shared pool. Subscribers are also resumed when their wait time expires.
+ */
+@Singleton
+public class SubscriberRegistry implements Closeable, Thread.UncaughtExceptionHandler {
+
+    private static final Logger log = LoggerFactory.getLogger(SubscriberRegistry.class);
+
+    /**
+     * Something waiting for messages.
+     */
+    public interface Subscriber {
+        /**
+         * Called on a pool thread when a message has been appended to the queue or the wait time has expired.
+         * The subscriber is no longer parked and must call park again if it wants to keep waiting.
+         */
+        void resume();
+    }
+
+    private final ConcurrentMap<String, Waiters> waiters = new ConcurrentHashMap<String, Waiters>();
+    private final ExecutorService pool;
+    private final ScheduledExecutorService timer;
+
+    /**
+     * Subscribers waiting on one queue. The version is incremented on each append so a subscriber that checked
+     * for messages at an older version is resumed immediately instead of missing the append.
+     */
+    private static class Waiters {
+        long version;
+        List<Parked> parked = new ArrayList<Parked>();
+    }
+
+    private class Parked implements Runnable {
+        final Waiters waiters;
+        final Subscriber subscriber;
+        final AtomicBoolean resumed = new AtomicBoolean();
+        ScheduledFuture<?> timeout;
+
+        Parked(Waiters waiters, Subscriber subscriber) {
+            this.waiters = waiters;
+            this.subscriber = subscriber;
+        }
+
+        /**
+         * Resume our subscriber on the pool unless this has already been done.
+         */
+        void resume() {
+            if (!resumed.compareAndSet(false, true)) return;
+            if (timeout != null) timeout.cancel(false);
+            try {
+                pool.execute(this);
+            } catch (RejectedExecutionException e) {
+                if (log.isDebugEnabled()) log.debug("Unable to resume " + subscriber + ": " + e);
+            }
+        }
+
+        @Override
+        public void run() {
+            subscriber.resume();
+        }
+    }
+
+    @Inject
+    public SubscriberRegistry(ObjectEventDispatcher eventDispatcher,
+                              @Named("asyncConsumerThreads") int asyncConsumerThreads) {
+        ThreadFactoryBuilder tfb = new ThreadFactoryBuilder().setUncaughtExceptionHandler(this);
+        pool = Executors.newFixedThreadPool(asyncConsumerThreads, tfb.setNameFormat("subscriber-%d").build());
+        timer = Executors.newSingleThreadScheduledExecutor(tfb.setNameFormat("subscriber-timer").build());
+        eventDispatcher.register(this);
+    }
+
+    @Subscribe
+    public void handleQueueEvent(Repository.ObjectEvent ev) {
+        if (ev.value instanceof Queue && ev.type == Repository.ObjectEvent.Type.DELETED) deleted((Queue)ev.value);
+    }
+
+    /**
+     * Forget about q and resume all the subscribers waiting on it so they can find out it is gone.
+     */
+    private void deleted(Queue q) {
+        Waiters w = waiters.remove(q.getId());
+        if (w == null) return;
+        List<Parked> list;
+        synchronized (w) {
+            list = w.parked;
+            w.parked = new ArrayList<Parked>();
+        }
+        for (Parked p : list) p.resume();
+    }
+
+    /**
+     * Get the current version for q. Read this before checking for messages and pass it to
+     * {@link #park(io.qdb.server.model.Queue, long, io.qdb.server.queue.SubscriberRegistry.Subscriber, long)}.
+     */
+    public long getVersion(Queue q) {
+        Waiters w = getWaiters(q);
+        synchronized (w) {
+            return w.version;
+        }
+    }
+
+    /**
+     * Park s until something is appended to q or waitMs have passed (0 to wait forever). If anything has been
+     * appended since version was read then s is resumed immediately.
+     */
+    public void park(Queue q, long version, Subscriber s, long waitMs) {
+        Waiters w = getWaiters(q);
+        Parked p = new Parked(w, s);
+        synchronized (w) {
+            if (w.version == version) {
+                if (waitMs > 0) p.timeout = timer.schedule(new TimeoutTask(p), waitMs, TimeUnit.MILLISECONDS);
+                w.parked.add(p);
+                return;
+            }
+        }
+        p.resume();
+    }
+
+    /**
+     * Messages have been appended to q so resume all the subscribers waiting on it.
+     */
+    public void appended(Queue q) {
+        Waiters w = waiters.get(q.getId());
+        if (w == null) return;
+        List<Parked> list;
+        synchronized (w) {
+            ++w.version;
+            if (w.parked.isEmpty()) return;
+            list = w.parked;
+            w.parked = new ArrayList<Parked>();
+        }
+        for (Parked p : list) p.resume();
+    }
+
+    private Waiters getWaiters(Queue q) {
+        Waiters w = waiters.get(q.getId());
+        if (w == null) {
+            Waiters nw = new Waiters();
+            w = waiters.putIfAbsent(q.getId(), nw);
+            if (w == null) w = nw;
+        }
+        return w;
+    }
+
+    private class TimeoutTask implements Runnable {
+
+        private final Parked parked;
+
+        TimeoutTask(Parked parked) {
+            this.parked = parked;
+        }
+
+        @Override
+        public void run() {
+            synchronized (parked.waiters) {
+                parked.waiters.parked.remove(parked);
+            }
+            parked.resume();
+        }
+    }
+
+    @Override
+    public void close() throws IOException {
+        timer.shutdownNow();
+        pool.shutdownNow();
+    }
+
+    @Override
+    public void uncaughtException(Thread t, Throwable e) {
+        log.error(e.toString(), e);
+    }
+}
@@ -16,7 +16,6 @@
 
 package io.qdb.server.repo;
 
-import com.google.common.eventbus.EventBus;
 import io.qdb.kvstore.KeyValueStore;
 import io.qdb.server.model.ModelObject;
 
@@ -24,17 +23,17 @@ import javax.inject.Inject;
 import javax.inject.Singleton;
 
 /**
- * Converts events from our meta data {@link KeyValueStore} to {@link Repository.ObjectEvent}'s and publishes
- * them on the shared event bus.
+ * Converts events from our meta data {@link KeyValueStore} to {@link Repository.ObjectEvent}'s and hands them
+ * to the {@link ObjectEventDispatcher} for delivery.
  */
 @Singleton
 public class KeyValueStoreListener implements KeyValueStore.Listener<String, ModelObject> {
 
-    private final EventBus eventBus;
+    private final ObjectEventDispatcher eventDispatcher;
 
     @Inject
-    public KeyValueStoreListener(EventBus eventBus) {
-        this.eventBus = eventBus;
+    public KeyValueStoreListener(ObjectEventDispatcher eventDispatcher) {
+        this.eventDispatcher = eventDispatcher;
     }
 
     @Override
@@ -46,6 +45,6 @@ public class KeyValueStoreListener implements KeyValueStore.Listener<String, Mod
             case DELETED:   type = Repository.ObjectEvent.Type.DELETED;     break;
             default:        return;
         }
-        eventBus.post(new Repository.ObjectEvent(type, ev.value));
+        eventDispatcher.post(new Repository.ObjectEvent(type, ev.value));
     }
 }
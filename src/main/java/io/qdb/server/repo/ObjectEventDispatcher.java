@@ -0,0 +1,271 @@
+/*
+ * Copyright 2013 David Tinker
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package io.qdb.server.repo;
+
+import com.google.common.eventbus.Subscribe;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+import io.qdb.server.model.ModelObject;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import javax.inject.Inject;
+import javax.inject.Named;
+import javax.inject.Singleton;
+import java.io.Closeable;
+import java.io.IOException;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Delivers {@link Repository.ObjectEvent}'s to subscribers asynchronously so writers to the repository don't
+ * wait for (or hold their locks during) the subscribers' work. Subscribers are registered objects with
+ * {@link Subscribe} methods taking an ObjectEvent.
+ * <p>
+ * Events are partitioned by object type and id. Each subscriber has its own queue for each partition and these
+ * are drained by a shared pool of threads. So events for the same object are delivered to a subscriber one at a
+ * time in the order they were posted but events for different objects may be delivered concurrently and
+ * subscribers must be thread safe. An update to an object whose previous event is still waiting for a subscriber
+ * replaces that event instead of being queued so the queues stay short even if a subscriber falls behind.
+ * Posting never blocks as writers often hold locks that subscribers need.
+ */
+@Singleton
+public class ObjectEventDispatcher implements Closeable, Thread.UncaughtExceptionHandler {
+
+    private static final Logger log = LoggerFactory.getLogger(ObjectEventDispatcher.class);
+
+    private static final int MAX_EVENTS_PER_RUN = 64;   // events delivered before giving other queues a turn
+
+    private final ExecutorService pool;
+    private final int partitions;
+    private final List<Subscriber> subscribers = new CopyOnWriteArrayList<Subscriber>();
+
+    /**
+     * Delivery statistics for a subscriber.
+     */
+    public static class Stats {
+        public String subscriber;
+        public int pending;
+        public int maxPending;
+        public long delivered;
+        public long coalesced;
+        public long errors;
+        public long lastLagMs;
+        public long maxLagMs;
+    }
+
+    @Inject
+    public ObjectEventDispatcher(@Named("eventThreads") int threads) {
+        partitions = Math.max(threads, 1);
+        pool = Executors.newFixedThreadPool(partitions,
+                new ThreadFactoryBuilder().setNameFormat("events-%d").setUncaughtExceptionHandler(this).build());
+    }
+
+    @Override
+    public void close() throws IOException {
+        pool.shutdownNow();
+    }
+
+    @Override
+    public void uncaughtException(Thread t, Throwable e) {
+        log.error(t.getName() + ": " + e, e);
+    }
+
+    /**
+     * Deliver future events to the {@link Subscribe} methods of subscriber.
+     * @throws IllegalArgumentException if subscriber has no such methods
+     */
+    public void register(Object subscriber) throws IllegalArgumentException {
+        subscribers.add(new Subscriber(subscriber));
+    }
+
+    /**
+     * Queue ev for delivery to all subscribers.
+     */
+    public void post(Repository.ObjectEvent ev) {
+        ModelObject o = ev.value;
+        String key = o.getClass().getSimpleName() + ":" + o.getId();
+        int p = (key.hashCode() & 0x7fffffff) % partitions;
+        for (Subscriber s : subscribers) s.lanes[p].add(key, ev);
+    }
+
+    /**
+     * Get delivery statistics for each subscriber.
+     */
+    public List<Stats> getStats() {
+        List<Stats> ans = new ArrayList<Stats>();
+        for (Subscriber s : subscribers) ans.add(s.getStats());
+        return ans;
+    }
+
+    private class Subscriber {
+
+        final Object target;
+        final List<Method> methods = new ArrayList<Method>();
+        final Lane[] lanes = new Lane[partitions];
+        final AtomicInteger pending = new AtomicInteger();
+        final AtomicInteger maxPending = new AtomicInteger();
+        final AtomicLong delivered = new AtomicLong();
+        final AtomicLong coalesced = new AtomicLong();
+        final AtomicLong errors = new AtomicLong();
+        volatile long lastLagMs;
+        volatile long maxLagMs;
+
+        Subscriber(Object target) {
+            this.target = target;
+            for (Method m : target.getClass().getMethods()) {
+                Class[] params = m.getParameterTypes();
+                if (m.isAnnotationPresent(Subscribe.class) && params.length == 1
+                        && params[0].isAssignableFrom(Repository.ObjectEvent.class)) {
+                    m.setAccessible(true);
+                    methods.add(m);
+                }
+            }
+            if (methods.isEmpty()) {
+                throw new IllegalArgumentException(target.getClass().getName() + " has no @Subscribe methods for " +
+                        Repository.ObjectEvent.class.getName());
+            }
+            for (int i = 0; i < partitions; i++) lanes[i] = new Lane(this);
+        }
+
+        void queued() {
+            int n = pending.incrementAndGet();
+            for (int max; n > (max = maxPending.get()); ) {
+                if (maxPending.compareAndSet(max, n)) break;
+            }
+        }
+
+        void deliver(Repository.ObjectEvent ev, long posted) {
+            pending.decrementAndGet();
+            long lag = System.currentTimeMillis() - posted;
+            lastLagMs = lag;
+            if (lag > maxLagMs) maxLagMs = lag;
+            for (Method m : methods) {
+                try {
+                    m.invoke(target, ev);
+                } catch (InvocationTargetException e) {
+                    errors.incrementAndGet();
+                    Throwable t = e.getCause();
+                    log.error(this + " failed on " + ev + ": " + t, t);
+                } catch (Exception e) {
+                    errors.incrementAndGet();
+                    log.error(this + " failed on " + ev + ": " + e, e);
+                }
+            }
+            delivered.incrementAndGet();
+        }
+
+        Stats getStats() {
+            Stats s = new Stats();
+            s.subscriber = toString();
+            s.pending = pending.get();
+            s.maxPending = maxPending.get();
+            s.delivered = delivered.get();
+            s.coalesced = coalesced.get();
+            s.errors = errors.get();
+            s.lastLagMs = lastLagMs;
+            s.maxLagMs = maxLagMs;
+            return s;
+        }
+
+        @Override
+        public String toString() {
+            return target.getClass().getSimpleName();
+        }
+    }
+
+    private static class Pending {
+        final String key;
+        final long posted;
+        Repository.ObjectEvent ev;
+
+        Pending(String key, Repository.ObjectEvent ev) {
+            this.key = key;
+            this.ev = ev;
+            this.posted = System.currentTimeMillis();
+        }
+    }
+
+    /**
+     * The events for one partition waiting for a subscriber. At most one pool thread drains a lane at a time.
+     */
+    private class Lane implements Runnable {
+
+        private final Subscriber subscriber;
+        private final ArrayDeque<Pending> queue = new ArrayDeque<Pending>();
+        private final Map<String, Pending> latest = new HashMap<String, Pending>(); // undelivered event for each key
+        private boolean scheduled;
+
+        Lane(Subscriber subscriber) {
+            this.subscriber = subscriber;
+        }
+
+        synchronized void add(String key, Repository.ObjectEvent ev) {
+            Pending p = ev.type == Repository.ObjectEvent.Type.UPDATED ? latest.get(key) : null;
+            if (p != null) {
+                // keep the original event type (e.g. CREATED) but deliver the latest value
+                p.ev = new Repository.ObjectEvent(p.ev.type, ev.value);
+                subscriber.coalesced.incrementAndGet();
+                return;
+            }
+            queue.add(p = new Pending(key, ev));
+            if (ev.type == Repository.ObjectEvent.Type.DELETED) latest.remove(key);
+            else latest.put(key, p);
+            subscriber.queued();
+            if (!scheduled) schedule();
+        }
+
+        private void schedule() {
+            try {
+                pool.execute(this);
+                scheduled = true;
+            } catch (RejectedExecutionException e) {
+                if (log.isDebugEnabled()) log.debug("Not delivering events to " + subscriber + ": " + e);
+            }
+        }
+
+        @Override
+        public void run() {
+            for (int i = 0; i < MAX_EVENTS_PER_RUN; i++) {
+                Pending p;
+                synchronized (this) {
+                    p = queue.poll();
+                    if (p == null) {
+                        scheduled = false;
+                        return;
+                    }
+                    if (latest.get(p.key) == p) latest.remove(p.key);
+                }
+                subscriber.deliver(p.ev, p.posted);
+            }
+            synchronized (this) {
+                scheduled = false;
+                if (!queue.isEmpty()) schedule();
+            }
+        }
+    }
+}
@@ -0,0 +1,247 @@
+/*
+ * Copyright 2013 David Tinker
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package io.qdb.server.repo;
+
+import com.google.common.eventbus.Subscribe;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+import io.qdb.server.model.Input;
+import io.qdb.server.model.ModelObject;
+import io.qdb.server.model.Output;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import javax.inject.Inject;
+import javax.inject.Named;
+import javax.inject.Singleton;
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Keeps the progress of outputs and inputs (atId, at and limit or lastMessageId and lastMessageTimestamp) out of
+ * the meta data store so checkpoints don't write whole objects to the tx log or fire repository events. Progress
+ * is kept in memory and written to a small file now and then. Use the merge methods to get an object with its
+ * latest progress.
+ * <p>
+ * Each record is tied to the version of the object it was made against. When an object is updated in the
+ * repository the update must start from the merged object so the stored object picks up the progress and the
+ * now out of date record is ignored.
+ */
+@Singleton
+public class ProgressStore implements Closeable, Thread.UncaughtExceptionHandler {
+
+    private static final Logger log = LoggerFactory.getLogger(ProgressStore.class);
+
+    private static final int FILE_VERSION = 1;
+    private static final String PROGRESS_FILE = "progress.dat";
+
+    private final File file;
+    private final ConcurrentMap<String, Progress> outputs = new ConcurrentHashMap<String, Progress>();
+    private final ConcurrentMap<String, Progress> inputs = new ConcurrentHashMap<String, Progress>();
+    private final ScheduledExecutorService timer;
+    private volatile boolean dirty;
+
+    /**
+     * Position reached by an output or input. For an output id is atId, timestamp is at and count is the remaining
+     * limit. For an input id is lastMessageId and timestamp is lastMessageTimestamp.
+     */
+    private static final class Progress {
+        final int version;
+        final long id;
+        final long timestamp;
+        final long count;
+
+        Progress(int version, long id, long timestamp, long count) {
+            this.version = version;
+            this.id = id;
+            this.timestamp = timestamp;
+            this.count = count;
+        }
+    }
+
+    @Inject
+    public ProgressStore(ObjectEventDispatcher eventDispatcher, @Named("dataDir") String dataDir,
+                @Named("progressSaveSecs") int progressSaveSecs) throws IOException {
+        File dir = new File(dataDir);
+        if (!dir.isDirectory() && !dir.mkdirs()) throw new IOException("Unable to create [" + dir + "]");
+        file = new File(dir, PROGRESS_FILE);
+        if (file.exists()) {
+            try {
+                load();
+            } catch (IOException e) {
+                log.error("Error loading [" + file + "], outputs and inputs will resume from last saved objects: " + e);
+            }
+        }
+        timer = Executors.newSingleThreadScheduledExecutor(
+                new ThreadFactoryBuilder().setNameFormat("progress-store-timer").setUncaughtExceptionHandler(this).build());
+        timer.scheduleWithFixedDelay(new Runnable() {
+            @Override
+            public void run() {
+                if (dirty) saveQuietly();
+            }
+        }, progressSaveSecs, progressSaveSecs, TimeUnit.SECONDS);
+        eventDispatcher.register(this);
+    }
+
+    @Override
+    public void close() throws IOException {
+        timer.shutdownNow();
+        save();
+    }
+
+    @Override
+    public void uncaughtException(Thread t, Throwable e) {
+        log.error(t.getName() + ": " + e, e);
+    }
+
+    /**
+     * Record the progress of o without changing it.
+     */
+    public void record(Output o, long atId, long at, long limit) {
+        outputs.put(o.getId(), new Progress(o.getVersion(), atId, at, limit));
+        dirty = true;
+    }
+
+    /**
+     * Record the progress of in without changing it.
+     */
+    public void record(Input in, long lastMessageId, long lastMessageTimestamp) {
+        inputs.put(in.getId(), new Progress(in.getVersion(), lastMessageId, lastMessageTimestamp, 0));
+        dirty = true;
+    }
+
+    /**
+     * Get o with its latest progress. Returns o if there is no progress newer than o, otherwise a copy.
+     */
+    public Output merge(Output o) {
+        Progress p = outputs.get(o.getId());
+        if (p == null || p.version != o.getVersion()) return o;
+        Output ans = o.copy();
+        ans.setAtId(p.id);
+        ans.setAt(p.timestamp);
+        ans.setLimit(p.count);
+        return ans;
+    }
+
+    /**
+     * Get in with its latest progress. Returns in if there is no progress newer than in, otherwise a copy.
+     */
+    public Input merge(Input in) {
+        Progress p = inputs.get(in.getId());
+        if (p == null || p.version != in.getVersion()) return in;
+        Input ans = in.copy();
+        ans.setLastMessageId(p.id);
+        ans.setLastMessageTimestamp(p.timestamp);
+        return ans;
+    }
+
+    /**
+     * Discard any progress for o.
+     */
+    public void remove(ModelObject o) {
+        if (o instanceof Output) {
+            if (outputs.remove(o.getId()) != null) dirty = true;
+        } else if (o instanceof Input) {
+            if (inputs.remove(o.getId()) != null) dirty = true;
+        }
+    }
+
+    @Subscribe
+    public void handleRepoEvent(Repository.ObjectEvent ev) {
+        if (ev.type == Repository.ObjectEvent.Type.DELETED) remove(ev.value);
+    }
+
+    private void saveQuietly() {
+        try {
+            save();
+        } catch (IOException e) {
+            dirty = true;   // try again next time
+            log.error("Error saving [" + file + "]: " + e);
+        }
+    }
+
+    /**
+     * Write all the progress to our file (replacing it atomically).
+     */
+    private synchronized void save() throws IOException {
+        dirty = false;
+        File tmp = new File(file.getPath() + ".tmp");
+        FileOutputStream fos = new FileOutputStream(tmp);
+        DataOutputStream out = new DataOutputStream(new BufferedOutputStream(fos));
+        try {
+            out.writeInt(FILE_VERSION);
+            write(out, outputs);
+            write(out, inputs);
+            out.flush();
+            fos.getFD().sync();     // make sure the data is on disk before the rename replaces the old file
+        } finally {
+            out.close();
+        }
+        if (!tmp.renameTo(file)) {
+            if (!file.delete() || !tmp.renameTo(file)) {
+                throw new IOException("Unable to rename [" + tmp + "] to [" + file + "]");
+            }
+        }
+    }
+
+    private static void write(DataOutputStream out, Map<String, Progress> map) throws IOException {
+        // take a copy as the map may change while we are busy and the count must match the entries written
+        List<Map.Entry<String, Progress>> entries = new ArrayList<Map.Entry<String, Progress>>(map.entrySet());
+        out.writeInt(entries.size());
+        for (Map.Entry<String, Progress> e : entries) {
+            Progress p = e.getValue();
+            out.writeUTF(e.getKey());
+            out.writeInt(p.version);
+            out.writeLong(p.id);
+            out.writeLong(p.timestamp);
+            out.writeLong(p.count);
+        }
+    }
+
+    private void load() throws IOException {
+        DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(file)));
+        try {
+            int ver = in.readInt();
+            if (ver != FILE_VERSION) throw new IOException("Unsupported version " + ver + " in [" + file + "]");
+            read(in, outputs);
+            read(in, inputs);
+        } finally {
+            in.close();
+        }
+    }
+
+    private static void read(DataInputStream in, Map<String, Progress> map) throws IOException {
+        for (int n = in.readInt(); n > 0; n--) {
+            String id = in.readUTF();
+            map.put(id, new Progress(in.readInt(), in.readLong(), in.readLong(), in.readLong()));
+        }
+    }
+}
@@ -83,8 +83,14 @@ public interface Repository extends Closeable {
     public void deleteInput(String id) throws IOException;
 
     /**
-     * A change to one of the objects we store. These are published on the shared
-     * {@link com.google.common.eventbus.EventBus}.
+     * Get the path to a queue, output or input (e.g. /db/foo/q/bar/out/baz, /db/foo is left out for the default
+     * database) for messages and so on. Returns null if o is not attached to a database or queue.
+     */
+    public String findPath(ModelObject o) throws IOException;
+
+    /**
+     * A change to one of the objects we store. These are delivered to subscribers asynchronously by the
+     * {@link ObjectEventDispatcher}.
      */
     public static class ObjectEvent {
 
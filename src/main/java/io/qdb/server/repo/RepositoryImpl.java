@@ -16,6 +16,7 @@
 
 package io.qdb.server.repo;
 
+import com.google.common.eventbus.Subscribe;
 import io.qdb.kvstore.KeyValueStore;
 import io.qdb.server.model.*;
 import io.qdb.server.model.Queue;
@@ -30,7 +31,8 @@ import java.util.*;
 import java.util.concurrent.ConcurrentMap;
 
 /**
- * Uses a {@link KeyValueStore} to keep our meta data in memory with periodic snapshots written to disk.
+ * Uses a {@link KeyValueStore} to keep our meta data in memory with periodic snapshots written to disk. Each
+ * type of object is also kept in a {@link SortedIndex} so lists are not sorted on every call.
  */
 @Singleton
 public class RepositoryImpl implements Repository {
@@ -45,8 +47,17 @@ public class RepositoryImpl implements Repository {
     private final ConcurrentMap<String, Output> outputs;
     private final ConcurrentMap<String, Input> inputs;
 
+    private final SortedIndex<User> usersIndex;
+    private final SortedIndex<Database> databasesIndex;
+    private final SortedIndex<Queue> queuesIndex;
+    private final SortedIndex<Output> outputsIndex;
+    private final SortedIndex<Input> inputsIndex;
+
+    private final Object pathsLock = new Object();
+    private volatile Paths paths;   // null if databases or queues have changed since last built
+
     @Inject
-    public RepositoryImpl(KeyValueStore<String, ModelObject> store,
+    public RepositoryImpl(KeyValueStore<String, ModelObject> store, ObjectEventDispatcher eventDispatcher,
                 @Named("initialAdminPassword") String initialAdminPassword) throws IOException {
         this.store = store;
         users = store.getMap("users", User.class);
@@ -55,6 +66,13 @@ public class RepositoryImpl implements Repository {
         outputs = store.getMap("outputs", Output.class);
         inputs = store.getMap("inputs", Input.class);
 
+        usersIndex = new SortedIndex<User>(users);
+        databasesIndex = new SortedIndex<Database>(databases);
+        queuesIndex = new SortedIndex<Queue>(queues);
+        outputsIndex = new SortedIndex<Output>(outputs);
+        inputsIndex = new SortedIndex<Input>(inputs);
+        eventDispatcher.register(this);
+
         if (findDatabase("default") == null) updateDatabase(new Database("default"));
 
         if (findUser("admin") == null) {
@@ -73,15 +91,36 @@ public class RepositoryImpl implements Repository {
         store.close();
     }
 
+    /**
+     * Keep our indexes up to date with changes that did not go through our update and delete methods (e.g. tx
+     * log replay).
+     */
+    @Subscribe
+    public void handleRepoEvent(ObjectEvent ev) {
+        ModelObject o = ev.value;
+        if (o instanceof Queue) {
+            queuesIndex.refresh(o.getId());
+            invalidatePaths();
+        } else if (o instanceof Output) {
+            outputsIndex.refresh(o.getId());
+        } else if (o instanceof Input) {
+            inputsIndex.refresh(o.getId());
+        } else if (o instanceof Database) {
+            databasesIndex.refresh(o.getId());
+            invalidatePaths();
+        } else if (o instanceof User) {
+            usersIndex.refresh(o.getId());
+        }
+    }
+
     @Override
     public User findUser(String id) throws IOException {
         return users.get(id);
     }
 
-    @SuppressWarnings("unchecked")
     @Override
     public List<User> findUsers(int offset, int limit) throws IOException {
-        return find(users, offset, limit);
+        return usersIndex.find(offset, limit);
     }
 
     @Override
@@ -92,11 +131,13 @@ public class RepositoryImpl implements Repository {
     @Override
     public void updateUser(User user) throws IOException {
         users.put(user.getId(), user);
+        usersIndex.refresh(user.getId());
     }
 
     @Override
     public synchronized void deleteUser(String id) throws IOException {
         users.remove(id);
+        usersIndex.refresh(id);
     }
 
     @Override
@@ -104,11 +145,10 @@ public class RepositoryImpl implements Repository {
         return databases.get(id);
     }
 
-    @SuppressWarnings("unchecked")
     @Override
     public List<Database> findDatabasesVisibleTo(User user, int offset, int limit) throws IOException {
         if (user.isAdmin()) {
-            return find(databases, offset, limit);
+            return databasesIndex.find(offset, limit);
         } else {
             ArrayList<Database> ans = new ArrayList<Database>();
             String[] databases = user.getDatabases();
@@ -135,6 +175,8 @@ public class RepositoryImpl implements Repository {
     @Override
     public void updateDatabase(Database db) throws IOException {
         databases.put(db.getId(), db);
+        databasesIndex.refresh(db.getId());
+        invalidatePaths();
     }
 
     @Override
@@ -146,6 +188,8 @@ public class RepositoryImpl implements Repository {
             for (String qid : queues.values()) deleteQueueImpl(qid, true);
         }
         databases.remove(id);
+        databasesIndex.refresh(id);
+        invalidatePaths();
     }
 
     @Override
@@ -153,10 +197,9 @@ public class RepositoryImpl implements Repository {
         return queues.get(id);
     }
 
-    @SuppressWarnings("unchecked")
     @Override
     public List<Queue> findQueues(int offset, int limit) throws IOException {
-        return find(queues, offset, limit);
+        return queuesIndex.find(offset, limit);
     }
 
     @Override
@@ -167,6 +210,8 @@ public class RepositoryImpl implements Repository {
     @Override
     public void updateQueue(Queue queue) throws IOException {
         queues.put(queue.getId(), queue);
+        queuesIndex.refresh(queue.getId());
+        invalidatePaths();
     }
 
     @Override
@@ -185,6 +230,7 @@ public class RepositoryImpl implements Repository {
                     db = db.deepCopy();
                     db.getQueues().remove(dq);
                     databases.put(db.getId(), db);
+                    databasesIndex.refresh(db.getId());
                 }
             }
         }
@@ -193,6 +239,8 @@ public class RepositoryImpl implements Repository {
             for (Map.Entry<String, String> e : outputs.entrySet()) outputs.remove(e.getValue());
         }
         queues.remove(id);
+        queuesIndex.refresh(id);
+        invalidatePaths();
     }
 
     @Override
@@ -200,10 +248,9 @@ public class RepositoryImpl implements Repository {
         return outputs.get(id);
     }
 
-    @SuppressWarnings("unchecked")
     @Override
     public List<Output> findOutputs(int offset, int limit) throws IOException {
-        return find(outputs, offset, limit);
+        return outputsIndex.find(offset, limit);
     }
 
     @Override
@@ -214,6 +261,7 @@ public class RepositoryImpl implements Repository {
     @Override
     public void updateOutput(Output output) throws IOException {
         outputs.put(output.getId(), output);
+        outputsIndex.refresh(output.getId());
     }
 
     @Override
@@ -227,9 +275,12 @@ public class RepositoryImpl implements Repository {
                 q = q.deepCopy();
                 q.getOutputs().remove(qo);
                 queues.put(q.getId(), q);
+                queuesIndex.refresh(q.getId());
+                invalidatePaths();
             }
         }
         outputs.remove(id);
+        outputsIndex.refresh(id);
     }
 
     @Override
@@ -237,10 +288,9 @@ public class RepositoryImpl implements Repository {
         return inputs.get(id);
     }
 
-    @SuppressWarnings("unchecked")
     @Override
     public List<Input> findInputs(int offset, int limit) throws IOException {
-        return find(inputs, offset, limit);
+        return inputsIndex.find(offset, limit);
     }
 
     @Override
@@ -251,6 +301,7 @@ public class RepositoryImpl implements Repository {
     @Override
     public void updateInput(Input input) throws IOException {
         inputs.put(input.getId(), input);
+        inputsIndex.refresh(input.getId());
     }
 
     @Override
@@ -264,18 +315,67 @@ public class RepositoryImpl implements Repository {
                 q = q.deepCopy();
                 q.getInputs().remove(qi);
                 queues.put(q.getId(), q);
+                queuesIndex.refresh(q.getId());
+                invalidatePaths();
             }
         }
         inputs.remove(id);
+        inputsIndex.refresh(id);
     }
 
-    @SuppressWarnings("unchecked")
-    private List find(ConcurrentMap map, int offset, int limit) {
-        List list = new ArrayList(map.values());
-        Collections.sort(list);
-        if (limit < 0) limit = Integer.MAX_VALUE - offset;
-        int n = list.size();
-        if (offset == 0 && limit >= n) return list;
-        return offset >= n ? Collections.EMPTY_LIST : list.subList(offset, Math.min(limit, n));
+    @Override
+    public String findPath(ModelObject o) throws IOException {
+        Paths p = paths;
+        if (p == null) {
+            // build holding the lock so a build that started before a change can't be kept after it
+            synchronized (pathsLock) {
+                if ((p = paths) == null) paths = p = new Paths();
+            }
+        }
+        if (o instanceof Queue) return p.queues.get(o.getId());
+        if (o instanceof Output) return p.outputs.get(o.getId());
+        if (o instanceof Input) return p.inputs.get(o.getId());
+        return null;
+    }
+
+    private void invalidatePaths() {
+        synchronized (pathsLock) {
+            paths = null;
+        }
+    }
+
+    /**
+     * The paths of all queues, outputs and inputs by id. Paths only depend on the names in databases and queues
+     * so these are rebuilt when a database or queue changes and not when outputs or inputs are updated.
+     */
+    private class Paths {
+
+        final Map<String, String> queues = new HashMap<String, String>();
+        final Map<String, String> outputs = new HashMap<String, String>();
+        final Map<String, String> inputs = new HashMap<String, String>();
+
+        Paths() {
+            for (Database db : databases.values()) {
+                Map<String, String> dbQueues = db.getQueues();
+                if (dbQueues == null) continue;
+                String prefix = "default".equals(db.getId()) ? "" : "/db/" + db.getId();
+                for (Map.Entry<String, String> e : dbQueues.entrySet()) {
+                    String qpath = prefix + "/q/" + e.getKey();
+                    queues.put(e.getValue(), qpath);
+                    Queue q = RepositoryImpl.this.queues.get(e.getValue());
+                    if (q == null) continue;
+                    if (q.getOutputs() != null) {
+                        for (Map.Entry<String, String> o : q.getOutputs().entrySet()) {
+                            outputs.put(o.getValue(), qpath + "/out/" + o.getKey());
+                        }
+                    }
+                    if (q.getInputs() != null) {
+                        for (Map.Entry<String, String> i : q.getInputs().entrySet()) {
+                            inputs.put(i.getValue(), qpath + "/in/" + i.getKey());
+                        }
+                    }
+                }
+            }
+        }
     }
 }
@@ -0,0 +1,63 @@
+/*
+ * Copyright 2013 David Tinker
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package io.qdb.server.repo;
+
+import io.qdb.server.model.ModelObject;
+
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ConcurrentSkipListMap;
+
+/**
+ * The objects in one of our {@link io.qdb.kvstore.KeyValueStore} maps sorted by id so pages can be listed without copying and
+ * sorting the whole map. An entry is refreshed from the map whenever its object is changed so the index cannot
+ * get out of step with the store no matter what order changes are reported in.
+ */
+class SortedIndex<T extends ModelObject> {
+
+    private final ConcurrentMap<String, T> map;
+    private final ConcurrentSkipListMap<String, T> index = new ConcurrentSkipListMap<String, T>();
+
+    SortedIndex(ConcurrentMap<String, T> map) {
+        this.map = map;
+        index.putAll(map);
+    }
+
+    /**
+     * Copy the current value for id (if any) from the map to the index.
+     */
+    public synchronized void refresh(String id) {
+        T o = map.get(id);
+        if (o == null) index.remove(id);
+        else index.put(id, o);
+    }
+
+    /**
+     * Get up to limit objects (all if limit is negative) starting at offset in id order. This only walks
+     * offset + limit entries.
+     */
+    public List<T> find(int offset, int limit) {
+        if (limit < 0) limit = Integer.MAX_VALUE - offset;
+        List<T> ans = new ArrayList<T>(Math.max(Math.min(limit, map.size() - offset), 0));
+        Iterator<T> i = index.values().iterator();
+        for (int skip = offset; skip > 0 && i.hasNext(); --skip) i.next();
+        while (ans.size() < limit && i.hasNext()) ans.add(i.next());
+        return ans;
+    }
+}
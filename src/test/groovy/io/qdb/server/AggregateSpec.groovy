@@ -0,0 +1,86 @@
+/*
+ * Copyright 2013 David Tinker
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package io.qdb.server
+
+import spock.lang.Stepwise
+
+@Stepwise
+class AggregateSpec extends StandaloneBase {
+
+    def setupSpec() {
+        assert POST("/db/foo", [owner: "admin"]).code == 201
+        assert POST("/db/foo/q/bar", [maxSize: 10000000]).code == 201
+    }
+
+    def "Aggregate empty queue"() {
+        def ans = GET("/db/foo/q/bar/aggregate?borg=true")
+
+        expect:
+        ans.code == 200
+        ans.json.count == 0
+        ans.json.groups.size() == 0
+    }
+
+    def "Aggregate whole queue"() {
+        ["a.x", "a.y", "b.x"].each { assert POST("/db/foo/q/bar/messages?routingKey=" + it, [hello: it]).code == 201 }
+        def ans = GET("/db/foo/q/bar/aggregate?borg=true")
+
+        expect:
+        ans.code == 200
+        ans.json.count == 3
+        ans.json.bytes > 0
+        ans.json.fromId == 1
+        ans.json.groups.size() == 1
+        ans.json.groups[0].key == ""
+        ans.json.groups[0].firstId == 1
+    }
+
+    def "Aggregate by routing key"() {
+        def ans = GET("/db/foo/q/bar/aggregate?borg=true&groupBy=routingKey&words=1")
+
+        expect:
+        ans.code == 200
+        ans.json.groups*.key == ["a", "b"]
+        ans.json.groups*.count == [2, 1]
+    }
+
+    def "Aggregate filtered messages in parallel"() {
+        def ans = GET("/db/foo/q/bar/aggregate?borg=true&groupBy=routingKey&routingKey=*.x&parallel=true")
+
+        expect:
+        ans.code == 200
+        ans.json.groups*.key == ["a.x", "b.x"]
+        ans.json.count == 2
+    }
+
+    def "Aggregate by time"() {
+        def ans = GET("/db/foo/q/bar/aggregate?borg=true&groupBy=time&interval=1:00")
+
+        expect:
+        ans.code == 200
+        ans.json.groups*.count.sum() == 3
+        ans.json.groups.every { it.key % 60000 == 0 }
+    }
+
+    def "Aggregate with invalid parameters gives 422"() {
+        expect:
+        GET("/db/foo/q/bar/aggregate?groupBy=foo").code == 422
+        GET("/db/foo/q/bar/aggregate?groupBy=time").code == 422
+        GET("/db/foo/q/bar/aggregate?where=foo").code == 422
+        GET("/db/foo/q/bar/aggregate?where=id%3E0&grep=x").code == 422
+    }
+}
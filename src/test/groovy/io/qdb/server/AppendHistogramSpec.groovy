@@ -0,0 +1,53 @@
+/*
+ * Copyright 2013 David Tinker
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package io.qdb.server
+
+import io.qdb.server.queue.AppendHistogram
+import spock.lang.Specification
+
+class AppendHistogramSpec extends Specification {
+
+    def "Truncated file is not partly loaded"() {
+        def dir = new File("build/test-data/append-histogram")
+        dir.mkdirs()
+        def file = new File(dir, "h.dat")
+        def h = new AppendHistogram("1 for 60, 10 for 600")
+        100.times { h.add(it * 1000L, 10) }
+        h.save(file)
+        def bytes = file.bytes
+        def truncated = new File(dir, "truncated.dat")
+        truncated.bytes = Arrays.copyOf(bytes, bytes.length - 20)
+
+        def h2 = new AppendHistogram("1 for 60, 10 for 600")
+        h2.add(5000, 1)
+
+        when:
+        h2.load(truncated)
+
+        then:
+        thrown(EOFException)
+        h2.getBuckets(1000, 0, 200000).size() == 1
+        h2.getBuckets(10000, 0, 200000).size() == 1
+
+        when:
+        h2.load(file)
+
+        then:
+        h2.getBuckets(1000, 0, 200000).size() == 60
+        h2.getBuckets(10000, 0, 200000).size() == 10
+    }
+}
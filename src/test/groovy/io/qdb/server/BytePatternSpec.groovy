@@ -0,0 +1,97 @@
+/*
+ * Copyright 2013 David Tinker
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package io.qdb.server
+
+import io.qdb.server.filter.BytePattern
+import spock.lang.Specification
+
+import java.nio.charset.Charset
+import java.util.regex.Pattern
+
+class BytePatternSpec extends Specification {
+
+    static Charset UTF8 = Charset.forName("UTF-8")
+    static Charset LATIN1 = Charset.forName("ISO-8859-1")
+
+    def "Literal"() {
+        def p = BytePattern.compile('"type":"refund"', UTF8)
+
+        expect:
+        p.find('{"type":"refund"}'.getBytes("UTF8"))
+        !p.find('{"type":"sale"}'.getBytes("UTF8"))
+        !p.find('"type"'.getBytes("UTF8"))
+    }
+
+    def "Literal prefix then regex"() {
+        def p = BytePattern.compile('error: [0-9]+', UTF8)
+
+        expect:
+        p.find("error: x error: 42".getBytes("UTF8"))
+        !p.find("error: x".getBytes("UTF8"))
+    }
+
+    def "Classes, groups and quantifiers"() {
+        def p = BytePattern.compile('(?:ab|cd){2}\\d{1,3}x?', UTF8)
+
+        expect:
+        p.find("..abcd123".getBytes("UTF8"))
+        p.find("cdcd1".getBytes("UTF8"))
+        !p.find("abab".getBytes("UTF8"))
+    }
+
+    def "Non-ASCII literal in UTF-8"() {
+        def p = BytePattern.compile('café+', UTF8)
+
+        expect:
+        p.find("un café".getBytes("UTF8"))
+        !p.find("un cafe".getBytes("UTF8"))
+    }
+
+    def "Unsupported patterns return null"() {
+        expect:
+        BytePattern.compile('^abc$', UTF8) == null
+        BytePattern.compile('a.c', UTF8) == null
+        BytePattern.compile('[^a-z]', UTF8) == null
+        BytePattern.compile('(a)\\1', UTF8) == null
+        BytePattern.compile('a++', UTF8) == null
+        BytePattern.compile('a.c', LATIN1) != null
+        BytePattern.compile('abc', Charset.forName("UTF-16")) == null
+        BytePattern.compile('(((a?){32}){32}){32}', UTF8) == null    // too many states
+    }
+
+    def "Same answers as java.util.regex"() {
+        def patterns = ['abc', '', '[a-z]+', 'foo|bar', '(ab)+c', 'a.c', '[^a-z]', '\\w+@\\w+\\.com', 'a{0,3}b',
+                '[\\]a-]', '(a|)b', '[\\d\\s]x', 'ab*?c', '\\x41']
+        def inputs = ['', 'abc', 'ABC', 'xabcx', 'ab\nc', 'a\u0085c', 'foo@bar.com', 'aaab', 'b', ']', '-', '1x',
+                ' x', 'ac', 'abbbc', 'A', 'é', 'aéc']
+        def mismatches = []
+        for (Charset cs : [UTF8, LATIN1]) {
+            for (String regex : patterns) {
+                def jp = Pattern.compile(regex, Pattern.MULTILINE)
+                def bp = BytePattern.compile(regex, cs)
+                if (bp == null) continue
+                for (String s : inputs) {
+                    byte[] b = s.getBytes(cs)
+                    if (bp.find(b) != jp.matcher(new String(b, cs)).find()) mismatches << "$cs /$regex/ [$s]"
+                }
+            }
+        }
+
+        expect:
+        mismatches == []
+    }
+}
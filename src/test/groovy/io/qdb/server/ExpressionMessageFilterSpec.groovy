@@ -0,0 +1,100 @@
+/*
+ * Copyright 2013 David Tinker
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package io.qdb.server
+
+import io.qdb.server.filter.ExpressionMessageFilter
+import io.qdb.server.filter.MessageFilter
+import io.qdb.server.model.Queue
+import spock.lang.Specification
+import spock.lang.Unroll
+
+class ExpressionMessageFilterSpec extends Specification {
+
+    static final String PAYLOAD = '{"type":"refund","amount":150.5,"tags":["a","b"],"c":{"d e":true}}'
+
+    static final MessageFilter.Result ACCEPT = MessageFilter.Result.ACCEPT
+    static final MessageFilter.Result REJECT = MessageFilter.Result.REJECT
+    static final MessageFilter.Result CHECK_PAYLOAD = MessageFilter.Result.CHECK_PAYLOAD
+
+    private ExpressionMessageFilter filter(String where) {
+        def f = new ExpressionMessageFilter(where: where)
+        f.init(new Queue())
+        return f
+    }
+
+    @Unroll
+    def "Header only #where"() {
+        def f = filter(where)
+
+        expect:
+        f.accept(id, 1000, rk, null) == header
+
+        where:
+        where                                   | id | rk           | header
+        "routingKey = 'orders.#'"               | 1  | "orders.x"   | ACCEPT
+        "routingKey = 'orders.#'"               | 1  | "foo.x"      | REJECT
+        "routingKey != 'orders.#'"              | 1  | "foo.x"      | ACCEPT
+        "routingKey ~ '^ord'"                   | 1  | "orders.x"   | ACCEPT
+        "id >= 10 and id < 20"                  | 15 | ""           | ACCEPT
+        "id >= 10 and id < 20"                  | 20 | ""           | REJECT
+        "id = 1 or id = 2"                      | 2  | ""           | ACCEPT
+        "not (id = 1 || id = 2)"                | 2  | ""           | REJECT
+        "timestamp < 2000 && \$.type = 'x'"     | 1  | ""           | CHECK_PAYLOAD
+        "timestamp > 2000 and \$.type = 'x'"    | 1  | ""           | REJECT
+        "timestamp < 2000 or \$.type = 'x'"     | 1  | ""           | ACCEPT
+    }
+
+    @Unroll
+    def "Payload #where"() {
+        def f = filter(where)
+
+        expect:
+        f.accept(1, 1000, "orders.x", PAYLOAD.getBytes("UTF8")) == result
+
+        where:
+        where                                   | result
+        "\$.type = 'refund'"                    | ACCEPT
+        "\$.type != 'refund'"                   | REJECT
+        "\$.amount > 100 and \$.amount <= 150.5"| ACCEPT
+        "\$.tags[1] = 'b'"                      | ACCEPT
+        "\$.c['d e'] = true"                    | ACCEPT
+        "\$.c.missing"                          | REJECT
+        "\$.type ~ 'ref'"                       | ACCEPT
+        "payload ~ 'amount'"                    | ACCEPT
+        "size > 10000"                          | REJECT
+        "routingKey = 'orders.#' and (\$.type = 'sale' or size > 10)" | ACCEPT
+    }
+
+    def "Topic pattern is taken from the routing key predicate"() {
+        expect:
+        filter("routingKey = 'a.b.#' and \$.type = 'x'").topicPattern == "a.b.#"
+        filter("routingKey = 'a.b.#' or \$.type = 'x'").topicPattern == null
+    }
+
+    @Unroll
+    def "Invalid expression #where"() {
+        when:
+        filter(where)
+
+        then:
+        thrown(IllegalArgumentException)
+
+        where:
+        where << ["", "id", "id = 'x'", "foo = 1", "(id = 1", "id = 1 )", "routingKey > 'a'", "payload = 'x'",
+                "\$.a ~ 1", "timestamp > 'yesterday-ish'"]
+    }
+}
@@ -45,4 +45,23 @@ class GrepMessageFilterSpec extends Specification {
         f.accept(0, 0, "", "123\nabc".getBytes("UTF8")) == MessageFilter.Result.ACCEPT
         f.accept(0, 0, "", "abc0".getBytes("UTF8")) == MessageFilter.Result.REJECT
     }
+
+    def "Latin-1 payloads"() {
+        q.contentType = "text/plain; charset=ISO-8859-1"
+        f.grep = 'caf.'
+        f.init(q)
+
+        expect:
+        f.accept(0, 0, "", "café".getBytes("ISO-8859-1")) == MessageFilter.Result.ACCEPT
+        f.accept(0, 0, "", "caf".getBytes("ISO-8859-1")) == MessageFilter.Result.REJECT
+    }
+
+    def "Patterns needing full regex still work"() {
+        f.grep = '(a)\\1'
+        f.init(q)
+
+        expect:
+        f.accept(0, 0, "", "xaa".getBytes("UTF8")) == MessageFilter.Result.ACCEPT
+        f.accept(0, 0, "", "xab".getBytes("UTF8")) == MessageFilter.Result.REJECT
+    }
 }
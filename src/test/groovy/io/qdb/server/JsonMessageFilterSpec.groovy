@@ -0,0 +1,84 @@
+/*
+ * Copyright 2013 David Tinker
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package io.qdb.server
+
+import io.qdb.server.filter.JsonMessageFilter
+import io.qdb.server.filter.MessageFilter
+import spock.lang.Specification
+import spock.lang.Unroll
+
+class JsonMessageFilterSpec extends Specification {
+
+    static final String DOC = '{"a":{"b":1,"c":[1,{"b":3}]},"b":2,"n":null,"f":false,"s":"refund"}'
+
+    private MessageFilter.Result accept(String json, String payload, String charset = "UTF8") {
+        def f = new JsonMessageFilter(json: json)
+        f.init(null)
+        assert f.accept(0, 0, "", null) == MessageFilter.Result.CHECK_PAYLOAD
+        return f.accept(0, 0, "", payload.getBytes(charset))
+    }
+
+    @Unroll
+    def "#json"() {
+        expect:
+        accept(json, DOC) == (ans ? MessageFilter.Result.ACCEPT : MessageFilter.Result.REJECT)
+
+        where:
+        json                        | ans
+        '$.b = 2'                   | true
+        '$.a.c[1].b = 3'            | true
+        '$.a.c[2]'                  | false
+        '$.a'                       | true
+        '$.a ~ "1"'                 | false
+        '$.s ~ "^ref"'              | true
+        '$.n = null'                | true
+        '$.b != null'               | true
+        '$.f = false'               | true
+        '$.f = true'                | false
+        '$.x = 1 or $.s = "refund"' | true
+        'not $.x'                   | true
+        '$.b = 2 and $.a.c[1].b = 3'| true
+        '$.n = null and $.f = false'| true
+        '$.s ~ "^ref" and $.a.c[2]' | false
+        '$.s = "x" or not $.a.c[2]' | true
+    }
+
+    def "Parsing stops once the value is found"() {
+        expect:
+        accept('$.s = "refund"', '{"s":"refund", not json') == MessageFilter.Result.ACCEPT
+        accept('$.s = "refund"', 'not json') == MessageFilter.Result.REJECT
+    }
+
+    def "Payload is parsed once for several predicates"() {
+        expect:
+        accept('$.s = "refund" and $.b = 2', DOC, "UTF-16") == MessageFilter.Result.ACCEPT
+        accept('$.x or $.s', 'not json') == MessageFilter.Result.REJECT
+    }
+
+    def "UTF-16 payloads"() {
+        expect:
+        accept('$.s = "refund"', DOC, "UTF-16") == MessageFilter.Result.ACCEPT
+    }
+
+    def "Only JSON path predicates are allowed"() {
+        when:
+        accept('id = 1', DOC)
+
+        then:
+        thrown(IllegalArgumentException)
+    }
+}
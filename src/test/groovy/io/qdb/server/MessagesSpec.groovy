@@ -133,6 +133,38 @@ class MessagesSpec extends StandaloneBase {
         ans.json.hello == "2nd world"
     }
 
+    def "Get single message with selected fields"() {
+        def ans = GET("/db/foo/q/bar/messages?fromId=0&single=true&fields=hello,missing")
+
+        expect:
+        ans.code == 200
+        ans.text == '{"hello":"world"}'
+        ans.headers["Content-Type"] == "application/json; charset=utf-8"
+    }
+
+    def "Get single message byte range"() {
+        def ans = GET("/db/foo/q/bar/messages?fromId=0&single=true&bytes=2-6")
+
+        expect:
+        ans.code == 200
+        ans.text == 'hello'
+    }
+
+    def "Get single message byte range ending at Integer.MAX_VALUE"() {
+        def ans = GET("/db/foo/q/bar/messages?fromId=0&single=true&bytes=2-2147483647")
+
+        expect:
+        ans.code == 200
+        ans.text == 'hello":"world"}'
+    }
+
+    def "Get messages with fields and bytes gives 422"() {
+        def ans = GET("/db/foo/q/bar/messages?fromId=0&single=true&fields=hello&bytes=0-1")
+
+        expect:
+        ans.code == 422
+    }
+
     def "Get 2 messages streamed"() {
         def ans = GET("/db/foo/q/bar/messages?fromId=0&limit=2&noLengthPrefix=true")
         def r = new StringReader(ans.text)
@@ -223,6 +255,26 @@ class MessagesSpec extends StandaloneBase {
         ans2.text == "{\"hello\":\"world\"}\n"
     }
 
+    def "Export messages"() {
+        def ans = GET("/db/foo/q/bar/messages?export=true&noHeaders=true")
+        def ans2 = GET("/db/foo/q/bar/messages?export=true&unordered=true&noHeaders=true")
+        def ans3 = GET("/db/foo/q/bar/messages?export=true&noHeaders=true&routingKey=def")
+
+        expect:
+        ans.code == 200
+        ans.text == "{\"hello\":\"world\"}\n{\"hello\":\"2nd world\"}\n"
+        ans2.code == 200
+        ans2.text.readLines().sort() == ["{\"hello\":\"2nd world\"}", "{\"hello\":\"world\"}"]
+        ans3.text == "{\"hello\":\"2nd world\"}\n"
+    }
+
+    def "Export with limit gives 422"() {
+        def ans = GET("/db/foo/q/bar/messages?export=true&limit=1")
+
+        expect:
+        ans.code == 422
+    }
+
     def "Wait for new message"() {
         CountDownLatch ready = new CountDownLatch(1)
         CountDownLatch done = new CountDownLatch(1)
@@ -300,6 +352,36 @@ class MessagesSpec extends StandaloneBase {
         ans.text.substring(0, 3) == "\n\n{"     // 2 keep-alive chars sent
     }
 
+    def "Wait for new message async"() {
+        CountDownLatch ready = new CountDownLatch(1)
+        CountDownLatch done = new CountDownLatch(1)
+        def ans = null
+        pool.execute({
+            ready.countDown()
+            ans = GET("/db/foo/q/bar/messages?single=true&async=true")
+            done.countDown()
+        })
+        ready.await(200, TimeUnit.MILLISECONDS)
+        Thread.sleep(50)    // give background GET time to park waiting for message
+        POST("/db/foo/q/bar/messages?routingKey=abc", [hello: "6th world"])
+        done.await(200, TimeUnit.MILLISECONDS)
+
+        expect:
+        ans.code == 200
+        ans.json.hello == "6th world"
+    }
+
+    def "Async keep-alive chars sent with timeout"() {
+        long now = System.currentTimeMillis()
+        def ans = GET("/db/foo/q/bar/messages?timeoutMs=75&keepAliveMs=50&async=true")
+        def ms = System.currentTimeMillis() - now
+
+        expect:
+        ans.code == 200
+        ans.text == "\n"
+        ms >= 75 && ms <= 300
+    }
+
     def "GET?count=true gives 400"() {
         def ans = GET("/db/foo/q/bar/messages?count=true")
 
@@ -416,4 +498,86 @@ class MessagesSpec extends StandaloneBase {
         ans.json.size() == n
     }
 
+
+    def "Append multiple with summary"() {
+        HttpURLConnection con = openConTo("/db/foo/q/lots/messages?multiple=true&summary=true")
+        def out = con.outputStream
+        out.write("4:key1\n3:abc\n4:key2\n5:defgh\n".getBytes("UTF8"))
+        def ans = new Client.Response(con)
+
+        expect:
+        ans.code == 201
+        ans.json.count == 2
+        ans.json.bytes == 8
+        ans.json.lastId > ans.json.firstId
+        ans.json.timestamp != null
+    }
+
+    def "Append multiple partial failure with summary"() {
+        HttpURLConnection con = openConTo("/db/foo/q/lots/messages?multiple=true&summary=true")
+        con.outputStream.write("3:key\n1:x\n\nbad".getBytes("UTF8"))
+        def ans = new Client.Response(con)
+
+        expect:
+        ans.code == 422
+        ans.json.created == null
+        ans.json.summary.count == 1
+        ans.json.summary.firstId == ans.json.summary.lastId
+    }
+
+
+    def "Append multiple binary frames and stream them back"() {
+        HttpURLConnection con = openConTo("/db/foo/q/lots/messages?multiple=true&summary=true&format=binary")
+        def out = new DataOutputStream(con.outputStream)
+        writeFrame(out, 0, 1234L, "bin1", "hello")
+        writeFrame(out, 0, 0, "bin2", "binary world")
+        out.flush()
+        def ans = new Client.Response(con)
+        long firstId = ans.json.firstId
+
+        def get = new URL(client.serverUrl + "/db/foo/q/lots/messages?limit=2&fromId=" + firstId).openConnection() as HttpURLConnection
+        get.setRequestProperty("Authorization", client.toBasicAuth("david", "secret"))
+        get.setRequestProperty("Accept", "application/x-qdb-frames")
+        def ins = new DataInputStream(get.inputStream)
+        def f1 = readFrame(ins)
+        def f2 = readFrame(ins)
+
+        expect:
+        ans.code == 201
+        ans.json.count == 2
+        get.getHeaderField("Content-Type") == "application/x-qdb-frames"
+        f1.id == firstId
+        f1.timestamp == 1234L
+        f1.routingKey == "bin1"
+        f1.payload == "hello"
+        f2.id == ans.json.lastId
+        f2.timestamp >= startTime
+        f2.routingKey == "bin2"
+        f2.payload == "binary world"
+    }
+
+    private void writeFrame(DataOutputStream out, long id, long timestamp, String routingKey, String payload) {
+        byte[] rk = routingKey.getBytes("UTF8")
+        byte[] p = payload.getBytes("UTF8")
+        out.writeLong(Long.reverseBytes(id))
+        out.writeLong(Long.reverseBytes(timestamp))
+        out.writeInt(Integer.reverseBytes(rk.length))
+        out.writeInt(Integer.reverseBytes(p.length))
+        out.write(rk)
+        out.write(p)
+    }
+
+    private Map readFrame(DataInputStream ins) {
+        def f = [:]
+        f.id = Long.reverseBytes(ins.readLong())
+        f.timestamp = Long.reverseBytes(ins.readLong())
+        byte[] rk = new byte[Integer.reverseBytes(ins.readInt())]
+        byte[] p = new byte[Integer.reverseBytes(ins.readInt())]
+        ins.readFully(rk)
+        ins.readFully(p)
+        f.routingKey = new String(rk, "UTF8")
+        f.payload = new String(p, "UTF8")
+        return f
+    }
+
 }
@@ -33,4 +33,21 @@ class ModelObjectSpec extends Specification {
         m.grep == "abc"
         m.abc == "def"
     }
+
+    def "copy shares params and deepCopy does not"() {
+        Output o = new Output()
+        o.id = "1"
+        o.params = [abc: [def: [1, 2]]]
+        Output c = o.copy()
+        Output d = o.deepCopy()
+        c.atId = 10
+        d.params.abc.def << 3
+
+        expect:
+        o.atId == 0
+        c.params.is(o.params)
+        !d.params.is(o.params)
+        o.params.abc.def == [1, 2]
+        d.params.abc.def == [1, 2, 3]
+    }
 }
@@ -0,0 +1,73 @@
+/*
+ * Copyright 2013 David Tinker
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package io.qdb.server
+
+import com.google.common.eventbus.Subscribe
+import io.qdb.server.model.Queue
+import io.qdb.server.repo.ObjectEventDispatcher
+import io.qdb.server.repo.Repository
+import spock.lang.Specification
+
+import java.util.concurrent.CountDownLatch
+
+import static io.qdb.server.repo.Repository.ObjectEvent.Type.*
+
+class ObjectEventDispatcherSpec extends Specification {
+
+    static class Recorder {
+        final CountDownLatch go = new CountDownLatch(1)
+        final List<String> seen = Collections.synchronizedList([])
+
+        @Subscribe
+        public void handle(Repository.ObjectEvent ev) {
+            go.await()
+            seen << "${ev.type} ${ev.value.id} ${ev.value.version}".toString()
+        }
+    }
+
+    private static Repository.ObjectEvent ev(Repository.ObjectEvent.Type type, String id, int version) {
+        Queue q = new Queue()
+        q.id = id
+        q.version = version
+        return new Repository.ObjectEvent(type, q)
+    }
+
+    def "Events are delivered in order for each object and waiting updates are coalesced"() {
+        def d = new ObjectEventDispatcher(1)
+        def r = new Recorder()
+        d.register(r)
+        d.post(ev(CREATED, "b", 1))     // keeps the only delivery thread busy until we let it go
+        d.post(ev(CREATED, "a", 1))
+        d.post(ev(UPDATED, "a", 2))
+        d.post(ev(UPDATED, "a", 3))
+        d.post(ev(DELETED, "a", 3))
+        d.post(ev(UPDATED, "a", 4))
+        def before = d.stats[0]
+        r.go.countDown()
+        for (int i = 0; i < 100 && r.seen.size() < 4; i++) Thread.sleep(50)
+        def after = d.stats[0]
+        d.close()
+
+        expect:
+        r.seen == ["CREATED b 1", "CREATED a 3", "DELETED a 3", "UPDATED a 4"]
+        before.coalesced == 2
+        after.maxPending >= 3
+        after.pending == 0
+        after.delivered == 4
+        after.subscriber == "Recorder"
+    }
+}
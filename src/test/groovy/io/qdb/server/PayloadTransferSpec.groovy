@@ -0,0 +1,77 @@
+/*
+ * Copyright 2013 David Tinker
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package io.qdb.server
+
+import io.qdb.buffer.PersistentMessageBuffer
+import io.qdb.server.queue.PayloadTransfer
+import org.apache.commons.io.FileUtils
+import spock.lang.Specification
+
+import java.nio.channels.Channels
+
+class PayloadTransferSpec extends Specification {
+
+    def "Transfer payloads across files"() {
+        def dir = new File("build/test-data/payload-transfer")
+        FileUtils.deleteDirectory(dir)
+        dir.mkdirs()
+        def mb = new PersistentMessageBuffer(dir)
+        mb.firstId = 1
+        mb.maxPayloadSize = 5000
+        mb.segmentLength = 8192
+        def pt = new PayloadTransfer(dir, 2)
+        def rnd = new Random(123)
+        def payloads = []
+        100.times { i ->
+            byte[] p = new byte[rnd.nextInt(3000)]
+            rnd.nextBytes(p)
+            payloads << p
+            mb.append(System.currentTimeMillis(), "k\u00e9y" + i, p)
+        }
+
+        def c = mb.cursor(0)
+        int same = 0
+        while (c.next()) {
+            def bos = new ByteArrayOutputStream()
+            if (pt.transfer(c.id, c.routingKey, c.payloadSize, Channels.newChannel(bos))) {
+                if (Arrays.equals(bos.toByteArray(), payloads[same] as byte[])) ++same
+            }
+        }
+        c.close()
+        pt.close()
+        mb.close()
+
+        expect:
+        dir.list().length > 2
+        same == 100
+    }
+
+    def "No transfer when the file layout does not match"() {
+        def dir = new File("build/test-data/payload-transfer-layout")
+        FileUtils.deleteDirectory(dir)
+        dir.mkdirs()
+        new File(dir, "0000000000000001-0000000000000000-0.qdb").bytes = new byte[8192]
+        def pt = new PayloadTransfer(dir, 2)
+        def bos = new ByteArrayOutputStream()
+        def ans = pt.transfer(1, "key", 10, Channels.newChannel(bos))
+        pt.close()
+
+        expect:
+        !ans
+        bos.size() == 0
+    }
+}
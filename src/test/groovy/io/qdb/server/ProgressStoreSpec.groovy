@@ -0,0 +1,66 @@
+/*
+ * Copyright 2013 David Tinker
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package io.qdb.server
+
+import io.qdb.server.model.Input
+import io.qdb.server.model.Output
+import io.qdb.server.repo.ObjectEventDispatcher
+import io.qdb.server.repo.ProgressStore
+import org.apache.commons.io.FileUtils
+import spock.lang.Specification
+
+class ProgressStoreSpec extends Specification {
+
+    def "Progress is merged, tied to object version and survives restart"() {
+        def dir = new File("build/test-data/progress-store")
+        FileUtils.deleteDirectory(dir)
+        def events = new ObjectEventDispatcher(1)
+        def ps = new ProgressStore(events, dir.path, 60)
+
+        Output o = new Output()
+        o.id = "o1"
+        o.atId = 10
+        o.version = 2
+        Input i = new Input()
+        i.id = "i1"
+        i.version = 1
+
+        ps.record(o, 100, 2000, 5)
+        ps.record(i, 50, 3000)
+        Output mo = ps.merge(o)
+        Output old = new Output()
+        old.id = "o1"
+        old.version = 1
+        ps.close()
+
+        ps = new ProgressStore(events, dir.path, 60)
+        Output ro = ps.merge(o)
+        Input ri = ps.merge(i)
+        ps.close()
+        events.close()
+
+        expect:
+        o.atId == 10
+        mo.atId == 100
+        mo.at == 2000
+        mo.limit == 5
+        ps.merge(old).is(old)
+        ro.atId == 100
+        ri.lastMessageId == 50
+        ri.lastMessageTimestamp == 3000
+    }
+}
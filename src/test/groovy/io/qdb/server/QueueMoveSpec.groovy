@@ -0,0 +1,87 @@
+/*
+ * Copyright 2013 David Tinker
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package io.qdb.server
+
+import com.google.inject.AbstractModule
+import com.google.inject.Guice
+import com.google.inject.Key
+import com.google.inject.name.Names
+import com.google.inject.util.Modules
+import io.qdb.buffer.MessageBuffer
+import io.qdb.buffer.MessageCursor
+import io.qdb.server.model.Database
+import io.qdb.server.model.Queue
+import io.qdb.server.queue.QueueManager
+import io.qdb.server.repo.ObjectEventDispatcher
+import io.qdb.server.repo.Repository
+import org.apache.commons.io.FileUtils
+import spock.lang.Specification
+
+class QueueMoveSpec extends Specification {
+
+    def "Messages are read back from the new data directory after a queue is moved"() {
+        def dataDir = new File("build/test-data/queue-move")
+        FileUtils.deleteDirectory(dataDir)
+        def dirA = new File(dataDir, "a").absoluteFile
+        def dirB = new File(dataDir, "b").absoluteFile
+        def injector = Guice.createInjector(Modules.override(new QdbServerModule()).with(
+                new StandaloneTestModule(dataDir), new AbstractModule() {
+            @Override
+            protected void configure() {
+                bind(Key.get(String, Names.named("queueDataDirs"))).toInstance(dirA.path + "," + dirB.path)
+            }
+        }))
+        def repo = injector.getInstance(Repository)
+        def qm = injector.getInstance(QueueManager)
+
+        Database db = repo.findDatabase("default").deepCopy()
+        db.queues = [moveme: "moveme"]
+        repo.updateDatabase(db)
+        Queue q = new Queue()
+        q.id = "moveme"
+        q.database = "default"
+        q.maxSize = 10000000
+        q.maxPayloadSize = 100000
+        repo.updateQueue(q)
+        q = repo.findQueue("moveme")
+        MessageBuffer mb = qm.getBuffer(q)
+        def ids = (0..<3).collect { qm.append(q, mb, 1000L + it, "key" + it, ("msg" + it).getBytes("UTF8")) }
+
+        File src = qm.getDir(q)
+        File target = src.path.startsWith(dirA.path) ? dirB : dirA
+        File dst = qm.moveQueue(q, target)
+        MessageBuffer mb2 = qm.getBuffer(q)
+        def read = []
+        MessageCursor c = mb2.cursor(ids[0])
+        while (c.next()) read << [c.id, c.routingKey, new String(c.payload, "UTF8")]
+        c.close()
+        long nextId = qm.append(q, mb2, 2000L, "key3", "msg3".getBytes("UTF8"))
+
+        qm.close()
+        repo.close()
+        injector.getInstance(ObjectEventDispatcher).close()
+
+        expect:
+        dst.path.startsWith(target.path)
+        qm.getDir(q) == dst
+        !src.exists()
+        !mb.open
+        !mb2.is(mb)
+        read == [[ids[0], "key0", "msg0"], [ids[1], "key1", "msg1"], [ids[2], "key2", "msg2"]]
+        nextId > ids[2]
+    }
+}
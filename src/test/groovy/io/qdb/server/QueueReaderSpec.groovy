@@ -0,0 +1,194 @@
+/*
+ * Copyright 2013 David Tinker
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package io.qdb.server
+
+import io.qdb.buffer.PersistentMessageBuffer
+import io.qdb.server.output.QueueReader
+import org.apache.commons.io.FileUtils
+import spock.lang.Shared
+import spock.lang.Specification
+
+class QueueReaderSpec extends Specification {
+
+    @Shared PersistentMessageBuffer mb
+    @Shared List<Long> ids = []
+
+    def setupSpec() {
+        def dir = new File("build/test-data/queue-reader")
+        FileUtils.deleteDirectory(dir)
+        dir.mkdirs()
+        mb = new PersistentMessageBuffer(dir)
+        mb.firstId = 1
+        100.times { i -> ids << mb.append(1000L + i, "key" + i, ("payload" + i).getBytes("UTF8")) }
+    }
+
+    def cleanupSpec() {
+        mb.close()
+    }
+
+    private List<Long> read(QueueReader.Cursor c, int n) {
+        def ans = []
+        n.times {
+            assert c.next()
+            assert c.routingKey == "key" + ids.indexOf(c.id)
+            assert new String(c.payload, "UTF8") == "payload" + ids.indexOf(c.id)
+            ans << c.id
+        }
+        return ans
+    }
+
+    def "Cursors at the same position share the ring"() {
+        def qr = new QueueReader(mb, 1024, 1024 * 1024)
+        def a = qr.open(ids[0], 0)
+        def b = qr.open(ids[0], 0)
+        def ra = read(a, 100)
+        def rb = read(b, 100)
+
+        expect:
+        ra == ids
+        rb == ids
+        a.shared
+        b.shared
+        !a.next()
+        !b.next()
+
+        cleanup:
+        a?.close()
+        b?.close()
+    }
+
+    def "Cursor behind the ring reads on its own until it catches up"() {
+        def qr = new QueueReader(mb, 64, 1024 * 1024)
+        def a = qr.open(ids[60], 0)
+        def ra = read(a, 30)
+        def b = qr.open(ids[0], 0)
+        def rb = read(b, 5)
+        boolean sharedAtStart = b.shared
+        rb += read(b, 60)
+        boolean sharedLater = b.shared
+        rb += read(b, 35)
+
+        expect:
+        ra == ids[60..89]
+        !sharedAtStart
+        sharedLater
+        rb == ids
+
+        cleanup:
+        a?.close()
+        b?.close()
+    }
+
+    def "Cursor that falls behind the ring reads on its own"() {
+        def qr = new QueueReader(mb, 4, 1024 * 1024)
+        def a = qr.open(ids[50], 0)
+        def b = qr.open(ids[50], 0)
+        def rb = read(b, 2)
+        def ra = read(a, 50)
+        rb += read(b, 48)
+
+        expect:
+        ra == ids[50..99]
+        rb == ids[50..99]
+
+        cleanup:
+        a?.close()
+        b?.close()
+    }
+
+    def "Cursor by timestamp"() {
+        def qr = new QueueReader(mb, 16, 1024 * 1024)
+        def c = qr.open(-1, 1090L)
+
+        expect:
+        read(c, 10) == ids[90..99]
+        !c.next()
+
+        cleanup:
+        c?.close()
+    }
+
+    def "Cursor waiting while another cursor reads gets the message without waiting for a new one"() {
+        def dir = new File("build/test-data/queue-reader-wait")
+        FileUtils.deleteDirectory(dir)
+        dir.mkdirs()
+        def buf = new PersistentMessageBuffer(dir)
+        buf.firstId = 1
+        long first = buf.append(1000L, "key", "payload".getBytes("UTF8"))
+        def qr = new QueueReader(buf, 64, 1024 * 1024)
+        def a = qr.open(first, 0)
+        def b = qr.open(first, 0)
+        a.next()
+        b.next()
+        def ta = Thread.start { a.next(2000) }
+        Thread.sleep(50)
+        boolean gotB = false
+        long msB = 0
+        def tb = Thread.start {
+            long start = System.currentTimeMillis()
+            gotB = b.next(2000)
+            msB = System.currentTimeMillis() - start
+        }
+        Thread.sleep(100)
+        buf.append(2000L, "key", "payload2".getBytes("UTF8"))
+        ta.join()
+        tb.join()
+
+        expect:
+        gotB
+        msB < 1000
+
+        cleanup:
+        a?.close()
+        b?.close()
+        buf?.close()
+    }
+
+    def "Reading ahead does not drop messages a sharing cursor has not read yet"() {
+        def dir = new File("build/test-data/queue-reader-evict")
+        FileUtils.deleteDirectory(dir)
+        dir.mkdirs()
+        def buf = new PersistentMessageBuffer(dir)
+        buf.firstId = 1
+        def bufIds = [buf.append(1000L, "key", new byte[20])]
+        def qr = new QueueReader(buf, 64, 100)
+        def a = qr.open(bufIds[0], 0)
+        def b = qr.open(bufIds[0], 0)
+        a.next()
+        b.next()
+        39.times { bufIds << buf.append(1000L, "key", new byte[20]) }
+        def ra = [], rb = []
+        boolean allShared = true
+        39.times {
+            assert a.next()
+            ra << a.id
+            assert b.next()
+            rb << b.id
+            allShared &= a.shared && b.shared
+        }
+
+        expect:
+        ra == bufIds[1..39]
+        rb == ra
+        allShared
+
+        cleanup:
+        a?.close()
+        b?.close()
+        buf?.close()
+    }
+}
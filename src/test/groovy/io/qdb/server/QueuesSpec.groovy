@@ -131,6 +131,29 @@ class QueuesSpec extends StandaloneBase {
         ans.json.errorAfter == "0:01:20"
     }
 
+    def "Queue storage"() {
+        def ans = GET("/db/foo/q/bar/storage?borg=true", "david", "secret")
+
+        expect:
+        ans.code == 200
+        ans.json.dir.endsWith("bar")
+        ans.json.dataDirs.size() == 1
+        ans.json.dataDir == ans.json.dataDirs[0].dir
+    }
+
+    def "Move queue storage"() {
+        def ans = GET("/db/foo/q/bar/storage?borg=true")
+        def ans2 = POST("/db/foo/q/bar/storage", [dataDir: ans.json.dataDir])
+        def ans3 = POST("/db/foo/q/bar/storage", [dataDir: "/no/such/dir"])
+        def ans4 = POST("/db/foo/q/bar/storage", [dataDir: ans.json.dataDir], "david", "secret")
+
+        expect:
+        ans2.code == 200
+        ans2.json.dir == ans.json.dir
+        ans3.code == 422
+        ans4.code == 403
+    }
+
     def "Delete queue"() {
         def ans = DELETE("/db/foo/q/bar", "david", "secret")
         def ans2 = GET("/db/foo/q/bar")
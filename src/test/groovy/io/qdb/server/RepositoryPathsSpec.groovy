@@ -0,0 +1,87 @@
+/*
+ * Copyright 2013 David Tinker
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package io.qdb.server
+
+import com.google.inject.Guice
+import com.google.inject.util.Modules
+import io.qdb.server.model.Database
+import io.qdb.server.model.Input
+import io.qdb.server.model.Output
+import io.qdb.server.model.Queue
+import io.qdb.server.repo.ObjectEventDispatcher
+import io.qdb.server.repo.Repository
+import org.apache.commons.io.FileUtils
+import spock.lang.Specification
+
+class RepositoryPathsSpec extends Specification {
+
+    def "Cached paths follow renames and deletes"() {
+        def dataDir = new File("build/test-data/repo-paths")
+        FileUtils.deleteDirectory(dataDir)
+        def injector = Guice.createInjector(Modules.override(new QdbServerModule()).with(
+                new StandaloneTestModule(dataDir)))
+        def repo = injector.getInstance(Repository)
+
+        Database db = new Database()
+        db.id = "pdb"
+        db.queues = [q1: "qid1"]
+        repo.updateDatabase(db)
+        Queue q = new Queue()
+        q.id = "qid1"
+        q.database = "pdb"
+        q.outputs = [out1: "oid1"]
+        q.inputs = [in1: "iid1"]
+        repo.updateQueue(q)
+        Output o = new Output()
+        o.id = "oid1"
+        o.queue = "qid1"
+        repo.updateOutput(o)
+        Input i = new Input()
+        i.id = "iid1"
+        i.queue = "qid1"
+        repo.updateInput(i)
+        def before = [repo.findPath(q), repo.findPath(o), repo.findPath(i)]
+
+        db = db.deepCopy()
+        db.queues = [q2: "qid1"]
+        repo.updateDatabase(db)
+        def queueRenamed = [repo.findPath(q), repo.findPath(o), repo.findPath(i)]
+
+        q = repo.findQueue("qid1").deepCopy()
+        q.outputs = [out2: "oid1"]
+        q.inputs = [in2: "iid1"]
+        repo.updateQueue(q)
+        def childrenRenamed = [repo.findPath(q), repo.findPath(o), repo.findPath(i)]
+
+        repo.deleteOutput("oid1")
+        repo.deleteInput("iid1")
+        def childrenDeleted = [repo.findPath(q), repo.findPath(o), repo.findPath(i)]
+
+        repo.deleteQueue("qid1")
+        def queueDeleted = repo.findPath(q)
+
+        repo.close()
+        injector.getInstance(ObjectEventDispatcher).close()
+
+        expect:
+        before == ["/db/pdb/q/q1", "/db/pdb/q/q1/out/out1", "/db/pdb/q/q1/in/in1"]
+        queueRenamed == ["/db/pdb/q/q2", "/db/pdb/q/q2/out/out1", "/db/pdb/q/q2/in/in1"]
+        childrenRenamed == ["/db/pdb/q/q2", "/db/pdb/q/q2/out/out2", "/db/pdb/q/q2/in/in2"]
+        childrenDeleted == ["/db/pdb/q/q2", null, null]
+        queueDeleted == null
+    }
+}
@@ -0,0 +1,105 @@
+/*
+ * Copyright 2013 David Tinker
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package io.qdb.server
+
+import io.qdb.buffer.PersistentMessageBuffer
+import io.qdb.server.filter.MessageFilter
+import io.qdb.server.filter.RoutingKeyMessageFilter
+import io.qdb.server.queue.RoutingKeyIndex
+import org.apache.commons.io.FileUtils
+import spock.lang.Shared
+import spock.lang.Specification
+
+class RoutingKeyIndexSpec extends Specification {
+
+    @Shared PersistentMessageBuffer mb
+    @Shared RoutingKeyIndex idx
+    @Shared List<Long> ids = []
+    @Shared List<String> keys = []
+
+    def setupSpec() {
+        def dir = new File("build/test-data/routing-key-index")
+        FileUtils.deleteDirectory(dir)
+        dir.mkdirs()
+        mb = new PersistentMessageBuffer(dir)
+        mb.firstId = 1
+        def payload = new byte[1000]
+        def rnd = new Random(123)
+        1000.times { i ->
+            String key = "orders.c" + (rnd.nextInt(10) == 0 ? "rare" : rnd.nextInt(5)) + ".new"
+            keys << key
+            ids << mb.append(System.currentTimeMillis(), key, payload)
+        }
+        idx = new RoutingKeyIndex(2)
+        idx.build(mb)
+        100.times {
+            String key = "orders.clate.new"
+            synchronized (mb) {
+                long id = mb.append(System.currentTimeMillis(), key, payload)
+                idx.add(id, key)
+                keys << key
+                ids << id
+            }
+        }
+    }
+
+    def cleanupSpec() {
+        mb.close()
+    }
+
+    private MessageFilter filter(String routingKey) {
+        def f = new RoutingKeyMessageFilter(routingKey: routingKey)
+        f.init(null)
+        return f
+    }
+
+    def "Index keys for filters"() {
+        expect:
+        idx.getKey(filter("orders.c1.#")) == "orders.c1"
+        idx.getKey(filter("orders.c1")) == "orders.c1"
+        idx.getKey(filter("orders")) == "orders"
+        idx.getKey(filter("orders.*.new")) == null
+        idx.getKey(filter("#")) == null
+        idx.getKey(filter("/orders.*/")) == null
+        idx.getKey(MessageFilter.NULL) == null
+    }
+
+    def "Skip to matching messages"() {
+        def found = []
+        long nextId = ids[0]
+        while (true) {
+            long skip = idx.skipTo("orders.crare", nextId)
+            int i = ids.indexOf(skip < 0 ? nextId : skip)
+            if (i < 0) break
+            if (keys[i].startsWith("orders.crare.")) found << ids[i]
+            if (i + 1 == ids.size()) break
+            nextId = ids[i + 1]
+        }
+        def expected = []
+        keys.eachWithIndex { k, i -> if (k.startsWith("orders.crare.")) expected << ids[i] }
+
+        expect:
+        idx.ready
+        found == expected
+    }
+
+    def "Messages appended after build are indexed"() {
+        expect:
+        idx.skipTo("orders.clate", ids[0]) == ids[1000]
+        idx.skipTo("orders.cnone", ids[0]) == ids[1099]
+    }
+}
@@ -79,4 +79,24 @@ class TimelineSpec extends StandaloneBase {
         expect:
         ans.code == 400
     }
-}
\ No newline at end of file
+
+    def "Get append histogram"() {
+        def secs = GET("/db/foo/q/bar/timeline?resolution=1&borg=true")
+        def mins = GET("/db/foo/q/bar/timeline?resolution=1:00&borg=true")
+
+        expect:
+        secs.code == 200
+        secs.json*.count.sum() == 2
+        secs.json.every { it.timestamp % 1000 == 0 }
+        mins.code == 200
+        mins.json*.count.sum() == 2
+        mins.json*.bytes.sum() > 0
+    }
+
+    def "Get append histogram with unknown resolution"() {
+        def ans = GET("/db/foo/q/bar/timeline?resolution=7")
+
+        expect:
+        ans.code == 422
+    }
+}
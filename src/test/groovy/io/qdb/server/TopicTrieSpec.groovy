@@ -0,0 +1,66 @@
+/*
+ * Copyright 2013 David Tinker
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package io.qdb.server
+
+import io.qdb.server.filter.TopicTrie
+import spock.lang.Specification
+
+class TopicTrieSpec extends Specification {
+
+    TopicTrie t = new TopicTrie()
+
+    def "Multiple patterns"() {
+        t.add("orders.eu.*")
+        t.add("orders.#.refund")
+        t.add("audit")
+
+        expect:
+        t.matches("orders.eu.42")
+        t.matches("orders.us.x.refund")
+        t.matches("orders.refund")
+        t.matches("audit")
+        !t.matches("orders.us.42")
+        !t.matches("audit.x")
+        !t.matches("")
+    }
+
+    def "Many words at one level"() {
+        for (int i = 0; i < 100; i++) t.add("w" + i + ".x")
+
+        expect:
+        t.matches("w0.x")
+        t.matches("w99.x")
+        !t.matches("w100.x")
+        !t.matches("w5")
+    }
+
+    def "Hash between wildcards"() {
+        t.add("*.#.*")
+
+        expect:
+        t.matches("a.b")
+        t.matches("a.b.c.d")
+        !t.matches("a")
+    }
+
+    def "Null routing key is empty"() {
+        t.add("#")
+
+        expect:
+        t.matches(null)
+    }
+}
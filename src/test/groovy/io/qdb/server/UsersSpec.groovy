@@ -89,6 +89,17 @@ class UsersSpec extends StandaloneBase {
         ans.json.id == "david"
     }
 
+    def "List users with offset and limit"() {
+        def a = GET("/users?limit=1")
+        def b = GET("/users?offset=1&limit=1")
+        def c = GET("/users?offset=2")
+
+        expect:
+        a.json*.id == ["admin"]
+        b.json*.id == ["david"]
+        c.json.size() == 0
+    }
+
     def "List databases for non-admin user"() {
         def ans = GET("/db", "david", "secret")
 
@@ -103,6 +114,7 @@ class UsersSpec extends StandaloneBase {
 
         expect:
         ans.code == 200
+        GET("/users").json*.id == ["admin"]
     }
 
 }